@@ -2,30 +2,32 @@ package kt4j;
 
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
-import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.ExceptionEvent;
-import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
-import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
+import kt4j.Request.Protocol;
 import kt4j.binary.BinaryProtocolDecoder;
 import kt4j.binary.BinaryProtocolEncoder;
 import kt4j.tsvrpc.TsvRpcClientCodec;
@@ -36,16 +38,33 @@ import kt4j.tsvrpc.TsvRpcClientCodec;
  * @author kumai
  */
 public abstract class AbstractKyotoTycoonClient implements KyotoTycoonClient {
-    private final ClientBootstrap bootstrap;
+    private static final long TIMER_TICK_MILLIS = 10L;
+
+    private final ClientBootstrap[] bootstraps = new ClientBootstrap[Protocol.values().length];
     private final SocketAddress[] servers;
-    private Channel channel;
+    private final KetamaNodeLocator locator;
+    
+    /** The connection pools of each server, indexed by the protocol. Null for an unused protocol. */
+    private ConnectionPool[][] pools;
+    private Timer timer;
+
+    private int minConnections = 1;
+    private int maxConnections = 1;
+    private ConnectionSelection connectionSelection = ConnectionSelection.LEAST_IN_FLIGHT;
+    private long idleTimeoutMillis = 60000L;
+    private long timeoutMillis;
+    private int maxFrameSize = BinaryProtocolDecoder.DEFAULT_MAX_FRAME_SIZE;
 
     /**
      * Creates a new instance.
      * 
+     * <p>
+     * When two or more servers are specified, the records are sharded across the servers
+     * with ketama consistent hashing on their keys. 
+     * </p>
+     * 
      * @param servers
      *      Kyoto Tycoon server addresses.
-     *      Now uses only first one of the servers.
      */
     protected AbstractKyotoTycoonClient(SocketAddress... servers) {
         if (servers.length < 1) {
@@ -53,9 +72,89 @@ public abstract class AbstractKyotoTycoonClient implements KyotoTycoonClient {
         }
         
         this.servers = servers;
+        this.locator = new KetamaNodeLocator(servers);
         
-        bootstrap = new ClientBootstrap(newChannelFactory());
-        bootstrap.setPipelineFactory(newPipelineFactory());
+        ClientSocketChannelFactory channelFactory = newChannelFactory();
+        for (Protocol protocol : Protocol.values()) {
+            bootstraps[protocol.ordinal()] = new ClientBootstrap(channelFactory);
+            bootstraps[protocol.ordinal()].setPipelineFactory(newPipelineFactory(protocol));
+        }
+    }
+
+    /**
+     * Sets the size of the connection pool for each server and protocol.
+     * <p>
+     * The client opens <code>min</code> connections on {@link #start()}, and opens more connections
+     * up to <code>max</code> while all the connections are waiting for responses.
+     * The default size is 1 (a single connection).
+     * This must be called before {@link #start()}.
+     * </p>
+     * 
+     * @param min the number of the connections kept open.
+     * @param max the maximum number of the connections.
+     * @throws IllegalArgumentException if <code>min</code> is less than 1 or greater than <code>max</code>
+     */
+    public void setConnectionPoolSize(int min, int max) throws IllegalArgumentException {
+        if (min < 1 || min > max) {
+            throw new IllegalArgumentException("invalid connection pool size: min=" + min + ", max=" + max);
+        }
+        this.minConnections = min;
+        this.maxConnections = max;
+    }
+
+    /**
+     * Sets the policy to choose a connection from the pool.
+     * The default is {@link ConnectionSelection#LEAST_IN_FLIGHT}.
+     * 
+     * @param selection the policy.
+     */
+    public void setConnectionSelection(ConnectionSelection selection) throws NullPointerException {
+        if (selection == null) {
+            throw new NullPointerException("selection");
+        }
+        this.connectionSelection = selection;
+    }
+
+    /**
+     * Sets the time after which an unused connection beyond the minimum pool size is closed.
+     * The default is 60 seconds.
+     * 
+     * @param idleTimeoutMillis the idle time in milliseconds. 0 or less never closes idle connections.
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+    
+    /**
+     * Sets the time to wait for the response of each operation.
+     * <p>
+     * An operation that gets no response in time fails with {@link TimeoutException},
+     * and its connection is closed and replaced, failing the other operations waiting on it.
+     * A fresh connection ensures that a late response is never paired with another request.
+     * This is the deadline of every synchronous call. A call that needs its own deadline
+     * goes through {@link kt4j.tsvrpc.KyotoTycoonTsvRpcClient#async(Executor, long, TimeUnit)}.
+     * The default is 0 (waits forever).
+     * </p>
+     * 
+     * @param timeoutMillis the timeout in milliseconds. 0 or less disables the timeout.
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+    
+    /**
+     * Sets the maximum size of a binary protocol response.
+     * A larger response fails the operation and closes its connection.
+     * The default is {@link BinaryProtocolDecoder#DEFAULT_MAX_FRAME_SIZE}.
+     * This must be called before {@link #start()}.
+     * 
+     * @param maxFrameSize the maximum size in bytes.
+     */
+    public void setMaxFrameSize(int maxFrameSize) throws IllegalArgumentException {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
     }
     
     /**
@@ -67,99 +166,406 @@ public abstract class AbstractKyotoTycoonClient implements KyotoTycoonClient {
     }
 
     /**
-     * Creates a {@link ChannelPipelineFactory} for processing Kyoto Tycoon messages.
+     * Creates a {@link ChannelPipelineFactory} for processing the Kyoto Tycoon messages of the protocol.
+     * Each protocol has its own connections, so the pipeline carries a single protocol.
      */
-    protected ChannelPipelineFactory newPipelineFactory() {
+    protected ChannelPipelineFactory newPipelineFactory(final Protocol protocol) {
         return new ChannelPipelineFactory() {
             @Override
             public ChannelPipeline getPipeline() throws Exception {
                 ChannelPipeline pipeline = Channels.pipeline();
-                pipeline.addLast("kt-bin-decoder", new BinaryProtocolDecoder());
-                pipeline.addLast("http-codec", new HttpClientCodec());
-                pipeline.addLast("http-aggregator", new HttpChunkAggregator(1024*1024));
-                pipeline.addLast("kt-tsvrpc-codec", new TsvRpcClientCodec());
-                pipeline.addLast("kt-bin-encoder", new BinaryProtocolEncoder());
+                if (protocol == Protocol.BINARY) {
+                    pipeline.addLast("kt-bin-decoder", new BinaryProtocolDecoder(maxFrameSize));
+                    pipeline.addLast("kt-bin-encoder", new BinaryProtocolEncoder());
+                } else {
+                    pipeline.addLast("http-decoder", new HttpResponseDecoder());
+                    pipeline.addLast("kt-tsvrpc-codec", new TsvRpcClientCodec());
+                }
                 pipeline.addLast("kt-handler", new KTChannelHandler());
                 return pipeline;
             }
         };
     }
     
+    /**
+     * Returns the addresses of the servers that this client shards the records across.
+     */
+    public List<SocketAddress> getServers() {
+        return Collections.unmodifiableList(Arrays.asList(servers));
+    }
+    
+    /**
+     * Tests this client sends the requests of the protocol. Only the protocols in use get connections.
+     * The default is TSV-RPC only.
+     */
+    protected boolean usesProtocol(Protocol protocol) {
+        return (protocol == Protocol.TSV_RPC);
+    }
+    
     @Override
     public synchronized void start() {
-        ChannelFuture channelFuture = bootstrap.connect(servers[0]);
-        channelFuture.awaitUninterruptibly();
-        if (channelFuture.isSuccess()) {
-            this.channel = channelFuture.getChannel();
-        } else {
-            throw new KyotoTycoonOperationFailedException("Failed to connect: " + servers[0], channelFuture.getCause());
+        if (pools != null) {
+            return;
+        }
+        timer = new HashedWheelTimer(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        ConnectionPool[][] newPools = new ConnectionPool[Protocol.values().length][];
+        try {
+            for (Protocol protocol : Protocol.values()) {
+                if (!usesProtocol(protocol)) {
+                    continue;
+                }
+                ConnectionPool[] protocolPools = new ConnectionPool[servers.length];
+                newPools[protocol.ordinal()] = protocolPools;
+                for (int i = 0; i < servers.length; ++i) {
+                    protocolPools[i] = new ConnectionPool(bootstraps[protocol.ordinal()], servers[i],
+                            minConnections, maxConnections, connectionSelection, idleTimeoutMillis, timer);
+                    protocolPools[i].start();
+                }
+            }
+        } catch (KyotoTycoonOperationFailedException e) {
+            stopPools(newPools);
+            timer.stop();
+            timer = null;
+            throw e;
         }
+        this.pools = newPools;
     }
 
     @Override
     public synchronized void stop() {
-        if (channel != null) {
-            ChannelFuture closeFuture = channel.close();
-            closeFuture.awaitUninterruptibly(10000);
-            channel = null;
-            bootstrap.releaseExternalResources();
+        if (pools != null) {
+            stopPools(pools);
+            pools = null;
+            timer.stop();
+            timer = null;
+            // the bootstraps share the channel factory
+            bootstraps[0].releaseExternalResources();
+        }
+    }
+    
+    private static void stopPools(ConnectionPool[][] pools) {
+        for (ConnectionPool[] protocolPools : pools) {
+            if (protocolPools == null) {
+                continue;
+            }
+            for (ConnectionPool pool : protocolPools) {
+                if (pool != null) {
+                    pool.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of the Kyoto Tycoon servers.
+     */
+    protected int getServerCount() {
+        return servers.length;
+    }
+
+    /**
+     * Returns the index of the server that stores the specified key.
+     */
+    protected int locate(byte[] key) {
+        if (servers.length == 1) {
+            return 0;
         }
+        return locator.locate(key);
     }
     
     /**
-     * Executes a Kyoto Tycoon RPC synchronously.
+     * Executes a Kyoto Tycoon RPC that isn't related to a key synchronously.
+     * The request is sent to the first server.
      * 
      * @param request
      *      A request to Kyoto Tycoon.
      * @return result of the RPC.
      */
     protected Operation call(Request request) {
-        Operation operation = new Operation(request);
-        if (channel == null) {
+        return await(submit(0, request));
+    }
+
+    /**
+     * Executes a Kyoto Tycoon RPC synchronously on the server that stores the specified key.
+     * 
+     * @param key
+     *      The key to locate the server.
+     * @param request
+     *      A request to Kyoto Tycoon.
+     * @return result of the RPC.
+     */
+    protected Operation call(byte[] key, Request request) {
+        return await(submit(locate(key), request));
+    }
+
+    /**
+     * Executes a Kyoto Tycoon RPC synchronously on all the servers.
+     * 
+     * @param request
+     *      A request to Kyoto Tycoon.
+     * @return results of the RPC in the order of the servers.
+     */
+    protected Operation[] callAll(Request request) {
+        Operation[] operations = new Operation[servers.length];
+        for (int i = 0; i < servers.length; ++i) {
+            operations[i] = submit(i, request);
+        }
+        for (Operation operation : operations) {
+            await(operation);
+        }
+        return operations;
+    }
+
+    /**
+     * Waits until the operation is completed or expired by the timer.
+     */
+    private static Operation await(Operation operation) {
+        while (!operation.isDone()) {
+            operation.awaitUninterruptibly();
+        }
+        return operation;
+    }
+
+    /**
+     * Sends a Kyoto Tycoon RPC to the specified server without waiting for the response.
+     * 
+     * @param serverIndex
+     *      The index of the server.
+     * @param request
+     *      A request to Kyoto Tycoon.
+     * @return the operation that is completed when the response is received.
+     */
+    protected Operation submit(int serverIndex, Request request) {
+        final Operation operation = new Operation(request, timeoutMillis);
+        ConnectionPool[][] pools = this.pools;
+        Timer timer = this.timer;
+        if (pools == null) {
             throw new IllegalStateException("The channel is not ready.");
         }
+        ConnectionPool[] protocolPools = pools[request.protocol.ordinal()];
+        if (protocolPools == null) {
+            throw new IllegalStateException("The client doesn't use the protocol: " + request.protocol);
+        }
         
-        channel.write(operation);
-        operation.awaitUninterruptibly();
+        final ConnectionPool pool = protocolPools[serverIndex];
+        ConnectionPool.Connection conn = pool.acquire();
+        if (conn != null) {
+            write(operation, pool, conn, timer);
+            return operation;
+        }
+        
+        // all the connections have been lost; writes the operation once the pool has reconnected
+        final Timer reconnectTimer = timer;
+        pool.reconnect().addListener(new KyotoTycoonFutureListener<Void>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<Void> future) {
+                if (!future.isSuccess()) {
+                    operation.exceptionCaught(future.getCause());
+                    return;
+                }
+                ConnectionPool.Connection conn;
+                try {
+                    conn = pool.acquire();
+                } catch (RuntimeException e) {
+                    operation.exceptionCaught(e);
+                    return;
+                }
+                if (conn == null) {
+                    operation.exceptionCaught(new KyotoTycoonOperationFailedException(
+                            "Lost the connection again: " + pool.getServer()));
+                    return;
+                }
+                write(operation, pool, conn, reconnectTimer);
+            }
+        });
         return operation;
     }
-    
-    private static class KTChannelHandler extends SimpleChannelHandler {
-        private final BlockingQueue<Operation> requestedOperations = new LinkedBlockingQueue<Operation>();
-
-        private final Lock lock = new ReentrantLock();
-
-        @Override
-        public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            Operation op = (Operation) e.getMessage();
-            lock.lock();
-            try {
-                requestedOperations.offer(op);
-                Channels.write(ctx, e.getFuture(), op.getRequest());
-            } finally {
-                lock.unlock();
-            }
+
+    private void write(final Operation operation, ConnectionPool pool, ConnectionPool.Connection conn,
+            Timer timer) {
+        if (timeoutMillis > 0L) {
+            expire(operation, pool, conn, timer);
         }
+        conn.channel.write(operation).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    operation.exceptionCaught(future.getCause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Fails the operation if it gets no response in time,
+     * and recycles the connection so that the late response is never paired with another request.
+     */
+    private void expire(final Operation operation, final ConnectionPool pool,
+            final ConnectionPool.Connection conn, Timer timer) {
+        final long timeoutMillis = this.timeoutMillis;
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (!operation.isDone()) {
+                    operation.exceptionCaught(
+                            new TimeoutException("No response in " + timeoutMillis + "ms"));
+                    pool.recycle(conn);
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        operation.addListener(new OperationListener() {
+            @Override
+            public void operationComplete(Operation operation) {
+                timeout.cancel();
+            }
+        });
+    }
 
-        @Override
-        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            Operation op = requestedOperations.poll();
-            Response response = (Response) e.getMessage();
-            op.completed(response);
+    /**
+     * Fails the future with {@link TimeoutException} if it is not done in time.
+     * The operations behind the future are left to the client-wide timeout (see {@link #setTimeout(long)}).
+     * 
+     * @param future
+     *      The future to expire.
+     * @param timeoutMillis
+     *      The timeout in milliseconds. 0 or less returns the future as is.
+     * @return the future.
+     */
+    protected <V> KyotoTycoonFuture<V> expire(final KyotoTycoonFuture<V> future, final long timeoutMillis) {
+        Timer timer = this.timer;
+        if (timeoutMillis <= 0L || timer == null || future.isDone()) {
+            return future;
+        }
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                future.setFailure(new TimeoutException("Not done in " + timeoutMillis + "ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.addListener(new KyotoTycoonFutureListener<V>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<V> future) {
+                timeout.cancel();
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Sends a Kyoto Tycoon RPC to the specified server and returns the future of its result.
+     * 
+     * @param serverIndex
+     *      The index of the server.
+     * @param request
+     *      A request to Kyoto Tycoon.
+     * @param executor
+     *      The executor to notify the listeners of the future. If null, the I/O thread notifies them.
+     * @param converter
+     *      Converts the completed operation into the result of the future.
+     * @return the future of the result.
+     */
+    protected <V> KyotoTycoonFuture<V> submit(int serverIndex, Request request, Executor executor,
+            final ResultConverter<V> converter) {
+        final KyotoTycoonFuture<V> future = new KyotoTycoonFuture<V>(executor);
+        Operation operation;
+        try {
+            operation = submit(serverIndex, request);
+        } catch (RuntimeException e) {
+            future.setFailure(e);
+            return future;
         }
+        operation.addListener(new OperationListener() {
+            @Override
+            public void operationComplete(Operation operation) {
+                try {
+                    future.setSuccess(converter.convert(operation));
+                } catch (RuntimeException e) {
+                    future.setFailure(e);
+                }
+            }
+        });
+        return future;
+    }
 
-        @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
-            Operation op = requestedOperations.poll();
-            if (op != null) {
-                op.exceptionCaught(e.getCause());
-            } else {
-                if (ctx.canHandleUpstream()) {
-                    ctx.sendUpstream(e);
+    /**
+     * Returns a future that is completed when all the specified futures are done.
+     * The result is merged from the results of the futures, or the future fails with the first failure.
+     * 
+     * @param parts
+     *      The futures to wait for. Null elements are ignored.
+     * @param executor
+     *      The executor to notify the listeners of the future. If null, the I/O thread notifies them.
+     * @param merger
+     *      Merges the results of the futures.
+     * @return the future of the merged result.
+     */
+    protected <V, R> KyotoTycoonFuture<R> gather(final List<KyotoTycoonFuture<V>> parts, Executor executor,
+            final ResultMerger<V, R> merger) {
+        final KyotoTycoonFuture<R> future = new KyotoTycoonFuture<R>(executor);
+        final AtomicInteger remaining = new AtomicInteger(parts.size() + 1);
+        KyotoTycoonFutureListener<V> listener = new KyotoTycoonFutureListener<V>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<V> part) {
+                if (!part.isSuccess()) {
+                    future.setFailure(part.getCause());
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    completeGathering(parts, future, merger);
                 }
             }
+        };
+        for (KyotoTycoonFuture<V> part : parts) {
+            if (part != null) {
+                part.addListener(listener);
+            } else {
+                remaining.decrementAndGet();
+            }
+        }
+        if (remaining.decrementAndGet() == 0) {
+            completeGathering(parts, future, merger);
+        }
+        return future;
+    }
+
+    private static <V, R> void completeGathering(List<KyotoTycoonFuture<V>> parts, KyotoTycoonFuture<R> future,
+            ResultMerger<V, R> merger) {
+        if (future.isDone()) {
+            return;
+        }
+        List<V> results = new ArrayList<V>(parts.size());
+        for (KyotoTycoonFuture<V> part : parts) {
+            if (part != null) {
+                results.add(part.join());
+            }
+        }
+        try {
+            future.setSuccess(merger.merge(results));
+        } catch (RuntimeException e) {
+            future.setFailure(e);
         }
     }
+
+    /**
+     * Converts a completed {@link Operation} into the result of an asynchronous call.
+     * 
+     * @param <V> the type of the result.
+     */
+    protected interface ResultConverter<V> {
+        /**
+         * @throws KyotoTycoonOperationFailedException if the operation failed.
+         */
+        V convert(Operation operation) throws KyotoTycoonOperationFailedException;
+    }
+
+    /**
+     * Merges the results of the asynchronous calls to the servers.
+     * 
+     * @param <V> the type of the results to merge.
+     * @param <R> the type of the merged result.
+     */
+    protected interface ResultMerger<V, R> {
+        R merge(List<V> results);
+    }
     
     @Override
     public void set(byte[] key, byte[] value) {
@@ -0,0 +1,120 @@
+package kt4j;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Performs Kyoto Tycoon operations asynchronously.
+ * <p>
+ * Each method sends the request and returns immediately without waiting for the response.
+ * The returned future is completed when the response is received, and fails with
+ * {@link KyotoTycoonOperationFailedException} when the operation fails.
+ * The keys and values passed to the methods may be written to the server as they are,
+ * so they must not be modified until the returned future is done.
+ * </p>
+ *
+ * @author kumai
+ * @see KyotoTycoonClient
+ */
+public interface AsyncKyotoTycoonClient {
+
+    /**
+     * Retrieves the value of a record.
+     *
+     * @param key
+     *      the key of the record.
+     * @return the future of the value of the record, or null if the record doesn't exist.
+     */
+    KyotoTycoonFuture<byte[]> get(byte[] key);
+
+    /**
+     * Set the value of a record.
+     *
+     * @param key
+     *      the key of the record.
+     * @param value
+     *      the value of the record.
+     * @param xt
+     *      the expiration time of the record. If null is specified, no expiration time is specified.
+     */
+    KyotoTycoonFuture<Void> set(byte[] key, byte[] value, ExpirationTime xt);
+
+    /**
+     * Removes a record.
+     *
+     * @param key
+     *      the key of the record.
+     * @return the future that is true if the record was removed, or false if the record doesn't exist.
+     */
+    KyotoTycoonFuture<Boolean> remove(byte[] key);
+
+    /**
+     * Retrieves records at once.
+     *
+     * @param keys
+     *      the keys of the records.
+     * @return the future of the key-value pairs of the found records.
+     */
+    KyotoTycoonFuture<Map<byte[], byte[]>> getBulk(List<byte[]> keys);
+
+    /**
+     * Stores records at once.
+     *
+     * @param keyValuePairs
+     *      key-value pairs to store.
+     * @param xt
+     *      the expiration time of the record. If null is specified, no expiration time is specified.
+     */
+    KyotoTycoonFuture<Void> setBulk(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt);
+
+    /**
+     * Removes records at once.
+     *
+     * @param keys
+     *      the keys of the records.
+     * @return the future of the number of the removed records.
+     */
+    KyotoTycoonFuture<Long> removeBulk(List<byte[]> keys);
+
+    /**
+     * Adds a number to the numeric integer value of a record.
+     *
+     * @param key
+     *      the key of the record.
+     * @param num
+     *      the additional number.
+     * @param origin
+     *      the origin number if no record corresponds to the key.
+     * @param xt
+     *      the expiration time of the record. If null is specified, no expiration time is specified.
+     * @return the future of the result value.
+     */
+    KyotoTycoonFuture<Long> increment(byte[] key, long num, long origin, ExpirationTime xt);
+
+    /**
+     * Performs compare-and-swap.
+     *
+     * @param key
+     *      the key of the record.
+     * @param expect
+     *      the expected value. {@code null} means that no record corresponds.
+     * @param update
+     *      the new value.
+     * @param xt
+     *      the expiration time of the record. If null is specified, no expiration time is specified.
+     * @return the future that is true if successful, or false if the actual value was not equal
+     *      to the expected value.
+     */
+    KyotoTycoonFuture<Boolean> cas(byte[] key, byte[] expect, byte[] update, ExpirationTime xt);
+
+    /**
+     * Calls a procedure of the script language extension.
+     *
+     * @param procedureName
+     *      the name of the procedure to call.
+     * @param params
+     *      arbitrary records.
+     * @return the future of the output records of the procedure.
+     */
+    KyotoTycoonFuture<Map<byte[], byte[]>> playScript(String procedureName, Map<byte[], byte[]> params);
+}
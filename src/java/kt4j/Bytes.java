@@ -5,8 +5,6 @@ import java.util.Arrays;
 import java.util.Map;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.handler.codec.base64.Base64;
 
 /**
  * A utility class that provides various common operations related with bytes.
@@ -72,22 +70,273 @@ public class Bytes {
      * Encodes the specified bytes to <a href="http://en.wikipedia.org/wiki/Base64">Base64</a> notation.
      */
     public static byte[] base64Encode(byte[] bytes) {
-        ChannelBuffer src = ChannelBuffers.wrappedBuffer(bytes);
-        ChannelBuffer encodedBuff = Base64.encode(src, false);
-        byte[] encodedBytes = new byte[encodedBuff.readableBytes()];
-        encodedBuff.readBytes(encodedBytes);
-        return encodedBytes;
+        byte[] encoded = new byte[base64EncodedLength(bytes.length)];
+        base64Encode(bytes, encoded, 0);
+        return encoded;
+    }
+    
+    /**
+     * Encodes the specified bytes to <a href="http://en.wikipedia.org/wiki/Base64">Base64</a> notation,
+     * and writes them to the buffer.
+     */
+    public static void base64Encode(byte[] bytes, ChannelBuffer dst) {
+        int length = base64EncodedLength(bytes.length);
+        dst.ensureWritableBytes(length);
+        if (dst.hasArray()) {
+            base64Encode(bytes, dst.array(), dst.arrayOffset() + dst.writerIndex());
+            dst.writerIndex(dst.writerIndex() + length);
+        } else {
+            dst.writeBytes(base64Encode(bytes));
+        }
+    }
+
+    private static void base64Encode(byte[] src, byte[] dst, int offset) {
+        int di = offset;
+        int si = 0;
+        for (int end = src.length - src.length % 3; si < end; si += 3) {
+            int bits = (src[si] & 0xFF) << 16 | (src[si + 1] & 0xFF) << 8 | (src[si + 2] & 0xFF);
+            dst[di++] = BASE64_ALPHABET[bits >>> 18];
+            dst[di++] = BASE64_ALPHABET[(bits >>> 12) & 0x3F];
+            dst[di++] = BASE64_ALPHABET[(bits >>> 6) & 0x3F];
+            dst[di++] = BASE64_ALPHABET[bits & 0x3F];
+        }
+        int remaining = src.length - si;
+        if (remaining > 0) {
+            int bits = (src[si] & 0xFF) << 16 | ((remaining == 2) ? (src[si + 1] & 0xFF) << 8 : 0);
+            dst[di++] = BASE64_ALPHABET[bits >>> 18];
+            dst[di++] = BASE64_ALPHABET[(bits >>> 12) & 0x3F];
+            dst[di++] = (remaining == 2) ? BASE64_ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+            dst[di++] = '=';
+        }
     }
 
     /**
      * Decodes the specified bytes from <a href="http://en.wikipedia.org/wiki/Base64">Base64</a> notation.
+     *
+     * @throws IllegalArgumentException if the bytes are not valid Base64.
+     */
+    public static byte[] base64Decode(byte[] encodedBytes) throws IllegalArgumentException {
+        return base64Decode(encodedBytes, 0, encodedBytes.length);
+    }
+
+    /**
+     * Decodes the bytes of the buffer from <a href="http://en.wikipedia.org/wiki/Base64">Base64</a> notation.
+     * The reader index of the buffer is not changed.
+     *
+     * @param src the buffer that contains the encoded bytes.
+     * @param index the index of the first encoded byte.
+     * @param length the number of the encoded bytes.
+     * @throws IllegalArgumentException if the bytes are not valid Base64.
+     */
+    public static byte[] base64Decode(ChannelBuffer src, int index, int length) throws IllegalArgumentException {
+        if (src.hasArray()) {
+            return base64Decode(src.array(), src.arrayOffset() + index, length);
+        }
+        byte[] encodedBytes = new byte[length];
+        src.getBytes(index, encodedBytes);
+        return base64Decode(encodedBytes, 0, length);
+    }
+
+    private static byte[] base64Decode(byte[] src, int offset, int length) throws IllegalArgumentException {
+        int end = offset + length;
+        while (end > offset && src[end - 1] == '=') {
+            --end;
+        }
+        byte[] decoded = new byte[(end - offset) * 6 / 8];
+        int di = 0;
+        int bits = 0;
+        int numBits = 0;
+        for (int i = offset; i < end; ++i) {
+            int sextet = BASE64_DECODE_TABLE[src[i] & 0xFF];
+            if (sextet < 0) {
+                if (sextet == BASE64_WHITE_SPACE) {
+                    continue;
+                }
+                throw new IllegalArgumentException("invalid Base64 character at " + (i - offset) + ": " + (src[i] & 0xFF));
+            }
+            bits = (bits << 6) | sextet;
+            numBits += 6;
+            if (numBits >= 8) {
+                numBits -= 8;
+                decoded[di++] = (byte) (bits >>> numBits);
+            }
+        }
+        return (di == decoded.length) ? decoded : Arrays.copyOf(decoded, di);
+    }
+
+    /**
+     * Encodes the specified bytes to the <code>application/x-www-form-urlencoded</code> format
+     * byte by byte, as {@link java.net.URLEncoder} does for the UTF-8 bytes of a string.
+     * Any bytes can be encoded, not only the valid UTF-8 sequences.
+     */
+    public static byte[] urlEncode(byte[] bytes) {
+        byte[] encoded = new byte[urlEncodedLength(bytes)];
+        urlEncode(bytes, encoded, 0);
+        return encoded;
+    }
+
+    /**
+     * Encodes the specified bytes to the <code>application/x-www-form-urlencoded</code> format,
+     * and writes them to the buffer.
+     */
+    public static void urlEncode(byte[] bytes, ChannelBuffer dst) {
+        int length = urlEncodedLength(bytes);
+        dst.ensureWritableBytes(length);
+        if (dst.hasArray()) {
+            urlEncode(bytes, dst.array(), dst.arrayOffset() + dst.writerIndex());
+            dst.writerIndex(dst.writerIndex() + length);
+        } else {
+            dst.writeBytes(urlEncode(bytes));
+        }
+    }
+
+    private static void urlEncode(byte[] src, byte[] dst, int offset) {
+        int di = offset;
+        for (byte b : src) {
+            if (URL_UNRESERVED[b & 0xFF]) {
+                dst[di++] = b;
+            } else if (b == ' ') {
+                dst[di++] = '+';
+            } else {
+                dst[di++] = '%';
+                dst[di++] = HEX_DIGITS[(b >>> 4) & 0x0F];
+                dst[di++] = HEX_DIGITS[b & 0x0F];
+            }
+        }
+    }
+
+    /**
+     * Tests the byte is encoded to a percent-escaped sequence by {@link #urlEncode(byte[])}.
+     */
+    public static boolean urlEscaped(byte b) {
+        return !URL_UNRESERVED[b & 0xFF] && b != ' ';
+    }
+
+    /**
+     * Returns the length of the bytes encoded by {@link #urlEncode(byte[])}.
+     */
+    public static int urlEncodedLength(byte[] bytes) {
+        int length = bytes.length;
+        for (byte b : bytes) {
+            if (urlEscaped(b)) {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the specified bytes from the <code>application/x-www-form-urlencoded</code> format
+     * byte by byte, so the decoded bytes need not be valid UTF-8.
+     *
+     * @throws IllegalArgumentException if a percent sign is not followed by two hex digits.
+     */
+    public static byte[] urlDecode(byte[] encodedBytes) throws IllegalArgumentException {
+        return urlDecode(encodedBytes, 0, encodedBytes.length);
+    }
+
+    /**
+     * Decodes the bytes of the buffer from the <code>application/x-www-form-urlencoded</code> format.
+     * The reader index of the buffer is not changed.
+     *
+     * @param src the buffer that contains the encoded bytes.
+     * @param index the index of the first encoded byte.
+     * @param length the number of the encoded bytes.
+     * @throws IllegalArgumentException if a percent sign is not followed by two hex digits.
      */
-    public static byte[] base64Decode(byte[] encodedBytes) {
-        ChannelBuffer src = ChannelBuffers.wrappedBuffer(encodedBytes);
-        ChannelBuffer decodedBuff = Base64.decode(src);
-        byte[] decodedBytes = new byte[decodedBuff.readableBytes()];
-        decodedBuff.readBytes(decodedBytes);
-        return decodedBytes;
+    public static byte[] urlDecode(ChannelBuffer src, int index, int length) throws IllegalArgumentException {
+        if (src.hasArray()) {
+            return urlDecode(src.array(), src.arrayOffset() + index, length);
+        }
+        byte[] encodedBytes = new byte[length];
+        src.getBytes(index, encodedBytes);
+        return urlDecode(encodedBytes, 0, length);
+    }
+
+    private static byte[] urlDecode(byte[] src, int offset, int length) throws IllegalArgumentException {
+        int end = offset + length;
+        int decodedLength = length;
+        for (int i = offset; i < end; ++i) {
+            if (src[i] == '%') {
+                if (i + 2 >= end) {
+                    throw new IllegalArgumentException("incomplete escape sequence at " + (i - offset));
+                }
+                decodedLength -= 2;
+                i += 2;
+            }
+        }
+
+        byte[] decoded = new byte[decodedLength];
+        int di = 0;
+        for (int i = offset; i < end; ++i) {
+            byte b = src[i];
+            if (b == '%') {
+                int high = hexValue(src[i + 1]);
+                int low = hexValue(src[i + 2]);
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("illegal hex characters in escape sequence at " + (i - offset));
+                }
+                decoded[di++] = (byte) ((high << 4) | low);
+                i += 2;
+            } else if (b == '+') {
+                decoded[di++] = ' ';
+            } else {
+                decoded[di++] = b;
+            }
+        }
+        return decoded;
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static final byte[] HEX_DIGITS = utf8("0123456789ABCDEF");
+    private static final boolean[] URL_UNRESERVED = new boolean[256];
+    static {
+        for (int c = 'a'; c <= 'z'; ++c) {
+            URL_UNRESERVED[c] = true;
+        }
+        for (int c = 'A'; c <= 'Z'; ++c) {
+            URL_UNRESERVED[c] = true;
+        }
+        for (int c = '0'; c <= '9'; ++c) {
+            URL_UNRESERVED[c] = true;
+        }
+        URL_UNRESERVED['.'] = true;
+        URL_UNRESERVED['-'] = true;
+        URL_UNRESERVED['*'] = true;
+        URL_UNRESERVED['_'] = true;
+    }
+
+    /**
+     * Returns the length of the Base64 notation of the specified number of bytes.
+     */
+    public static int base64EncodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    private static final byte[] BASE64_ALPHABET =
+            utf8("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+    private static final int BASE64_INVALID = -1;
+    private static final int BASE64_WHITE_SPACE = -2;
+    private static final int[] BASE64_DECODE_TABLE = new int[256];
+    static {
+        Arrays.fill(BASE64_DECODE_TABLE, BASE64_INVALID);
+        for (int i = 0; i < BASE64_ALPHABET.length; ++i) {
+            BASE64_DECODE_TABLE[BASE64_ALPHABET[i]] = i;
+        }
+        BASE64_DECODE_TABLE[' '] = BASE64_WHITE_SPACE;
+        BASE64_DECODE_TABLE['\t'] = BASE64_WHITE_SPACE;
+        BASE64_DECODE_TABLE['\r'] = BASE64_WHITE_SPACE;
+        BASE64_DECODE_TABLE['\n'] = BASE64_WHITE_SPACE;
     }
 
     /**
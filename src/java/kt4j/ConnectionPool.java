@@ -0,0 +1,345 @@
+package kt4j;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * A pool of the connections to a Kyoto Tycoon server.
+ * <p>
+ * The pool opens <code>minSize</code> connections when started, and opens another one
+ * (up to <code>maxSize</code>) whenever every connection has operations waiting for responses.
+ * Connections that have been idle longer than the idle timeout are closed
+ * until the pool shrinks back to <code>minSize</code>.
+ * Lost connections are replaced in the background, never on the thread sending a request.
+ * </p>
+ * <p>
+ * Each connection has its own {@link KTChannelHandler}, so the responses are still paired
+ * with the requests in the order they were written to that connection.
+ * </p>
+ *
+ * @author kumai
+ */
+class ConnectionPool {
+    private static final Connection[] EMPTY = new Connection[0];
+    private static final long RETIRE_DELAY_MILLIS = 1000L;
+
+    private final ClientBootstrap bootstrap;
+    private final SocketAddress server;
+    private final int minSize;
+    private final int maxSize;
+    private final ConnectionSelection selection;
+    private final long idleTimeoutMillis;
+    private final Timer timer;
+
+    private volatile Connection[] connections = EMPTY;
+    /** The connections removed from the pool but not closed yet. */
+    private final Set<Connection> retiring = new HashSet<Connection>();
+    /** Notified when the connection being opened is added to the pool. Null if none is being opened. */
+    private final AtomicReference<KyotoTycoonFuture<Void>> connecting =
+            new AtomicReference<KyotoTycoonFuture<Void>>();
+    private final AtomicInteger roundRobinIndex = new AtomicInteger();
+    private volatile boolean closed;
+
+    ConnectionPool(ClientBootstrap bootstrap, SocketAddress server, int minSize, int maxSize,
+            ConnectionSelection selection, long idleTimeoutMillis, Timer timer) {
+        this.bootstrap = bootstrap;
+        this.server = server;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.selection = selection;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.timer = timer;
+    }
+
+    /**
+     * Opens the minimum number of the connections.
+     */
+    void start() throws KyotoTycoonOperationFailedException {
+        try {
+            for (int i = 0; i < minSize; ++i) {
+                Connection conn = connect();
+                if (!add(conn)) {
+                    conn.channel.close();
+                }
+            }
+        } catch (KyotoTycoonOperationFailedException e) {
+            stop();
+            throw e;
+        }
+        scheduleReaper();
+    }
+
+    /**
+     * Closes all the connections.
+     */
+    void stop() {
+        ArrayList<Connection> snapshot;
+        synchronized (this) {
+            closed = true;
+            snapshot = new ArrayList<Connection>(retiring);
+            snapshot.addAll(Arrays.asList(connections));
+            connections = EMPTY;
+            retiring.clear();
+        }
+        for (Connection conn : snapshot) {
+            conn.channel.close().awaitUninterruptibly(10000);
+        }
+    }
+
+    SocketAddress getServer() {
+        return server;
+    }
+
+    /**
+     * Returns the number of the open connections.
+     */
+    int size() {
+        return connections.length;
+    }
+
+    /**
+     * Chooses a connection to send a request.
+     *
+     * @return the connection, or null if all the connections have been lost. See {@link #reconnect()}.
+     */
+    Connection acquire() {
+        if (closed) {
+            throw new IllegalStateException("The channel is not ready.");
+        }
+
+        Connection conn = select();
+        if (conn == null) {
+            return null;
+        } else if (conn.handler.getPendingCount() > 0) {
+            grow();
+        }
+
+        conn.lastUsedMillis = System.currentTimeMillis();
+        return conn;
+    }
+
+    /**
+     * Opens a connection in the background after all the connections have been lost.
+     * The caller never blocks, since it may be an I/O thread or a timer thread.
+     *
+     * @return the future notified when the connection has been added to the pool, or has failed to open.
+     */
+    KyotoTycoonFuture<Void> reconnect() {
+        KyotoTycoonFuture<Void> connected = grow();
+        if (connected == null) {
+            // the pool is full; a connection has come back meanwhile
+            connected = new KyotoTycoonFuture<Void>();
+            connected.setSuccess(null);
+        }
+        return connected;
+    }
+
+    /**
+     * Removes a connection that can no longer be trusted from the pool, and closes it.
+     * The operations still waiting on the connection fail.
+     */
+    void recycle(Connection conn) {
+        remove(conn);
+        conn.channel.close();
+        if (!closed && connections.length < minSize) {
+            grow();
+        }
+    }
+
+    private Connection select() {
+        Connection[] snapshot = connections;
+        if (snapshot.length == 0) {
+            return null;
+        }
+        if (snapshot.length == 1) {
+            return snapshot[0];
+        }
+
+        int start = (roundRobinIndex.getAndIncrement() & Integer.MAX_VALUE) % snapshot.length;
+        if (selection == ConnectionSelection.ROUND_ROBIN) {
+            return snapshot[start];
+        }
+
+        Connection least = null;
+        int leastPending = Integer.MAX_VALUE;
+        for (int i = 0; i < snapshot.length; ++i) {
+            Connection conn = snapshot[(start + i) % snapshot.length];
+            int pending = conn.handler.getPendingCount();
+            if (pending < leastPending) {
+                least = conn;
+                leastPending = pending;
+                if (pending == 0) {
+                    break;
+                }
+            }
+        }
+        return least;
+    }
+
+    /**
+     * Opens another connection in the background, unless one is being opened or the pool is full.
+     *
+     * @return the future notified when the connection being opened is added to the pool,
+     *      or null if the pool is full.
+     */
+    private KyotoTycoonFuture<Void> grow() {
+        KyotoTycoonFuture<Void> pending = connecting.get();
+        if (pending != null || connections.length >= maxSize) {
+            return pending;
+        }
+        final KyotoTycoonFuture<Void> connected = new KyotoTycoonFuture<Void>();
+        if (!connecting.compareAndSet(null, connected)) {
+            return connecting.get();
+        }
+
+        bootstrap.connect(server).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    Connection conn = new Connection(future.getChannel());
+                    if (!add(conn)) {
+                        conn.channel.close();
+                    }
+                }
+                connecting.set(null);
+                if (future.isSuccess()) {
+                    connected.setSuccess(null);
+                } else {
+                    connected.setFailure(new KyotoTycoonOperationFailedException(
+                            "Failed to connect: " + server, future.getCause()));
+                }
+            }
+        });
+        return connected;
+    }
+
+    private Connection connect() throws KyotoTycoonOperationFailedException {
+        ChannelFuture channelFuture = bootstrap.connect(server);
+        channelFuture.awaitUninterruptibly();
+        if (!channelFuture.isSuccess()) {
+            throw new KyotoTycoonOperationFailedException("Failed to connect: " + server, channelFuture.getCause());
+        }
+        return new Connection(channelFuture.getChannel());
+    }
+
+    private synchronized boolean add(final Connection conn) {
+        if (closed || connections.length >= maxSize) {
+            return false;
+        }
+
+        Connection[] newConnections = new Connection[connections.length + 1];
+        System.arraycopy(connections, 0, newConnections, 0, connections.length);
+        newConnections[connections.length] = conn;
+        connections = newConnections;
+
+        conn.channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                remove(conn);
+            }
+        });
+        return true;
+    }
+
+    private synchronized boolean remove(Connection conn) {
+        int index = -1;
+        for (int i = 0; i < connections.length; ++i) {
+            if (connections[i] == conn) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return false;
+        }
+
+        Connection[] newConnections = new Connection[connections.length - 1];
+        System.arraycopy(connections, 0, newConnections, 0, index);
+        System.arraycopy(connections, index + 1, newConnections, index, newConnections.length - index);
+        connections = newConnections;
+        return true;
+    }
+
+    private void scheduleReaper() {
+        if (idleTimeoutMillis <= 0 || closed) {
+            return;
+        }
+
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                reapIdleConnections();
+                scheduleReaper();
+            }
+        }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void reapIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Connection conn : connections) {
+            if (now - conn.lastUsedMillis < idleTimeoutMillis || conn.handler.getPendingCount() > 0) {
+                continue;
+            }
+            synchronized (this) {
+                if (connections.length <= minSize || !remove(conn)) {
+                    return;
+                }
+                retiring.add(conn);
+            }
+            retire(conn);
+        }
+    }
+
+    /**
+     * Closes a connection removed from the pool once the callers that chose it
+     * just before the removal have got their responses.
+     * {@link #stop()} closes it if the pool stops earlier.
+     */
+    private void retire(final Connection conn) {
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                synchronized (ConnectionPool.this) {
+                    if (!retiring.contains(conn)) {
+                        return;     // closed by stop()
+                    }
+                    if (conn.handler.getPendingCount() > 0) {
+                        retire(conn);
+                        return;
+                    }
+                    retiring.remove(conn);
+                }
+                conn.channel.close();
+            }
+        }, RETIRE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A connection in the pool.
+     */
+    static class Connection {
+        final Channel channel;
+        final KTChannelHandler handler;
+        volatile long lastUsedMillis;
+
+        Connection(Channel channel) {
+            this.channel = channel;
+            this.handler = channel.getPipeline().get(KTChannelHandler.class);
+            this.lastUsedMillis = System.currentTimeMillis();
+        }
+    }
+}
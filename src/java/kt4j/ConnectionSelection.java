@@ -0,0 +1,19 @@
+package kt4j;
+
+/**
+ * Policies to choose a connection from the connection pool of a Kyoto Tycoon server.
+ *
+ * @author kumai
+ */
+public enum ConnectionSelection {
+    /**
+     * Uses the connection that has the fewest operations waiting for their responses.
+     */
+    LEAST_IN_FLIGHT,
+
+    /**
+     * Uses each connection in turn.
+     */
+    ROUND_ROBIN,
+    ;
+}
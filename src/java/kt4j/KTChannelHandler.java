@@ -0,0 +1,188 @@
+package kt4j;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Pairs the responses from Kyoto Tycoon with the requested {@link Operation}s.
+ * <p>
+ * Kyoto Tycoon answers the requests in the order they were written,
+ * so each channel keeps its own FIFO of the operations waiting for a response.
+ * </p>
+ * <p>
+ * The FIFO is a lock-free linked list threaded through {@link Operation#next}.
+ * Writer threads append their operations and leave; whichever thread finds the list idle
+ * drains it and writes the operations downstream in the list order, so the order of the writes
+ * always matches the order the responses are paired in. The I/O thread consumes the list
+ * from its head as the responses arrive.
+ * </p>
+ * <p>
+ * An operation whose request expects no reply stays in the list only to keep its place in the
+ * write order. It is done when its write completes, is never paired with a response,
+ * and is dropped from the head of the list once the draining thread has passed it.
+ * </p>
+ *
+ * @author kumai
+ */
+class KTChannelHandler extends SimpleChannelHandler {
+    /** The last operation appended by the writers. */
+    private final AtomicReference<Operation> tail;
+
+    /** The last operation paired with a response. Its successor is the next one to pair. */
+    private final AtomicReference<Operation> head;
+
+    /** The last operation written downstream. Only the draining thread touches it. */
+    private Operation written;
+
+    /** The number of the drain requests. The thread that increments it from 0 drains the list. */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    KTChannelHandler() {
+        Operation stub = new Operation(STUB_REQUEST);
+        tail = new AtomicReference<Operation>(stub);
+        head = new AtomicReference<Operation>(stub);
+        written = stub;
+    }
+
+    /**
+     * Returns the number of the operations waiting for a response on this channel.
+     */
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final Operation op = (Operation) e.getMessage();
+        if (!op.getRequest().expectsReply()) {
+            e.getFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        op.completed(WRITTEN);
+                    }
+                }
+            });
+        }
+        op.writeFuture = e.getFuture();
+        pendingCount.incrementAndGet();
+        tail.getAndSet(op).next = op;
+
+        if (wip.getAndIncrement() != 0) {
+            return;     // the draining thread writes it
+        }
+        int missed = 1;
+        do {
+            Operation next;
+            while ((next = written.next) != null) {
+                written = next;
+                ChannelFuture future = next.writeFuture;
+                next.writeFuture = null;
+                Channels.write(ctx, future, next.getRequest());
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+        trimNoReplies();
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Operation op = poll(true);
+        Response response = (Response) e.getMessage();
+        op.completed(response);
+        trimNoReplies();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+        Operation op = poll(false);
+        if (op != null) {
+            op.exceptionCaught(e.getCause());
+        } else {
+            if (ctx.canHandleUpstream()) {
+                ctx.sendUpstream(e);
+            }
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Operation op;
+        while ((op = poll(false)) != null) {
+            op.exceptionCaught(new ClosedChannelException());
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * Takes the oldest operation waiting for a response.
+     * The operations that expect no reply before it are dropped.
+     *
+     * @param unlink true to unlink the previous head so that the completed operations don't keep
+     *      the later ones reachable. Only safe when the taken operation has been written.
+     */
+    private Operation poll(boolean unlink) {
+        for (;;) {
+            Operation h = head.get();
+            Operation next = h.next;
+            if (next == null) {
+                return null;
+            }
+            if (next == h) {
+                continue;   // unlinked by another thread; read the new head
+            }
+            if (head.compareAndSet(h, next)) {
+                if (unlink) {
+                    h.next = h;
+                }
+                pendingCount.decrementAndGet();
+                if (next.getRequest().expectsReply()) {
+                    return next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the operations that expect no reply from the head of the list,
+     * as far as the draining thread has written them.
+     */
+    private void trimNoReplies() {
+        for (;;) {
+            Operation h = head.get();
+            Operation next = h.next;
+            if (next == null || next == h) {
+                return;
+            }
+            if (next.getRequest().expectsReply() || next.writeFuture != null) {
+                return;     // waits for a response, or not written yet
+            }
+            if (head.compareAndSet(h, next)) {
+                h.next = h;
+                pendingCount.decrementAndGet();
+            }
+        }
+    }
+
+    private static final Request STUB_REQUEST = new Request(Request.Command.VOID) {};
+
+    /** The response of the operations that expect no reply, given when they are written. */
+    private static final Response WRITTEN = new Response() {
+        @Override
+        public boolean isSucceeded() {
+            return true;
+        }
+    };
+}
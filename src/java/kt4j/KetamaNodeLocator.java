@@ -0,0 +1,122 @@
+package kt4j;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Locates the server for each key with <a href="http://www.last.fm/user/RJ/journal/2007/04/10/rz_libketama_-_a_consistent_hashing_algo_for_memcache_clients">ketama</a>
+ * consistent hashing.
+ * <p>
+ * Each server is placed on the continuum at {@value #POINTS_PER_SERVER} points (virtual nodes)
+ * computed from the MD5 digests of <code>"address:port-N"</code>, the same way as libketama.
+ * A key is assigned to the first point at or after the hash of the key.
+ * </p>
+ *
+ * @author kumai
+ */
+class KetamaNodeLocator {
+    static final int POINTS_PER_SERVER = 160;
+    private static final int POINTS_PER_DIGEST = 4;
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new Error("Shouldn't reached here.", e);
+            }
+        }
+    };
+
+    private final long[] points;
+    private final int[] serverIndexes;
+
+    KetamaNodeLocator(SocketAddress... servers) {
+        int numPoints = servers.length * POINTS_PER_SERVER;
+        long[] unsortedPoints = new long[numPoints];
+        int[] unsortedIndexes = new int[numPoints];
+
+        int n = 0;
+        for (int i = 0; i < servers.length; ++i) {
+            String label = label(servers[i]);
+            for (int j = 0; j < POINTS_PER_SERVER / POINTS_PER_DIGEST; ++j) {
+                byte[] digest = md5(Bytes.utf8(label + "-" + j));
+                for (int h = 0; h < POINTS_PER_DIGEST; ++h) {
+                    unsortedPoints[n] = hash(digest, h);
+                    unsortedIndexes[n] = i;
+                    ++n;
+                }
+            }
+        }
+
+        // sort the points along with their servers
+        final long[] hashes = unsortedPoints;
+        Integer[] order = new Integer[numPoints];
+        for (int i = 0; i < numPoints; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ha = hashes[a];
+                long hb = hashes[b];
+                return (ha < hb) ? -1 : ((ha == hb) ? 0 : 1);
+            }
+        });
+
+        points = new long[numPoints];
+        serverIndexes = new int[numPoints];
+        for (int i = 0; i < numPoints; ++i) {
+            points[i] = unsortedPoints[order[i]];
+            serverIndexes[i] = unsortedIndexes[order[i]];
+        }
+    }
+
+    /**
+     * Returns the index of the server that the specified key belongs to.
+     */
+    int locate(byte[] key) {
+        if (serverIndexes.length == 0) {
+            throw new IllegalStateException("no servers");
+        }
+        long hash = hash(md5(key), 0);
+        int pos = Arrays.binarySearch(points, hash);
+        if (pos < 0) {
+            pos = -(pos + 1);
+        }
+        if (pos >= points.length) {
+            pos = 0;
+        }
+        return serverIndexes[pos];
+    }
+
+    static String label(SocketAddress server) {
+        if (server instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) server;
+            InetAddress inetAddress = address.getAddress();
+            String host = (inetAddress != null) ? inetAddress.getHostAddress() : address.getHostName();
+            return host + ":" + address.getPort();
+        } else {
+            return String.valueOf(server);
+        }
+    }
+
+    private static byte[] md5(byte[] data) {
+        MessageDigest md5 = MD5.get();
+        md5.reset();
+        return md5.digest(data);
+    }
+
+    private static long hash(byte[] digest, int h) {
+        return ((long) (digest[3 + h * 4] & 0xFF) << 24)
+                | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+                | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+                | ((long) (digest[0 + h * 4] & 0xFF));
+    }
+}
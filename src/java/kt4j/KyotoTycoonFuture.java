@@ -0,0 +1,235 @@
+package kt4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous Kyoto Tycoon operation.
+ * <p>
+ * The listeners added by {@link #addListener(KyotoTycoonFutureListener)} are notified
+ * by the thread that completes the future (usually the I/O thread), or by the {@link Executor}
+ * specified on the creation.
+ * </p>
+ * <p>
+ * Requests that have been sent to Kyoto Tycoon cannot be cancelled,
+ * so {@link #cancel(boolean)} always returns false.
+ * </p>
+ *
+ * @param <V> the type of the result.
+ * @author kumai
+ */
+public class KyotoTycoonFuture<V> implements Future<V> {
+    private final Executor executor;
+
+    private boolean done;
+    private V result;
+    private Throwable cause;
+    private List<KyotoTycoonFutureListener<V>> listeners;
+
+    /**
+     * Creates a new instance whose listeners are notified by the completing thread.
+     */
+    public KyotoTycoonFuture() {
+        this(null);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param executor
+     *      the executor to notify the listeners. If null, the completing thread notifies them.
+     */
+    public KyotoTycoonFuture(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Completes this future successfully.
+     *
+     * @return true if this future was completed by this call.
+     */
+    public boolean setSuccess(V result) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            this.done = true;
+            notifyAll();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Completes this future with a failure.
+     *
+     * @return true if this future was completed by this call.
+     */
+    public boolean setFailure(Throwable cause) throws NullPointerException {
+        if (cause == null) {
+            throw new NullPointerException("cause");
+        }
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.cause = cause;
+            this.done = true;
+            notifyAll();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Adds a listener that is notified when this future is done.
+     * If this future is already done, the listener is notified immediately.
+     */
+    public void addListener(KyotoTycoonFutureListener<V> listener) throws NullPointerException {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<KyotoTycoonFutureListener<V>>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Tests this future is completed successfully.
+     */
+    public synchronized boolean isSuccess() {
+        return done && cause == null;
+    }
+
+    /**
+     * Returns the cause of the failure, or null if this future is not failed.
+     */
+    public synchronized Throwable getCause() {
+        return cause;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    /**
+     * Waits for this future uninterruptibly and returns the result.
+     *
+     * @return the result.
+     * @throws KyotoTycoonOperationFailedException if the operation failed.
+     */
+    public V join() throws KyotoTycoonOperationFailedException {
+        boolean interrupted = false;
+        try {
+            synchronized (this) {
+                while (!done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (cause == null) {
+                    return result;
+                } else if (cause instanceof KyotoTycoonOperationFailedException) {
+                    throw (KyotoTycoonOperationFailedException) cause;
+                } else {
+                    throw new KyotoTycoonOperationFailedException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private V getResult() throws ExecutionException {
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return result;
+    }
+
+    private void notifyListeners() {
+        List<KyotoTycoonFutureListener<V>> listeners;
+        synchronized (this) {
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+        if (listeners != null) {
+            for (KyotoTycoonFutureListener<V> listener : listeners) {
+                notifyListener(listener);
+            }
+        }
+    }
+
+    private void notifyListener(final KyotoTycoonFutureListener<V> listener) {
+        if (executor != null) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.operationComplete(KyotoTycoonFuture.this);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // notify in this thread instead
+            }
+        }
+
+        try {
+            listener.operationComplete(this);
+        } catch (RuntimeException e) {
+            // a broken listener must not break the I/O thread
+        }
+    }
+}
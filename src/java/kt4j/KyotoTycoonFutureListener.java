@@ -0,0 +1,16 @@
+package kt4j;
+
+/**
+ * Listens to the completion of a {@link KyotoTycoonFuture}.
+ *
+ * @param <V> the type of the result.
+ * @author kumai
+ */
+public interface KyotoTycoonFutureListener<V> {
+    /**
+     * Invoked when the future is done.
+     *
+     * @param future the completed future.
+     */
+    void operationComplete(KyotoTycoonFuture<V> future);
+}
@@ -1,22 +1,54 @@
 package kt4j;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.netty.channel.ChannelFuture;
 
 /**
  * This represents an operation to Kyoto Tycoon, eg: get, set, remove, etc.
- * 
+ * <p>
+ * The completion is signalled through a volatile state and a single waiting thread,
+ * which spins briefly on multiprocessors before parking.
+ * A waiter that finds the operation already done returns without parking.
+ * </p>
+ *
  * @author kumai
  */
 public class Operation {
-    private final CountDownLatch latch = new CountDownLatch(1);
-
+    private static final int PENDING = 0;
+    private static final int COMPLETING = 1;
+    private static final int DONE = 2;
+    
+    private static final int MAX_SPINS = (Runtime.getRuntime().availableProcessors() < 2) ? 0 : 64;
+    
+    /** The interval that the waiters other than the first one poll the state at. */
+    private static final long EXTRA_WAITER_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    
+    private static final AtomicIntegerFieldUpdater<Operation> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Operation.class, "state");
+    private static final AtomicReferenceFieldUpdater<Operation, Thread> WAITER =
+            AtomicReferenceFieldUpdater.newUpdater(Operation.class, Thread.class, "waiter");
+    
     private final Request request;
     private Response response;
     private Throwable exception;
+    private volatile int state;
+    private volatile Thread waiter;
+    private volatile List<OperationListener> listeners;
     
     private final long timeoutMillis;
     
+    /** The next operation in the FIFO of {@link KTChannelHandler}. */
+    volatile Operation next;
+    
+    /** The future of the write, held until {@link KTChannelHandler} writes this operation. */
+    volatile ChannelFuture writeFuture;
+    
     public Operation(Request request) throws NullPointerException {
         this(request, 0L);
     }
@@ -25,7 +57,7 @@ public class Operation {
         if (request == null) {
             throw new NullPointerException("request");
         }
-        
+
         this.request = request;
         this.timeoutMillis = timeoutMillis;
     }
@@ -43,51 +75,150 @@ public class Operation {
     }
     
     public Operation await() throws InterruptedException {
-        if (timeoutMillis > 0L) {
-            latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
-        } else {
-            latch.await();
+        if (!awaitDone(true)) {
+            throw new InterruptedException();
         }
         return this;
     }
     
     public Operation awaitUninterruptibly() {
+        awaitDone(false);
+        return this;
+    }
+    
+    /**
+     * Waits until this operation is done or the timeout has passed.
+     *
+     * @return false if interrupted while <code>interruptible</code> is true.
+     */
+    private boolean awaitDone(boolean interruptible) {
+        if (state == DONE) {
+            return true;
+        }
+        for (int spins = MAX_SPINS; spins > 0; --spins) {
+            if (state == DONE) {
+                return true;
+            }
+        }
+
+        Thread current = Thread.currentThread();
+        boolean single = WAITER.compareAndSet(this, null, current);
+        long deadline = (timeoutMillis > 0L) ?
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0L;
+        boolean interrupted = false;
         try {
-            if (timeoutMillis > 0L) {
-                latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
-            } else {
-                latch.await();
+            while (state != DONE) {
+                long parkNanos = single ? 0L : EXTRA_WAITER_POLL_NANOS;
+                if (deadline != 0L) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        break;
+                    }
+                    parkNanos = (parkNanos == 0L) ? remaining : Math.min(parkNanos, remaining);
+                }
+                if (parkNanos == 0L) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, parkNanos);
+                }
+                if (Thread.interrupted()) {
+                    if (interruptible) {
+                        return false;
+                    }
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (single) {
+                waiter = null;
+            }
+            if (interrupted) {
+                current.interrupt();
             }
-        } catch (InterruptedException ignored) {
         }
-        return this;
+        return true;
     }
     
     public void completed(Response response) {
+        if (!STATE.compareAndSet(this, PENDING, COMPLETING)) {
+            return;
+        }
         this.response = response;
-        latch.countDown();
+        done();
     }
     
     public void exceptionCaught(Throwable e) {
+        if (!STATE.compareAndSet(this, PENDING, COMPLETING)) {
+            return;
+        }
         this.exception = e;
-        latch.countDown();
+        done();
+    }
+    
+    private void done() {
+        state = DONE;
+        Thread waiter = this.waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        if (listeners != null) {
+            notifyListeners();
+        }
+    }
+    
+    /**
+     * Adds a listener that is notified when this operation is done.
+     * If this operation is already done, the listener is notified immediately.
+     *
+     * @param listener the listener to add.
+     */
+    public void addListener(OperationListener listener) {
+        boolean added = false;
+        synchronized (this) {
+            if (state != DONE) {
+                if (listeners == null) {
+                    listeners = new ArrayList<OperationListener>(1);
+                }
+                listeners.add(listener);
+                added = true;
+            }
+        }
+        if (!added) {
+            listener.operationComplete(this);
+        } else if (state == DONE) {
+            // completed while adding; the completing thread may have missed the listener
+            notifyListeners();
+        }
+    }
+    
+    private void notifyListeners() {
+        List<OperationListener> listeners;
+        synchronized (this) {
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+        if (listeners != null) {
+            for (OperationListener listener : listeners) {
+                listener.operationComplete(this);
+            }
+        }
     }
     
     /**
      * Tests this operation is completed nomally.
-     * 
+     *
      * @return Returns {@code true} if the operation was completed without errors.
      */
     public boolean isSucceeded() {
-        return (exception == null && response != null && response.isSucceeded());
+        return (state == DONE && exception == null && response != null && response.isSucceeded());
     }
     
     /**
      * Tests this operation is done.
-     * 
+     *
      * @return Returns {@code true} if the operation was ended.
      */
     public boolean isDone() {
-        return (latch.getCount() == 0);
+        return (state == DONE);
     }
 }
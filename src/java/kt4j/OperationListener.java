@@ -0,0 +1,16 @@
+package kt4j;
+
+/**
+ * Listens to the completion of an {@link Operation}.
+ * 
+ * @author kumai
+ */
+public interface OperationListener {
+    /**
+     * Invoked when the operation is done.
+     * This is usually invoked by the I/O thread, so the implementation should not block.
+     * 
+     * @param operation the completed operation.
+     */
+    void operationComplete(Operation operation);
+}
@@ -7,9 +7,23 @@ package kt4j;
  */
 public abstract class Request {
     public final Command command;
+    public final Protocol protocol;
 
     protected Request(Command command) {
+        this(command, Protocol.TSV_RPC);
+    }
+    
+    protected Request(Command command, Protocol protocol) {
         this.command = command;
+        this.protocol = protocol;
+    }
+    
+    /**
+     * Tests the server replies to this request.
+     * A request without a reply is done as soon as it is written.
+     */
+    public boolean expectsReply() {
+        return true;
     }
     
     public enum Command {
@@ -53,5 +67,13 @@ public abstract class Request {
             return (magic != 0);
         }
     }
+    
+    /**
+     * The protocol a request is sent with. Each protocol has its own connections.
+     */
+    public enum Protocol {
+        BINARY,
+        TSV_RPC,
+    }
 
 }
@@ -0,0 +1,88 @@
+package kt4j.binary;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Builds a binary protocol message without copying large keys and values.
+ * <p>
+ * The headers and the arrays shorter than {@link #COPY_THRESHOLD} are copied into one presized buffer,
+ * and the longer arrays are wrapped as they are. The message is a composite of the slices of
+ * the buffer and the wrapped arrays, so the socket writes it with a gathering write.
+ * </p>
+ * 
+ * @author kumai
+ */
+class BinaryMessageBuilder {
+    /** The arrays shorter than this are copied, since a component costs more than copying them. */
+    static final int COPY_THRESHOLD = 1024;
+    
+    private final ChannelBuffer copied;
+    private final List<ChannelBuffer> components = new ArrayList<ChannelBuffer>();
+    private int sliceStart;
+    
+    /**
+     * @param copiedLength
+     *      the number of the bytes to copy, that is the length of the headers plus
+     *      the sum of {@link #copiedLength(byte[])} of the arrays.
+     */
+    BinaryMessageBuilder(int copiedLength) {
+        this.copied = ChannelBuffers.buffer(copiedLength);
+    }
+    
+    /**
+     * Returns the number of the bytes {@link #writeBytes(byte[])} copies for the array.
+     */
+    static int copiedLength(byte[] array) {
+        return (array.length < COPY_THRESHOLD) ? array.length : 0;
+    }
+    
+    BinaryMessageBuilder writeByte(int value) {
+        copied.writeByte(value);
+        return this;
+    }
+    
+    BinaryMessageBuilder writeShort(int value) {
+        copied.writeShort(value);
+        return this;
+    }
+    
+    BinaryMessageBuilder writeInt(int value) {
+        copied.writeInt(value);
+        return this;
+    }
+    
+    BinaryMessageBuilder writeLong(long value) {
+        copied.writeLong(value);
+        return this;
+    }
+    
+    BinaryMessageBuilder writeBytes(byte[] array) {
+        if (array.length < COPY_THRESHOLD) {
+            copied.writeBytes(array);
+        } else {
+            addCopiedSlice();
+            components.add(ChannelBuffers.wrappedBuffer(array));
+        }
+        return this;
+    }
+    
+    ChannelBuffer build() {
+        if (components.isEmpty()) {
+            return copied;
+        }
+        addCopiedSlice();
+        return ChannelBuffers.wrappedBuffer(components.toArray(new ChannelBuffer[components.size()]));
+    }
+    
+    private void addCopiedSlice() {
+        int end = copied.writerIndex();
+        if (end > sliceStart) {
+            components.add(copied.slice(sliceStart, end - sliceStart));
+            sliceStart = end;
+        }
+    }
+}
@@ -3,139 +3,238 @@ package kt4j.binary;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 
 import static kt4j.binary.BinaryResponse.*;
 
 /**
  * Decodes the received {@link ChannelBuffer}s into a Kyoto Tycoon's response object.
- * 
+ * <p>
+ * The decoder is a state machine that consumes the bytes as they arrive.
+ * When a response is incomplete, it remembers the record it is on and how far into the record
+ * it has read, and keeps the records already decoded, so a large get_bulk or play_script result
+ * is parsed only once however it is fragmented.
+ * </p>
+ * <p>
+ * A response larger than the max frame size, or one with an unknown magic byte,
+ * fails the operation waiting for it, and closes the connection
+ * since the rest of the stream can no longer be trusted.
+ * </p>
+ *
  * @author kumai
  */
 public class BinaryProtocolDecoder extends FrameDecoder {
+    /** The default max frame size, 64 MB. */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
     private static final int HITS_LENGTH = 4;
     private static final int DBIDX_LENGTH = 2;
     private static final int KSIZ_LENGTH = 4;
     private static final int VSIZ_LENGTH = 4;
     private static final int XT_LENGTH = 8;
-    private static final int RNUM_LENGTH = 4;
+    private static final int GET_BULK_RECORD_HEADER_LENGTH = DBIDX_LENGTH + KSIZ_LENGTH + VSIZ_LENGTH + XT_LENGTH;
+    private static final int PLAY_SCRIPT_RECORD_HEADER_LENGTH = KSIZ_LENGTH + VSIZ_LENGTH;
+
+    private enum State {
+        MAGIC,
+        HITS,
+        RECORD_HEADER,
+        KEY,
+        VALUE,
+        DISCARD,
+    }
+
+    private final int maxFrameSize;
+
+    private State state = State.MAGIC;
+    private byte magic;
+    private long frameSize;
+    private long remainingRecords;
+    private GetBulkResponse getBulkResponse;
+    private PlayScriptResponse playScriptResponse;
+
+    // the record being decoded
+    private int dbidx;
+    private long xt;
+    private byte[] key;
+    private byte[] value;
+    private int filled;
+
+    public BinaryProtocolDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize the maximum size of a response in bytes.
+     */
+    public BinaryProtocolDecoder(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
 
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer)
             throws Exception {
-        if (!buffer.readable()) {
-            return null;
-        }
+        for (;;) {
+            switch (state) {
+            case MAGIC:
+                if (!buffer.readable()) {
+                    return null;
+                }
+                magic = buffer.getByte(buffer.readerIndex());
+                switch (magic) {
+                case ERROR:
+                    buffer.skipBytes(1);
+                    return new BinaryResponse(ERROR);
 
-        buffer.markReaderIndex();
-
-        byte op = buffer.readByte();
-        switch (op) {
-        case ERROR:
-            return new BinaryResponse(ERROR);
-            
-        case SET_BULK:
-        case REMOVE_BULK:
-            if (buffer.readableBytes() < HITS_LENGTH) {
-                buffer.resetReaderIndex();
-                return null;
-            } else {
+                case SET_BULK:
+                case REMOVE_BULK:
+                case GET_BULK:
+                case PLAY_SCRIPT:
+                    buffer.skipBytes(1);
+                    frameSize = 1;
+                    state = State.HITS;
+                    break;
+
+                case REPLICATION:
+                    // not support
+                default:
+                    discard(ctx, new CorruptedFrameException(
+                            "unknown magic byte: 0x" + Integer.toHexString(magic & 0xFF)));
+                    buffer.skipBytes(buffer.readableBytes());
+                    return null;
+                }
+                break;
+
+            case HITS:
+                if (buffer.readableBytes() < HITS_LENGTH) {
+                    return null;
+                }
                 long hits = buffer.readUnsignedInt();
-                return new BinaryResponse(op, hits);
-            }
-            
-        case GET_BULK:
-            GetBulkResponse getBulkResponse = decodeGetBulk(buffer);
-            if (getBulkResponse == null) {
-                buffer.resetReaderIndex();
-            }
-            return getBulkResponse;
-            
-        case PLAY_SCRIPT:
-            PlayScriptResponse playScriptResponse = decodePlayScript(buffer);
-            if (playScriptResponse == null) {
-                buffer.resetReaderIndex();
-            }
-            return playScriptResponse;
+                frameSize += HITS_LENGTH;
+                if (magic == SET_BULK || magic == REMOVE_BULK) {
+                    state = State.MAGIC;
+                    return new BinaryResponse(magic, hits);
+                } else if (magic == GET_BULK) {
+                    getBulkResponse = new GetBulkResponse(hits);
+                } else {
+                    playScriptResponse = new PlayScriptResponse(hits);
+                }
+                remainingRecords = hits;
+                state = State.RECORD_HEADER;
+                break;
 
-        case REPLICATION:
-            // not support
-        default:
-            buffer.resetReaderIndex();
-            return buffer.readBytes(buffer.readableBytes());
-        }
-    }
-    
-    private GetBulkResponse decodeGetBulk(ChannelBuffer buffer) {
-        if (buffer.readableBytes() < HITS_LENGTH) {
-            return null;
-        }
-        
-        long numHits = buffer.readUnsignedInt();
-        
-        GetBulkResponse resp = new GetBulkResponse(numHits);
-
-        for (long rec = 0; rec < numHits; ++rec) {
-            
-            if (buffer.readableBytes() < (DBIDX_LENGTH + KSIZ_LENGTH + VSIZ_LENGTH + XT_LENGTH)) {
-                return null;
-            }
-            
-            int dbidx = buffer.readUnsignedShort();
-            
-            long ksiz = buffer.readUnsignedInt();
-            
-            long vsiz = buffer.readUnsignedInt();
-            
-            long xt = buffer.readLong();
-            
-            if (buffer.readableBytes() < (ksiz + vsiz)) {
+            case RECORD_HEADER:
+                if (remainingRecords == 0) {
+                    return complete();
+                }
+                if (!decodeRecordHeader(ctx, buffer)) {
+                    return null;
+                }
+                break;
+
+            case KEY:
+                if (!fill(buffer, key)) {
+                    return null;
+                }
+                state = State.VALUE;
+                break;
+
+            case VALUE:
+                if (!fill(buffer, value)) {
+                    return null;
+                }
+                if (magic == GET_BULK) {
+                    getBulkResponse.put(key, value, xt, dbidx);
+                } else {
+                    playScriptResponse.put(key, value);
+                }
+                key = null;
+                value = null;
+                --remainingRecords;
+                state = State.RECORD_HEADER;
+                break;
+
+            case DISCARD:
+                buffer.skipBytes(buffer.readableBytes());
                 return null;
             }
-            
-            byte[] key = new byte[(int) ksiz];
-            buffer.readBytes(key);
-            
-            byte[] value = new byte[(int) vsiz];
-            buffer.readBytes(value);
-            
-            resp.put(key, value, xt, dbidx);
         }
-        
-        return resp;
     }
-    
-    private PlayScriptResponse decodePlayScript(ChannelBuffer buffer) {
-        if (buffer.readableBytes() < RNUM_LENGTH) {
-            return null;
+
+    private boolean decodeRecordHeader(ChannelHandlerContext ctx, ChannelBuffer buffer) {
+        int headerLength = (magic == GET_BULK) ? GET_BULK_RECORD_HEADER_LENGTH : PLAY_SCRIPT_RECORD_HEADER_LENGTH;
+        if (buffer.readableBytes() < headerLength) {
+            return false;
         }
-        
-        long numRecords = buffer.readUnsignedInt();
-        
-        PlayScriptResponse resp = new PlayScriptResponse(numRecords);
-        
-        for (long rec = 0; rec < numRecords; ++rec) {
-            if (buffer.readableBytes() < (KSIZ_LENGTH + VSIZ_LENGTH)) {
-                return null;
-            }
-            
-            long ksiz = buffer.readUnsignedInt();
-            
-            long vsiz = buffer.readUnsignedInt();
-            
-            if (buffer.readableBytes() < (ksiz + vsiz)) {
-                return null;
-            }
-            
-            byte[] key = new byte[(int) ksiz];
-            buffer.readBytes(key);
-            
-            byte[] value = new byte[(int) vsiz];
-            buffer.readBytes(value);
-            
-            resp.put(key, value);
+
+        if (magic == GET_BULK) {
+            dbidx = buffer.readUnsignedShort();
+        }
+        long ksiz = buffer.readUnsignedInt();
+        long vsiz = buffer.readUnsignedInt();
+        if (magic == GET_BULK) {
+            xt = buffer.readLong();
+        }
+
+        frameSize += headerLength + ksiz + vsiz;
+        if (frameSize > maxFrameSize) {
+            tooLongFrame(ctx);
+            return false;
+        }
+        key = new byte[(int) ksiz];
+        value = new byte[(int) vsiz];
+        filled = 0;
+        state = State.KEY;
+        return true;
+    }
+
+    /**
+     * Reads the available bytes into the array.
+     *
+     * @return true if the array has been filled.
+     */
+    private boolean fill(ChannelBuffer buffer, byte[] array) {
+        int length = Math.min(array.length - filled, buffer.readableBytes());
+        buffer.readBytes(array, filled, length);
+        filled += length;
+        if (filled < array.length) {
+            return false;
         }
-        
-        return resp;
+        filled = 0;
+        return true;
+    }
+
+    private BinaryResponse complete() {
+        BinaryResponse response = (magic == GET_BULK) ? getBulkResponse : playScriptResponse;
+        getBulkResponse = null;
+        playScriptResponse = null;
+        state = State.MAGIC;
+        return response;
+    }
+
+    private void tooLongFrame(ChannelHandlerContext ctx) {
+        discard(ctx, new TooLongFrameException(
+                "response is larger than " + maxFrameSize + " bytes: " + frameSize));
+    }
+
+    /**
+     * Fails the operation waiting for the response, and discards the rest of the stream
+     * until the connection is closed.
+     */
+    private void discard(ChannelHandlerContext ctx, Exception cause) {
+        state = State.DISCARD;
+        getBulkResponse = null;
+        playScriptResponse = null;
+        key = null;
+        value = null;
+
+        Channels.fireExceptionCaught(ctx, cause);
+        ctx.getChannel().close();
     }
 }
@@ -1,7 +1,6 @@
 package kt4j.binary;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
@@ -20,8 +19,6 @@ public class BinaryProtocolEncoder extends OneToOneEncoder {
         }
         
         BinaryRequest req = (BinaryRequest) msg;
-        ChannelBuffer buff = ChannelBuffers.wrappedBuffer(req.encode());
-        
-        return buff;
+        return req.encode();
     }
 }
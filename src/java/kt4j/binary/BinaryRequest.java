@@ -1,5 +1,7 @@
 package kt4j.binary;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 import kt4j.Request;
 
 abstract class BinaryRequest extends Request {
@@ -9,12 +11,36 @@ abstract class BinaryRequest extends Request {
     protected static final int RNUM_BYTE_LENGTH = 4;
     protected static final int HEADER_BYTE_LENGTH = MAGIC_BYTE_LENGTH + FLAGS_BYTE_LENGTH + RNUM_BYTE_LENGTH;
     
+    /** The flag not to reply, supported by set_bulk, remove_bulk and play_script. */
+    static final int FLAG_NO_REPLY = 0x01;
+    
     protected int flags;
     
     protected BinaryRequest(Command command) {
-        super(command);
+        super(command, Protocol.BINARY);
+    }
+
+    /**
+     * Sets the flag not to reply to this request.
+     */
+    void setNoReply(boolean noReply) {
+        if (noReply) {
+            flags |= FLAG_NO_REPLY;
+        } else {
+            flags &= ~FLAG_NO_REPLY;
+        }
+    }
+    
+    @Override
+    public boolean expectsReply() {
+        return (flags & FLAG_NO_REPLY) == 0;
     }
 
-    public abstract byte[] encode();
+    /**
+     * Encodes this request into a message.
+     * The keys and values may be shared with the returned buffer instead of being copied,
+     * so they must not be modified until the message is written.
+     */
+    public abstract ChannelBuffer encode();
     
 }
@@ -0,0 +1,194 @@
+package kt4j.binary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import kt4j.KyotoTycoonFuture;
+import kt4j.KyotoTycoonFutureListener;
+
+/**
+ * Collects concurrent single-record requests for each server, and flushes them as one batch
+ * when the linger time has passed or the batch has reached its size cap.
+ *
+ * @param <E> the type of the pending requests.
+ * @author kumai
+ */
+abstract class Coalescer<E> {
+    private final ScheduledExecutorService scheduler;
+    private final long lingerNanos;
+    private final int maxRecords;
+    private final int maxBytes;
+    private final Batch<E>[] batches;
+    private int inFlight;
+
+    /**
+     * @param scheduler flushes the batches after the linger time.
+     * @param numServers the number of the servers.
+     * @param lingerNanos the time to wait for more requests after the first request of a batch.
+     * @param maxRecords the maximum number of the records in a batch.
+     * @param maxBytes the maximum size of a batch in bytes.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Coalescer(ScheduledExecutorService scheduler, int numServers, long lingerNanos,
+            int maxRecords, int maxBytes) {
+        this.scheduler = scheduler;
+        this.lingerNanos = lingerNanos;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.batches = new Batch[numServers];
+    }
+
+    /**
+     * Adds a request to the current batch of the server.
+     *
+     * @param serverIndex the index of the server.
+     * @param request the pending request.
+     * @param size the size of the request in bytes.
+     */
+    void add(int serverIndex, E request, int size) {
+        Batch<E> batch;
+        Batch<E> evicted = null;
+        boolean opened = false;
+        boolean completed = false;
+        synchronized (this) {
+            batch = batches[serverIndex];
+            if (batch != null && batch.bytes + size > maxBytes) {
+                evicted = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch<E>(serverIndex);
+                batches[serverIndex] = batch;
+                opened = true;
+            }
+            batch.requests.add(request);
+            batch.bytes += size;
+            if (batch.requests.size() >= maxRecords || batch.bytes >= maxBytes) {
+                batches[serverIndex] = null;
+                completed = true;
+            }
+        }
+
+        if (evicted != null) {
+            send(serverIndex, evicted.requests);
+        }
+        if (completed) {
+            send(serverIndex, batch.requests);
+        } else if (opened) {
+            schedule(batch);
+        }
+    }
+
+    /**
+     * Flushes all the pending batches immediately.
+     */
+    void flushAll() {
+        ArrayList<Batch<E>> pending = new ArrayList<Batch<E>>();
+        synchronized (this) {
+            for (int i = 0; i < batches.length; ++i) {
+                if (batches[i] != null) {
+                    pending.add(batches[i]);
+                    batches[i] = null;
+                }
+            }
+        }
+        for (Batch<E> batch : pending) {
+            send(batch.serverIndex, batch.requests);
+        }
+    }
+
+    /**
+     * Waits until all the batches sent so far have completed.
+     *
+     * @param deadlineNanos the {@link System#nanoTime()} to give up waiting at.
+     * @return true if all the batches have completed, false if the deadline has passed.
+     */
+    synchronized boolean awaitSent(long deadlineNanos) {
+        boolean interrupted = false;
+        try {
+            while (inFlight > 0) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends a batch of requests to the server.
+     * Must not throw any exception; failures are reported to each request.
+     *
+     * @param serverIndex the index of the server.
+     * @param requests the requests to send at once.
+     * @return the future completed after the results are reported to the requests.
+     */
+    protected abstract KyotoTycoonFuture<?> flush(int serverIndex, List<E> requests);
+
+    private void send(int serverIndex, List<E> requests) {
+        synchronized (this) {
+            ++inFlight;
+        }
+        track(flush(serverIndex, requests));
+    }
+
+    private <V> void track(KyotoTycoonFuture<V> future) {
+        future.addListener(new KyotoTycoonFutureListener<V>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<V> future) {
+                synchronized (Coalescer.this) {
+                    if (--inFlight == 0) {
+                        Coalescer.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void schedule(final Batch<E> batch) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushIfCurrent(batch);
+                }
+            }, lingerNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // the client is stopping
+            flushIfCurrent(batch);
+        }
+    }
+
+    private void flushIfCurrent(Batch<E> batch) {
+        synchronized (this) {
+            if (batches[batch.serverIndex] != batch) {
+                return;     // already flushed by the size cap
+            }
+            batches[batch.serverIndex] = null;
+        }
+        send(batch.serverIndex, batch.requests);
+    }
+
+    private static class Batch<E> {
+        final int serverIndex;
+        final List<E> requests = new ArrayList<E>();
+        int bytes;
+
+        Batch(int serverIndex) {
+            this.serverIndex = serverIndex;
+        }
+    }
+}
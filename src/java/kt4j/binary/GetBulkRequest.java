@@ -3,6 +3,8 @@ package kt4j.binary;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 import kt4j.Request;
 
 /**
@@ -30,51 +32,25 @@ class GetBulkRequest extends BinaryRequest {
     }
 
     @Override
-    public byte[] encode() {
-        int numRecords = getNumberOfRecords();
-        
-        int messageLength = HEADER_BYTE_LENGTH;
-        
-        for (Map.Entry<byte[], Integer> entry : keysWithDbIndex.entrySet()) {
-            messageLength += 2;     // size of dbidx
-            messageLength += 4;     // size of ksiz
-            messageLength += entry.getKey().length;
+    public ChannelBuffer encode() {
+        int copiedLength = HEADER_BYTE_LENGTH;
+        for (byte[] key : keysWithDbIndex.keySet()) {
+            copiedLength += Record.DBIDX_LENGTH + Record.KSIZ_LENGTH;
+            copiedLength += BinaryMessageBuilder.copiedLength(key);
         }
         
-        byte[] message = new byte[messageLength];
-        
-        int i = 0;
-        
-        message[i++] = command.magic;
-        
-        // flags (reserved and not used now. It should be 0.)
-        message[i++] = 0x00;
-        message[i++] = 0x00;
-        message[i++] = 0x00;
-        message[i++] = 0x00;
-        
-        // number of records
-        message[i++] = (byte) ((numRecords >>> 24) & 0xFF);
-        message[i++] = (byte) ((numRecords >>> 16) & 0xFF);
-        message[i++] = (byte) ((numRecords >>>  8) & 0xFF);
-        message[i++] = (byte) ((numRecords >>>  0) & 0xFF);
+        BinaryMessageBuilder message = new BinaryMessageBuilder(copiedLength)
+                .writeByte(command.magic)
+                .writeInt(0)             // flags (reserved and not used now. It should be 0.)
+                .writeInt(getNumberOfRecords());
 
         for (Map.Entry<byte[], Integer> entry : keysWithDbIndex.entrySet()) {
-            // dbidx
-            message[i++] = (byte) ((entry.getValue() >>> 8) & 0xFF);
-            message[i++] = (byte) ((entry.getValue() >>> 0) & 0xFF);
-            
-            // ksiz
-            message[i++] = (byte) ((entry.getKey().length >>> 24) & 0xFF);
-            message[i++] = (byte) ((entry.getKey().length >>> 16) & 0xFF);
-            message[i++] = (byte) ((entry.getKey().length >>>  8) & 0xFF);
-            message[i++] = (byte) ((entry.getKey().length >>>  0) & 0xFF);
-
-            System.arraycopy(entry.getKey(), 0, message, i, entry.getKey().length);
-            i += entry.getKey().length;
+            message.writeShort(entry.getValue())
+                   .writeInt(entry.getKey().length)
+                   .writeBytes(entry.getKey());
         }
         
-        return message;
+        return message.build();
     }
 
     public int getNumberOfRecords() {
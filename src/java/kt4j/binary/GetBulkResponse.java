@@ -1,10 +1,13 @@
 package kt4j.binary;
 
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -12,6 +15,9 @@ import kt4j.Bytes.ByteArrayWrapper;
 
 class GetBulkResponse extends BinaryResponse {
     private final Map<ByteArrayWrapper, Record> results = new HashMap<ByteArrayWrapper, Record>();
+
+    /** The records replaced in the results by the records of the same keys in other databases. */
+    private List<Record> otherDatabases;
     
     GetBulkResponse(long numHits) {
         super(GET_BULK, numHits);
@@ -22,13 +28,56 @@ class GetBulkResponse extends BinaryResponse {
     }
 
     void put(byte[] key, byte[] value, long xt, int dbidx) {
-        results.put(new ByteArrayWrapper(key), new Record(dbidx, key, value, xt));
+        put(new Record(dbidx, key, value, xt));
+    }
+
+    private void put(Record record) {
+        Record replaced = results.put(new ByteArrayWrapper(record.key), record);
+        if (replaced != null && replaced.dbidx != record.dbidx) {
+            if (otherDatabases == null) {
+                otherDatabases = new ArrayList<Record>();
+            }
+            otherDatabases.add(replaced);
+        }
+    }
+    
+    void putAll(GetBulkResponse other) {
+        for (Record record : other.getRecords()) {
+            put(record);
+        }
     }
     
     byte[] getValue(byte[] key) {
         Record record = results.get(new ByteArrayWrapper(key));
         return (record != null) ? record.value : null;
     }
+
+    /**
+     * Returns the value of the key in the database, or null if not retrieved.
+     */
+    byte[] getValue(byte[] key, int dbidx) {
+        Record record = results.get(new ByteArrayWrapper(key));
+        if (record != null && record.dbidx == dbidx) {
+            return record.value;
+        }
+        if (otherDatabases != null) {
+            for (Record other : otherDatabases) {
+                if (other.dbidx == dbidx && Arrays.equals(other.key, key)) {
+                    return other.value;
+                }
+            }
+        }
+        return null;
+    }
+    
+    Collection<Record> getRecords() {
+        if (otherDatabases == null) {
+            return Collections.unmodifiableCollection(results.values());
+        }
+        ArrayList<Record> records = new ArrayList<Record>(results.values());
+        records.addAll(otherDatabases);
+        return Collections.unmodifiableList(records);
+    }
     
     Map<byte[], byte[]> getValues() {
         return new KeyValueWrapper(results);
@@ -1,12 +1,29 @@
 package kt4j.binary;
 
+import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import kt4j.Bytes;
 import kt4j.ExpirationTime;
+import kt4j.KyotoTycoonFuture;
+import kt4j.KyotoTycoonFutureListener;
 import kt4j.Operation;
+import kt4j.OperationListener;
+import kt4j.Request;
+import kt4j.Request.Command;
+import kt4j.Request.Protocol;
 import kt4j.KyotoTycoonOperationFailedException;
 import kt4j.tsvrpc.KyotoTycoonTsvRpcClient;
 
@@ -19,12 +36,47 @@ import kt4j.tsvrpc.KyotoTycoonTsvRpcClient;
  * @author kumai
  */
 public class KyotoTycoonBinaryClient extends KyotoTycoonTsvRpcClient {
+    /** The maximum time {@link #stop()} waits for the coalesced operations to complete. */
+    static final long STOP_FLUSH_TIMEOUT_MILLIS = 10000L;
+
+    /** The commands that never change the records. Any other command is taken as a write. */
+    private static final EnumSet<Command> READ_ONLY_COMMANDS = EnumSet.of(Command.GET, Command.GET_BULK,
+            Command.MATCH_PREFIX, Command.MATCH_REGEX, Command.VOID, Command.SYNCHRONIZE, Command.VACUUM,
+            Command.STATUS, Command.REPORT, Command.ECHO);
+
     private int databaseIndex;
     
+    private long getCoalescingWindowNanos;
+    private int getCoalescingMaxKeys = 1;
+    private long writeCoalescingLingerNanos;
+    private int writeCoalescingMaxBytes;
+    private RemoveHitPolicy removeHitPolicy = RemoveHitPolicy.PESSIMISTIC;
+    private ScheduledExecutorService coalescingScheduler;
+    private volatile GetCoalescer getCoalescer;
+    private volatile SetCoalescer setCoalescer;
+    private volatile RemoveCoalescer removeCoalescer;
+    private boolean scriptProceduresEnabled;
+    private boolean readCollapsing;
+    private final ConcurrentHashMap<ReadKey, CollapsedRead> readsInFlight =
+            new ConcurrentHashMap<ReadKey, CollapsedRead>();
+    /** The number of the writes this client has sent, and of those done, while collapsing the reads. */
+    private final AtomicLong writesSent = new AtomicLong();
+    private final AtomicLong writesDone = new AtomicLong();
+    private volatile boolean scriptProceduresLoaded;
+    
     public KyotoTycoonBinaryClient(String hostname, int port) {
         super(hostname, port);
     }
 
+    /**
+     * Creates a new instance that shards the records across the specified servers.
+     * 
+     * @param servers Kyoto Tycoon server addresses.
+     */
+    public KyotoTycoonBinaryClient(SocketAddress... servers) {
+        super(servers);
+    }
+
     /**
      * Use {@link #setDatabase(String, int)} instead.
      * Always throws {@link UnsupportedOperationException}.
@@ -48,14 +100,262 @@ public class KyotoTycoonBinaryClient extends KyotoTycoonTsvRpcClient {
         super.setDatabase(database);
         this.databaseIndex = databaseIndex;
     }
+
+    /**
+     * Returns the target database index.
+     */
+    public int getDatabaseIndex() {
+        return databaseIndex;
+    }
+
+    /**
+     * Enables coalescing of concurrent {@link #get(byte[])} calls.
+     * <p>
+     * The single-key get operations issued within <code>window</code> after the first one
+     * are sent to the server together as one get_bulk request, and the response is split back
+     * to each caller. A batch is sent earlier when it reaches <code>maxKeys</code> keys.
+     * This trades a little latency for fewer requests when many threads call {@link #get(byte[])}
+     * at the same time. Coalescing is disabled by default.
+     * This must be called before {@link #start()}.
+     * </p>
+     * 
+     * @param window the time to wait for other get operations. 0 sends the batch as soon as possible.
+     * @param unit the unit of <code>window</code>.
+     * @param maxKeys the maximum number of the keys sent at once. 1 disables coalescing.
+     * @throws IllegalArgumentException if <code>window</code> is negative or <code>maxKeys</code> is less than 1
+     */
+    public void setGetCoalescing(long window, TimeUnit unit, int maxKeys) throws IllegalArgumentException {
+        if (window < 0) {
+            throw new IllegalArgumentException("window");
+        }
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("maxKeys");
+        }
+        this.getCoalescingWindowNanos = unit.toNanos(window);
+        this.getCoalescingMaxKeys = maxKeys;
+    }
+
+    /**
+     * Enables coalescing of concurrent {@link #set(byte[], byte[], ExpirationTime)} and
+     * {@link #remove(byte[])} calls.
+     * <p>
+     * The single-record writes issued within <code>linger</code> after the first one
+     * are sent to the server together as one set_bulk or remove_bulk request,
+     * and each caller is notified when the request completes.
+     * A batch is sent earlier when its records reach <code>maxBytes</code> bytes.
+     * Since remove_bulk only returns the number of the removed records, the result of each
+     * coalesced {@link #remove(byte[])} may be ambiguous; see {@link #setRemoveHitPolicy(RemoveHitPolicy)}.
+     * {@link #stop()} sends the pending writes and waits up to 10 seconds for their results
+     * before closing the connections.
+     * Coalescing is disabled by default.
+     * This must be called before {@link #start()}.
+     * </p>
+     * 
+     * @param linger the time to wait for other writes. 0 sends the batch as soon as possible.
+     * @param unit the unit of <code>linger</code>.
+     * @param maxBytes the maximum size of the records sent at once. 0 disables coalescing.
+     * @throws IllegalArgumentException if <code>linger</code> or <code>maxBytes</code> is negative
+     */
+    public void setWriteCoalescing(long linger, TimeUnit unit, int maxBytes) throws IllegalArgumentException {
+        if (linger < 0) {
+            throw new IllegalArgumentException("linger");
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes");
+        }
+        this.writeCoalescingLingerNanos = unit.toNanos(linger);
+        this.writeCoalescingMaxBytes = maxBytes;
+    }
+
+    /**
+     * Enables collapsing of concurrent reads of the same record.
+     * <p>
+     * A {@link #get(byte[])} of a key that another get or getBulk is already reading
+     * doesn't send a request, and waits for the one in flight instead.
+     * {@link #getBulk(List, boolean)} without <code>atomic</code> sends only the keys
+     * not in flight, and joins the rest to the reads in flight.
+     * This keeps many threads missing the same hot record from sending the same request.
+     * The callers sharing a read receive the same value array, and must not modify it.
+     * A read is only shared while this client has sent no write since the read was sent,
+     * so a caller always reads its own completed writes.
+     * Reads started while a write of this client is in flight are not shared at all.
+     * Collapsing is disabled by default.
+     * This must be called before {@link #start()}.
+     * </p>
+     * 
+     * @param enabled true to collapse the concurrent reads.
+     */
+    public void setReadCollapsing(boolean enabled) {
+        this.readCollapsing = enabled;
+    }
+
+    /**
+     * Sets how the ambiguous results of the coalesced {@link #remove(byte[])} calls are reported.
+     * The default is {@link RemoveHitPolicy#PESSIMISTIC}.
+     * 
+     * @param policy the policy.
+     */
+    public void setRemoveHitPolicy(RemoveHitPolicy policy) throws NullPointerException {
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.removeHitPolicy = policy;
+    }
+
+    /**
+     * Calls increment, cas, add, replace and seize with the binary protocol instead of TSV-RPC,
+     * through the procedures of the script bundled as <code>kt4j/kt4j.lua</code>.
+     * <p>
+     * Every server must load the script with <code>ktserver -scr kt4j.lua</code>.
+     * {@link #start()} checks that all the servers have the procedures, and these operations keep
+     * using TSV-RPC if not. They also go back to TSV-RPC when a server turns out to lack a procedure,
+     * which is told apart from a failure of the procedure by calling kt4j_version on the server;
+     * a procedure that fails on the server fails the operation.
+     * increment uses TSV-RPC for the numbers beyond &plusmn;2<sup>53</sup>, which the numbers of
+     * the script language cannot represent exactly.
+     * The default is false.
+     * This must be called before {@link #start()}.
+     * </p>
+     * 
+     * @param enabled true to call the procedures of the script.
+     */
+    public void setScriptProcedures(boolean enabled) {
+        this.scriptProceduresEnabled = enabled;
+    }
+
+    /**
+     * The binary protocol has its own connections, apart from the TSV-RPC connections
+     * for the other procedures.
+     */
+    @Override
+    protected boolean usesProtocol(Protocol protocol) {
+        return true;
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        if (coalescingScheduler == null && (getCoalescingMaxKeys > 1 || writeCoalescingMaxBytes > 0)) {
+            coalescingScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "kt4j-coalescer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            if (getCoalescingMaxKeys > 1) {
+                getCoalescer = new GetCoalescer(coalescingScheduler);
+            }
+            if (writeCoalescingMaxBytes > 0) {
+                setCoalescer = new SetCoalescer(coalescingScheduler);
+                removeCoalescer = new RemoveCoalescer(coalescingScheduler);
+            }
+        }
+        if (scriptProceduresEnabled) {
+            loadScriptProcedures();
+        }
+    }
+
+    /**
+     * Enables the calls of the procedures if all the servers have them.
+     */
+    void loadScriptProcedures() {
+        scriptProceduresLoaded = hasScriptProcedures();
+    }
+
+    /**
+     * Tests all the servers have the procedures of the bundled script.
+     */
+    private boolean hasScriptProcedures() {
+        List<KyotoTycoonFuture<Map<byte[], byte[]>>> futures =
+                new ArrayList<KyotoTycoonFuture<Map<byte[], byte[]>>>(getServerCount());
+        for (int i = 0; i < getServerCount(); ++i) {
+            futures.add(submit(i, new PlayScriptRequest(ScriptProcedures.VERSION), null, PLAY_SCRIPT_CONVERTER));
+        }
+        for (KyotoTycoonFuture<Map<byte[], byte[]>> future : futures) {
+            try {
+                future.join();
+            } catch (KyotoTycoonOperationFailedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (coalescingScheduler != null) {
+            Coalescer<?>[] coalescers = { getCoalescer, setCoalescer, removeCoalescer };
+            getCoalescer = null;
+            setCoalescer = null;
+            removeCoalescer = null;
+            for (Coalescer<?> coalescer : coalescers) {
+                if (coalescer != null) {
+                    coalescer.flushAll();
+                }
+            }
+            // the connections must stay open until the flushed batches get their responses
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_FLUSH_TIMEOUT_MILLIS);
+            for (Coalescer<?> coalescer : coalescers) {
+                if (coalescer != null) {
+                    coalescer.awaitSent(deadline);
+                }
+            }
+            coalescingScheduler.shutdown();
+            coalescingScheduler = null;
+        }
+        super.stop();
+    }
+    
+    /**
+     * Counts the writes while collapsing the reads, so that no caller shares a read sent before its own write.
+     */
+    @Override
+    protected Operation submit(int serverIndex, Request request) {
+        if (!readCollapsing || READ_ONLY_COMMANDS.contains(request.command)) {
+            return super.submit(serverIndex, request);
+        }
+        writesSent.incrementAndGet();
+        Operation operation;
+        try {
+            operation = super.submit(serverIndex, request);
+        } catch (RuntimeException e) {
+            writesDone.incrementAndGet();
+            throw e;
+        }
+        operation.addListener(new OperationListener() {
+            @Override
+            public void operationComplete(Operation operation) {
+                writesDone.incrementAndGet();
+            }
+        });
+        return operation;
+    }
     
     @Override
     public void set(byte[] key, byte[] value, ExpirationTime xt) {
+        if (setCoalescer != null) {
+            setAsync(key, value, xt, null).join();
+            return;
+        }
         SetBulkRequest setbulk = new SetBulkRequest(key, value, xt, databaseIndex);
-        Operation operation = call(setbulk);
-        if (!operation.isSucceeded()) {
-            throw new KyotoTycoonOperationFailedException("Failed to set(bin): key=" + Arrays.toString(key));
+        new SetConverter(key).convert(call(key, setbulk));
+    }
+
+    @Override
+    protected KyotoTycoonFuture<Void> setAsync(byte[] key, byte[] value, ExpirationTime xt,
+            Executor executor) {
+        SetCoalescer setCoalescer = this.setCoalescer;
+        if (setCoalescer != null) {
+            KyotoTycoonFuture<Void> future = new KyotoTycoonFuture<Void>(executor);
+            long expirationTime = (xt == null) ? Long.MAX_VALUE : xt.value;
+            PendingSet set = new PendingSet(new Record(databaseIndex, key, value, expirationTime), future);
+            setCoalescer.add(locate(key), set, set.record.length());
+            return future;
         }
+        SetBulkRequest setbulk = new SetBulkRequest(key, value, xt, databaseIndex);
+        return submit(locate(key), setbulk, executor, new SetConverter(key));
     }
 
     /**
@@ -76,18 +376,28 @@ public class KyotoTycoonBinaryClient extends KyotoTycoonTsvRpcClient {
     @Override
     public void setBulk(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt, boolean atomic)
             throws KyotoTycoonOperationFailedException {
+        setBulkAsync(keyValuePairs, xt, atomic, null).join();
+    }
+
+    @Override
+    protected KyotoTycoonFuture<Void> setBulkAsync(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt,
+            boolean atomic, Executor executor) {
         if (atomic) {
-            super.setBulk(keyValuePairs, xt, atomic);
-        } else {
-            SetBulkRequest setbulk = new SetBulkRequest();
-            for (Map.Entry<byte[], byte[]> entry : keyValuePairs.entrySet()) {
-                setbulk.add(entry.getKey(), entry.getValue(), xt, databaseIndex);
-            }
-            Operation operation = call(setbulk);
-            if (!operation.isSucceeded()) {
-                throw new KyotoTycoonOperationFailedException("Failed to set_bulk(bin)");
+            return super.setBulkAsync(keyValuePairs, xt, atomic, executor);
+        }
+        
+        Map<byte[], byte[]>[] shards = partition(keyValuePairs);
+        ArrayList<KyotoTycoonFuture<Void>> futures = new ArrayList<KyotoTycoonFuture<Void>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                SetBulkRequest setbulk = new SetBulkRequest();
+                for (Map.Entry<byte[], byte[]> entry : shards[i].entrySet()) {
+                    setbulk.add(entry.getKey(), entry.getValue(), xt, databaseIndex);
+                }
+                futures.add(submit(i, setbulk, null, SET_BULK_CONVERTER));
             }
         }
+        return gather(futures, executor, VOID_MERGER);
     }
 
     /**
@@ -108,64 +418,64 @@ public class KyotoTycoonBinaryClient extends KyotoTycoonTsvRpcClient {
     @Override
     public void setBulkString(Map<String, String> keyValuePairs, ExpirationTime xt, boolean atomic)
             throws KyotoTycoonOperationFailedException {
-        if (atomic) {
-            super.setBulkString(keyValuePairs, xt, atomic);
-        } else {
-            SetBulkRequest setbulk = new SetBulkRequest();
-            for (Map.Entry<String, String> entry : keyValuePairs.entrySet()) {
-                setbulk.add(Bytes.utf8(entry.getKey()), Bytes.utf8(entry.getValue()), xt,
-                        databaseIndex);
-            }
-            Operation operation = call(setbulk);
-            if (!operation.isSucceeded()) {
-                throw new KyotoTycoonOperationFailedException("Failed to set_bulk(bin)");
-            }
-        }
+        super.setBulkString(keyValuePairs, xt, atomic);
     }
+    
 
     @Override
     public byte[] get(byte[] key) throws NullPointerException, KyotoTycoonOperationFailedException {
-        GetBulkRequest getbulk = new GetBulkRequest(key, databaseIndex);
-        Operation operation = call(getbulk);
-        if (!operation.isSucceeded()) {
-            throw new KyotoTycoonOperationFailedException("Failed to get(bin): key=" + Arrays.toString(key));
+        if (readCollapsing) {
+            return collapsedGet(key).join();
+        }
+        if (getCoalescer != null) {
+            return getAsync(key, null).join();
         }
-        GetBulkResponse response = (GetBulkResponse) operation.getResponse();
-        return response.getValue(key);
+        GetBulkRequest getbulk = new GetBulkRequest(key, databaseIndex);
+        return new GetConverter(key).convert(call(key, getbulk));
     }
 
     @Override
-    public boolean remove(byte[] key) {
-        RemoveBulkRequest request = new RemoveBulkRequest(key, databaseIndex);
-        Operation operation = call(request);
-        if (!operation.isSucceeded()) {
-            throw new KyotoTycoonOperationFailedException("Failed to get(bin): key=" + Arrays.toString(key));
+    protected KyotoTycoonFuture<byte[]> getAsync(byte[] key, Executor executor) {
+        if (readCollapsing) {
+            return follow(collapsedGet(key), executor);
         }
-        
-        BinaryResponse response = (BinaryResponse) operation.getResponse();
-        if (response.getNumber() > 0) {
-            return true;
-        } else {
-            return false;
+        return fetch(key, executor);
+    }
+
+    private KyotoTycoonFuture<byte[]> fetch(byte[] key, Executor executor) {
+        GetCoalescer getCoalescer = this.getCoalescer;
+        if (getCoalescer != null) {
+            KyotoTycoonFuture<byte[]> future = new KyotoTycoonFuture<byte[]>(executor);
+            getCoalescer.add(locate(key), new PendingGet(key, databaseIndex, future), key.length);
+            return future;
         }
+        GetBulkRequest getbulk = new GetBulkRequest(key, databaseIndex);
+        return submit(locate(key), getbulk, executor, new GetConverter(key));
     }
 
     @Override
-    public long removeBulk(List<byte[]> keys) throws KyotoTycoonOperationFailedException {
-        RemoveBulkRequest request = new RemoveBulkRequest();
-        for (byte[] key : keys) {
-            request.add(key, databaseIndex);
+    public boolean remove(byte[] key) {
+        if (removeCoalescer != null) {
+            return removeAsync(key, null).join();
         }
-        
-        Operation operation = call(request);
-        if (!operation.isSucceeded()) {
-            throw new KyotoTycoonOperationFailedException("Failed to remove_bulk(bin)");
+        RemoveBulkRequest request = new RemoveBulkRequest(key, databaseIndex);
+        return new RemoveConverter(key).convert(call(key, request));
+    }
+
+    @Override
+    protected KyotoTycoonFuture<Boolean> removeAsync(byte[] key, Executor executor) {
+        RemoveCoalescer removeCoalescer = this.removeCoalescer;
+        if (removeCoalescer != null) {
+            KyotoTycoonFuture<Boolean> future = new KyotoTycoonFuture<Boolean>(executor);
+            removeCoalescer.add(locate(key), new PendingRemove(key, databaseIndex, future),
+                    Record.DBIDX_LENGTH + Record.KSIZ_LENGTH + key.length);
+            return future;
         }
-        
-        BinaryResponse response = (BinaryResponse) operation.getResponse();
-        return response.getNumber();
+        RemoveBulkRequest request = new RemoveBulkRequest(key, databaseIndex);
+        return submit(locate(key), request, executor, new RemoveConverter(key));
     }
 
+
     /**
      * Remove records at once.
      * 
@@ -177,28 +487,30 @@ public class KyotoTycoonBinaryClient extends KyotoTycoonTsvRpcClient {
     @Override
     public long removeBulk(List<byte[]> keys, boolean atomic)
             throws KyotoTycoonOperationFailedException {
-        if (atomic) {
-            return super.removeBulk(keys, atomic);
-        } else {
-            return this.removeBulk(keys);
-        }
+        return removeBulkAsync(keys, atomic, null).join();
     }
 
     @Override
-    public Map<byte[], byte[]> getBulk(List<byte[]> keys) throws KyotoTycoonOperationFailedException {
-        GetBulkRequest getbulk = new GetBulkRequest();
-        for (byte[] key : keys) {
-            getbulk.add(key, databaseIndex);
-        }
-        Operation operation = call(getbulk);
-        if (!operation.isSucceeded()) {
-            throw new KyotoTycoonOperationFailedException("Failed to get_bulk(bin)");
+    protected KyotoTycoonFuture<Long> removeBulkAsync(List<byte[]> keys, boolean atomic, Executor executor) {
+        if (atomic) {
+            return super.removeBulkAsync(keys, atomic, executor);
         }
         
-        GetBulkResponse response = (GetBulkResponse) operation.getResponse();
-        return response.getValues();
+        List<byte[]>[] shards = partition(keys);
+        ArrayList<KyotoTycoonFuture<Long>> futures = new ArrayList<KyotoTycoonFuture<Long>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                RemoveBulkRequest request = new RemoveBulkRequest();
+                for (byte[] key : shards[i]) {
+                    request.add(key, databaseIndex);
+                }
+                futures.add(submit(i, request, null, REMOVE_BULK_CONVERTER));
+            }
+        }
+        return gather(futures, executor, SUM_MERGER);
     }
 
+
     /**
      * Retreives records at once.
      * 
@@ -210,24 +522,862 @@ public class KyotoTycoonBinaryClient extends KyotoTycoonTsvRpcClient {
     @Override
     public Map<byte[], byte[]> getBulk(List<byte[]> keys, boolean atomic)
             throws KyotoTycoonOperationFailedException {
+        return getBulkAsync(keys, atomic, null).join();
+    }
+
+    @Override
+    protected KyotoTycoonFuture<Map<byte[], byte[]>> getBulkAsync(List<byte[]> keys, boolean atomic,
+            Executor executor) {
         if (atomic) {
-            return super.getBulk(keys, atomic);
-        } else {
-            return getBulk(keys);
+            return super.getBulkAsync(keys, atomic, executor);
+        }
+        if (readCollapsing) {
+            return collapsedGetBulk(keys, executor);
+        }
+        return gather(submitGetBulk(keys), executor, GET_BULK_MERGER);
+    }
+
+    /**
+     * Returns the read in flight of the key, starting one if none.
+     */
+    private KyotoTycoonFuture<byte[]> collapsedGet(byte[] key) {
+        ReadKey readKey = new ReadKey(databaseIndex, key);
+        CollapsedRead leader = new CollapsedRead();
+        CollapsedRead read = lead(readKey, leader);
+        if (read == null) {
+            return fetch(key, null);
+        }
+        if (read == leader) {
+            land(readKey, leader, fetch(key, null));
         }
+        return read.future;
+    }
+
+    /**
+     * Returns the read in flight of the key if it can be shared, or registers the new read
+     * and returns it if the caller must send it.
+     *
+     * @return null if the read can't be shared because a write of this client is in flight.
+     */
+    private CollapsedRead lead(ReadKey readKey, CollapsedRead leader) {
+        // reads done first, so that equal counts mean no write was in flight at that moment
+        long done = writesDone.get();
+        long sent = writesSent.get();
+        for (;;) {
+            CollapsedRead inFlight = readsInFlight.get(readKey);
+            if (inFlight != null && inFlight.writesSent == sent) {
+                return inFlight;
+            }
+            if (done != sent) {
+                return null;
+            }
+            leader.writesSent = sent;
+            if (inFlight == null) {
+                if (readsInFlight.putIfAbsent(readKey, leader) == null) {
+                    return leader;
+                }
+            } else if (readsInFlight.replace(readKey, inFlight, leader)) {
+                // the read in flight was sent before a write of this client
+                return leader;
+            }
+        }
+    }
+
+    /**
+     * Completes a collapsed read with the result of its request, after the next reads stop joining it.
+     */
+    private void land(final ReadKey readKey, final CollapsedRead leader, KyotoTycoonFuture<byte[]> source) {
+        source.addListener(new KyotoTycoonFutureListener<byte[]>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<byte[]> source) {
+                readsInFlight.remove(readKey, leader);
+                if (source.isSuccess()) {
+                    leader.future.setSuccess(source.join());
+                } else {
+                    leader.future.setFailure(source.getCause());
+                }
+            }
+        });
+    }
+
+    private KyotoTycoonFuture<Map<byte[], byte[]>> collapsedGetBulk(final List<byte[]> keys, Executor executor) {
+        ArrayList<KyotoTycoonFuture<byte[]>> reads = new ArrayList<KyotoTycoonFuture<byte[]>>(keys.size());
+        final ArrayList<byte[]> leadingKeys = new ArrayList<byte[]>();
+        final ArrayList<ReadKey> leadingReadKeys = new ArrayList<ReadKey>();
+        final ArrayList<CollapsedRead> leaders = new ArrayList<CollapsedRead>();
+        for (byte[] key : keys) {
+            ReadKey readKey = new ReadKey(databaseIndex, key);
+            CollapsedRead leader = new CollapsedRead();
+            CollapsedRead read = lead(readKey, leader);
+            if (read == null || read == leader) {
+                // a read that can't be shared is sent with the leading keys, but isn't registered
+                leadingKeys.add(key);
+                leadingReadKeys.add(readKey);
+                leaders.add(leader);
+                read = leader;
+            }
+            reads.add(read.future);
+        }
+
+        if (!leadingKeys.isEmpty()) {
+            gather(submitGetBulk(leadingKeys), null, GET_BULK_MERGER).addListener(
+                    new KyotoTycoonFutureListener<Map<byte[], byte[]>>() {
+                @Override
+                public void operationComplete(KyotoTycoonFuture<Map<byte[], byte[]>> future) {
+                    Map<byte[], byte[]> values = future.isSuccess() ? future.join() : null;
+                    for (int i = 0; i < leadingKeys.size(); ++i) {
+                        CollapsedRead leader = leaders.get(i);
+                        readsInFlight.remove(leadingReadKeys.get(i), leader);
+                        if (values != null) {
+                            leader.future.setSuccess(values.get(leadingKeys.get(i)));
+                        } else {
+                            leader.future.setFailure(future.getCause());
+                        }
+                    }
+                }
+            });
+        }
+
+        return gather(reads, executor, new ResultMerger<byte[], Map<byte[], byte[]>>() {
+            @Override
+            public Map<byte[], byte[]> merge(List<byte[]> values) {
+                // the response only carries the values here, so the expiration times are left unknown
+                GetBulkResponse result = new GetBulkResponse(0);
+                for (int i = 0; i < values.size(); ++i) {
+                    if (values.get(i) != null) {
+                        result.put(keys.get(i), values.get(i), Record.XT_MAX, databaseIndex);
+                    }
+                }
+                return result.getValues();
+            }
+        });
+    }
+
+    /**
+     * Returns a future notified with the executor, completed by a future shared among the callers.
+     */
+    private static <V> KyotoTycoonFuture<V> follow(KyotoTycoonFuture<V> shared, Executor executor) {
+        if (executor == null) {
+            return shared;
+        }
+        KyotoTycoonFuture<V> future = new KyotoTycoonFuture<V>(executor);
+        forward(shared, future);
+        return future;
+    }
+
+    /**
+     * Retrieves records at once along with their expiration times.
+     * 
+     * @param keys the keys of the records to retrieve.
+     * @return the retrieved records. Returns empty list if no record found. The list is unmodifiable.
+     */
+    public List<Record> getBulkRecords(List<byte[]> keys) throws KyotoTycoonOperationFailedException {
+        return gather(submitGetBulk(keys), null, GET_BULK_RECORDS_MERGER).join();
+    }
+
+    private List<KyotoTycoonFuture<GetBulkResponse>> submitGetBulk(List<byte[]> keys) {
+        List<byte[]>[] shards = partition(keys);
+        ArrayList<KyotoTycoonFuture<GetBulkResponse>> futures =
+                new ArrayList<KyotoTycoonFuture<GetBulkResponse>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                GetBulkRequest getbulk = new GetBulkRequest();
+                for (byte[] key : shards[i]) {
+                    getbulk.add(key, databaseIndex);
+                }
+                futures.add(submit(i, getbulk, null, GET_BULK_CONVERTER));
+            }
+        }
+        return futures;
     }
 
     @Override
     public Map<byte[], byte[]> playScript(String procedureName, Map<byte[], byte[]> params)
             throws KyotoTycoonOperationFailedException {
         PlayScriptRequest playScript = new PlayScriptRequest(procedureName, params);
-        Operation operation = call(playScript);
-        if (!operation.isSucceeded()) {
-            throw new KyotoTycoonOperationFailedException(
-                    "Failed to play_script(bin)", operation.getException());
+        return PLAY_SCRIPT_CONVERTER.convert(call(playScript));
+    }
+
+    @Override
+    protected KyotoTycoonFuture<Map<byte[], byte[]>> playScriptAsync(String procedureName,
+            Map<byte[], byte[]> params, Executor executor) {
+        PlayScriptRequest playScript = new PlayScriptRequest(procedureName, params);
+        return submit(0, playScript, executor, PLAY_SCRIPT_CONVERTER);
+    }
+
+    /**
+     * Stores a record without waiting for the reply.
+     * <p>
+     * The request is sent with the no-reply flag of the binary protocol, so the server sends no response.
+     * The returned future is done as soon as the request is written, and fails only when the write fails;
+     * whether the server has stored the record is never reported.
+     * The I/O thread notifies the listeners of the future.
+     * </p>
+     * 
+     * @param key the key of the record.
+     * @param value the value of the record.
+     * @param xt the expiration time of the record. If null is specified, no expiration time is specified.
+     * @return the future that is done when the request is written.
+     */
+    public KyotoTycoonFuture<Void> setNoReply(byte[] key, byte[] value, ExpirationTime xt) {
+        SetBulkRequest setbulk = new SetBulkRequest(key, value, xt, databaseIndex);
+        setbulk.setNoReply(true);
+        return submit(locate(key), setbulk, null, NO_REPLY_CONVERTER);
+    }
+
+    /**
+     * Stores records at once without waiting for the reply.
+     * See {@link #setNoReply(byte[], byte[], ExpirationTime)} for the completion of the future.
+     */
+    public KyotoTycoonFuture<Void> setBulkNoReply(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt) {
+        Map<byte[], byte[]>[] shards = partition(keyValuePairs);
+        ArrayList<KyotoTycoonFuture<Void>> futures = new ArrayList<KyotoTycoonFuture<Void>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                SetBulkRequest setbulk = new SetBulkRequest();
+                for (Map.Entry<byte[], byte[]> entry : shards[i].entrySet()) {
+                    setbulk.add(entry.getKey(), entry.getValue(), xt, databaseIndex);
+                }
+                setbulk.setNoReply(true);
+                futures.add(submit(i, setbulk, null, NO_REPLY_CONVERTER));
+            }
+        }
+        return gather(futures, null, VOID_MERGER);
+    }
+
+    /**
+     * Removes a record without waiting for the reply.
+     * See {@link #setNoReply(byte[], byte[], ExpirationTime)} for the completion of the future.
+     */
+    public KyotoTycoonFuture<Void> removeNoReply(byte[] key) {
+        RemoveBulkRequest request = new RemoveBulkRequest(key, databaseIndex);
+        request.setNoReply(true);
+        return submit(locate(key), request, null, NO_REPLY_CONVERTER);
+    }
+
+    /**
+     * Removes records at once without waiting for the reply.
+     * See {@link #setNoReply(byte[], byte[], ExpirationTime)} for the completion of the future.
+     */
+    public KyotoTycoonFuture<Void> removeBulkNoReply(List<byte[]> keys) {
+        List<byte[]>[] shards = partition(keys);
+        ArrayList<KyotoTycoonFuture<Void>> futures = new ArrayList<KyotoTycoonFuture<Void>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                RemoveBulkRequest request = new RemoveBulkRequest();
+                for (byte[] key : shards[i]) {
+                    request.add(key, databaseIndex);
+                }
+                request.setNoReply(true);
+                futures.add(submit(i, request, null, NO_REPLY_CONVERTER));
+            }
+        }
+        return gather(futures, null, VOID_MERGER);
+    }
+
+    /**
+     * Calls a procedure of the script language extension without waiting for the reply.
+     * See {@link #setNoReply(byte[], byte[], ExpirationTime)} for the completion of the future.
+     */
+    public KyotoTycoonFuture<Void> playScriptNoReply(String procedureName, Map<byte[], byte[]> params) {
+        PlayScriptRequest playScript = new PlayScriptRequest(procedureName, params);
+        playScript.setNoReply(true);
+        return submit(0, playScript, null, NO_REPLY_CONVERTER);
+    }
+
+    @Override
+    public long increment(final byte[] key, final long num, final long origin, final ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        if (!scriptProceduresLoaded || !ScriptProcedures.isExact(num) || !ScriptProcedures.isExact(origin)) {
+            return super.increment(key, num, origin, xt);
+        }
+        PlayScriptRequest request = ScriptProcedures.increment(key, num, origin, xt, databaseIndex);
+        try {
+            return new IncrementScriptConverter(key).convert(call(key, request));
+        } catch (ScriptErrorResponseException e) {
+            ensureScriptProceduresMissing(key, e);
+            return super.increment(key, num, origin, xt);
+        }
+    }
+
+    @Override
+    protected KyotoTycoonFuture<Long> incrementAsync(final byte[] key, final long num, final long origin,
+            final ExpirationTime xt, Executor executor) {
+        if (!scriptProceduresLoaded || !ScriptProcedures.isExact(num) || !ScriptProcedures.isExact(origin)) {
+            return super.incrementAsync(key, num, origin, xt, executor);
+        }
+        PlayScriptRequest request = ScriptProcedures.increment(key, num, origin, xt, databaseIndex);
+        return callScript(key, request, executor, new IncrementScriptConverter(key), new ScriptFallback<Long>() {
+            @Override
+            public KyotoTycoonFuture<Long> call() {
+                return KyotoTycoonBinaryClient.super.incrementAsync(key, num, origin, xt, null);
+            }
+        });
+    }
+
+    @Override
+    public boolean cas(byte[] key, byte[] expect, byte[] update, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        if (!scriptProceduresLoaded) {
+            return super.cas(key, expect, update, xt);
+        }
+        PlayScriptRequest request = ScriptProcedures.cas(key, expect, update, xt, databaseIndex);
+        try {
+            return new ResultScriptConverter("cas", key).convert(call(key, request));
+        } catch (ScriptErrorResponseException e) {
+            ensureScriptProceduresMissing(key, e);
+            return super.cas(key, expect, update, xt);
+        }
+    }
+
+    @Override
+    protected KyotoTycoonFuture<Boolean> casAsync(final byte[] key, final byte[] expect, final byte[] update,
+            final ExpirationTime xt, Executor executor) {
+        if (!scriptProceduresLoaded) {
+            return super.casAsync(key, expect, update, xt, executor);
+        }
+        PlayScriptRequest request = ScriptProcedures.cas(key, expect, update, xt, databaseIndex);
+        return callScript(key, request, executor, new ResultScriptConverter("cas", key), new ScriptFallback<Boolean>() {
+            @Override
+            public KyotoTycoonFuture<Boolean> call() {
+                return KyotoTycoonBinaryClient.super.casAsync(key, expect, update, xt, null);
+            }
+        });
+    }
+
+    @Override
+    public boolean add(byte[] key, byte[] value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        if (!scriptProceduresLoaded) {
+            return super.add(key, value, xt);
+        }
+        try {
+            return new ResultScriptConverter("add", key).convert(
+                    call(key, ScriptProcedures.add(key, value, xt, databaseIndex)));
+        } catch (ScriptErrorResponseException e) {
+            ensureScriptProceduresMissing(key, e);
+            return super.add(key, value, xt);
+        }
+    }
+
+    @Override
+    public boolean replace(byte[] key, byte[] value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        if (!scriptProceduresLoaded) {
+            return super.replace(key, value, xt);
+        }
+        try {
+            return new ResultScriptConverter("replace", key).convert(
+                    call(key, ScriptProcedures.replace(key, value, xt, databaseIndex)));
+        } catch (ScriptErrorResponseException e) {
+            ensureScriptProceduresMissing(key, e);
+            return super.replace(key, value, xt);
+        }
+    }
+
+    @Override
+    public byte[] seize(byte[] key) throws KyotoTycoonOperationFailedException {
+        if (!scriptProceduresLoaded) {
+            return super.seize(key);
+        }
+        try {
+            return new SeizeScriptConverter(key).convert(call(key, ScriptProcedures.seize(key, databaseIndex)));
+        } catch (ScriptErrorResponseException e) {
+            ensureScriptProceduresMissing(key, e);
+            return super.seize(key);
+        }
+    }
+
+    /**
+     * Disables the calls of the procedures if the server that answered a call with an error lacks them,
+     * or throws the error if the server has them, as the procedure failed then.
+     */
+    private void ensureScriptProceduresMissing(byte[] key, ScriptErrorResponseException e)
+            throws KyotoTycoonOperationFailedException {
+        if (probeScriptProcedures(locate(key)).join()) {
+            throw e;
+        }
+        scriptProceduresLoaded = false;
+    }
+
+    /**
+     * Calls a procedure of the bundled script, and goes back to TSV-RPC if the server lacks the procedure.
+     * A failure to send the call or to receive the response is never retried,
+     * since the procedure may have been carried out.
+     */
+    private <V> KyotoTycoonFuture<V> callScript(byte[] key, PlayScriptRequest request, Executor executor,
+            ScriptConverter<V> converter, final ScriptFallback<V> fallback) {
+        final KyotoTycoonFuture<V> future = new KyotoTycoonFuture<V>(executor);
+        final int server = locate(key);
+        submit(server, request, null, converter).addListener(new KyotoTycoonFutureListener<V>() {
+            @Override
+            public void operationComplete(final KyotoTycoonFuture<V> result) {
+                if (!(result.getCause() instanceof ScriptErrorResponseException)) {
+                    forward(result, future);
+                    return;
+                }
+                probeScriptProcedures(server).addListener(new KyotoTycoonFutureListener<Boolean>() {
+                    @Override
+                    public void operationComplete(KyotoTycoonFuture<Boolean> probe) {
+                        if (probe.isSuccess() && !probe.join()) {
+                            scriptProceduresLoaded = false;
+                            try {
+                                forward(fallback.call(), future);
+                            } catch (RuntimeException e) {
+                                future.setFailure(e);
+                            }
+                        } else {
+                            forward(result, future);
+                        }
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Tests the server has the procedures of the bundled script by calling kt4j_version.
+     *
+     * @return the future of true if the server has them, or false if the server answers with an error.
+     */
+    private KyotoTycoonFuture<Boolean> probeScriptProcedures(int server) {
+        return submit(server, new PlayScriptRequest(ScriptProcedures.VERSION), null, SCRIPT_PROBE_CONVERTER);
+    }
+
+    private static <V> void forward(KyotoTycoonFuture<V> source, final KyotoTycoonFuture<V> destination) {
+        source.addListener(new KyotoTycoonFutureListener<V>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<V> source) {
+                if (source.isSuccess()) {
+                    destination.setSuccess(source.join());
+                } else {
+                    destination.setFailure(source.getCause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Calls the TSV-RPC counterpart of a procedure of the bundled script.
+     */
+    private interface ScriptFallback<V> {
+        KyotoTycoonFuture<V> call();
+    }
+
+    private static final ResultConverter<Void> SET_BULK_CONVERTER = new ResultConverter<Void>() {
+        @Override
+        public Void convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to set_bulk(bin)", operation.getException());
+            }
+            return null;
+        }
+    };
+
+    private static final ResultConverter<Void> NO_REPLY_CONVERTER = new ResultConverter<Void>() {
+        @Override
+        public Void convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to write " + operation.getRequest().command.procedureName + "(bin)",
+                        operation.getException());
+            }
+            return null;
+        }
+    };
+
+    private static final ResultConverter<Long> REMOVE_BULK_CONVERTER = new ResultConverter<Long>() {
+        @Override
+        public Long convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to remove_bulk(bin)", operation.getException());
+            }
+            BinaryResponse response = (BinaryResponse) operation.getResponse();
+            return response.getNumber();
+        }
+    };
+
+    private static final ResultConverter<GetBulkResponse> GET_BULK_CONVERTER =
+            new ResultConverter<GetBulkResponse>() {
+        @Override
+        public GetBulkResponse convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to get_bulk(bin)", operation.getException());
+            }
+            return (GetBulkResponse) operation.getResponse();
+        }
+    };
+
+    private static final ResultMerger<GetBulkResponse, Map<byte[], byte[]>> GET_BULK_MERGER =
+            new ResultMerger<GetBulkResponse, Map<byte[], byte[]>>() {
+        @Override
+        public Map<byte[], byte[]> merge(List<GetBulkResponse> results) {
+            if (results.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            GetBulkResponse result = results.get(0);
+            for (int i = 1; i < results.size(); ++i) {
+                result.putAll(results.get(i));
+            }
+            return result.getValues();
+        }
+    };
+
+    private static final ResultMerger<GetBulkResponse, List<Record>> GET_BULK_RECORDS_MERGER =
+            new ResultMerger<GetBulkResponse, List<Record>>() {
+        @Override
+        public List<Record> merge(List<GetBulkResponse> results) {
+            ArrayList<Record> records = new ArrayList<Record>();
+            for (GetBulkResponse result : results) {
+                records.addAll(result.getRecords());
+            }
+            return Collections.unmodifiableList(records);
+        }
+    };
+
+    private static final ResultConverter<Map<byte[], byte[]>> PLAY_SCRIPT_CONVERTER =
+            new ResultConverter<Map<byte[], byte[]>>() {
+        @Override
+        public Map<byte[], byte[]> convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to play_script(bin)", operation.getException());
+            }
+            PlayScriptResponse response = (PlayScriptResponse) operation.getResponse();
+            return response.getValues();
+        }
+    };
+
+    private static final ResultConverter<Boolean> SCRIPT_PROBE_CONVERTER = new ResultConverter<Boolean>() {
+        @Override
+        public Boolean convert(Operation operation) {
+            if (operation.getException() != null) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to play_script(bin): " + ScriptProcedures.VERSION, operation.getException());
+            }
+            return operation.isSucceeded();
+        }
+    };
+
+    /**
+     * Thrown when the server answers a call of a procedure of the bundled script with an error.
+     * Either the server doesn't have the procedure, or the procedure failed on the server.
+     */
+    private static class ScriptErrorResponseException extends KyotoTycoonOperationFailedException {
+        private static final long serialVersionUID = 1L;
+
+        ScriptErrorResponseException(String message) {
+            super(message);
+        }
+    }
+
+    private abstract static class ScriptConverter<V> implements ResultConverter<V> {
+        private final String name;
+        protected final byte[] key;
+
+        ScriptConverter(String name, byte[] key) {
+            this.name = name;
+            this.key = key;
+        }
+
+        @Override
+        public V convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                if (operation.getException() == null) {
+                    throw new ScriptErrorResponseException("Failed to " + name + "(bin script): key=" + Arrays.toString(key));
+                }
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to " + name + "(bin script): key=" + Arrays.toString(key), operation.getException());
+            }
+            return convert((PlayScriptResponse) operation.getResponse());
+        }
+
+        protected abstract V convert(PlayScriptResponse response);
+    }
+
+    private static class IncrementScriptConverter extends ScriptConverter<Long> {
+        IncrementScriptConverter(byte[] key) {
+            super("increment", key);
+        }
+
+        @Override
+        protected Long convert(PlayScriptResponse response) {
+            if (response.getValue(ScriptProcedures.ERROR) != null) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to increment(the existing record is not compatible): key=" + Arrays.toString(key));
+            }
+            return Long.parseLong(Bytes.utf8(response.getValue(ScriptProcedures.NUM)));
+        }
+    }
+
+    private static class ResultScriptConverter extends ScriptConverter<Boolean> {
+        ResultScriptConverter(String name, byte[] key) {
+            super(name, key);
+        }
+
+        @Override
+        protected Boolean convert(PlayScriptResponse response) {
+            return "true".equals(Bytes.utf8(response.getValue(ScriptProcedures.RESULT)));
+        }
+    }
+
+    private static class SeizeScriptConverter extends ScriptConverter<byte[]> {
+        SeizeScriptConverter(byte[] key) {
+            super("seize", key);
+        }
+
+        @Override
+        protected byte[] convert(PlayScriptResponse response) {
+            return response.getValue(ScriptProcedures.VALUE);
+        }
+    }
+
+    private static class SetConverter implements ResultConverter<Void> {
+        private final byte[] key;
+
+        SetConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public Void convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to set(bin): key=" + Arrays.toString(key), operation.getException());
+            }
+            return null;
+        }
+    }
+
+    private static class GetConverter implements ResultConverter<byte[]> {
+        private final byte[] key;
+
+        GetConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public byte[] convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to get(bin): key=" + Arrays.toString(key), operation.getException());
+            }
+            GetBulkResponse response = (GetBulkResponse) operation.getResponse();
+            return response.getValue(key);
+        }
+    }
+
+    private static class RemoveConverter implements ResultConverter<Boolean> {
+        private final byte[] key;
+
+        RemoveConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public Boolean convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to remove(bin): key=" + Arrays.toString(key), operation.getException());
+            }
+            BinaryResponse response = (BinaryResponse) operation.getResponse();
+            if (response.getNumber() > 0) {
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sends the coalesced get operations as a get_bulk request.
+     */
+    private class GetCoalescer extends Coalescer<PendingGet> {
+        GetCoalescer(ScheduledExecutorService scheduler) {
+            super(scheduler, getServerCount(), getCoalescingWindowNanos,
+                    getCoalescingMaxKeys, Integer.MAX_VALUE);
+        }
+
+        @Override
+        protected KyotoTycoonFuture<?> flush(int serverIndex, final List<PendingGet> requests) {
+            GetBulkRequest getbulk = new GetBulkRequest();
+            for (PendingGet get : requests) {
+                getbulk.add(get.key, get.dbidx);
+            }
+            KyotoTycoonFuture<GetBulkResponse> sent = submit(serverIndex, getbulk, null, GET_BULK_CONVERTER);
+            sent.addListener(new KyotoTycoonFutureListener<GetBulkResponse>() {
+                @Override
+                public void operationComplete(KyotoTycoonFuture<GetBulkResponse> future) {
+                    if (future.isSuccess()) {
+                        GetBulkResponse response = future.join();
+                        for (PendingGet get : requests) {
+                            get.future.setSuccess(response.getValue(get.key, get.dbidx));
+                        }
+                    } else {
+                        for (PendingGet get : requests) {
+                            get.future.setFailure(new KyotoTycoonOperationFailedException(
+                                    "Failed to get(bin): key=" + Arrays.toString(get.key), future.getCause()));
+                        }
+                    }
+                }
+            });
+            return sent;
+        }
+    }
+
+    /**
+     * A read that the callers of the same record share.
+     */
+    private static class CollapsedRead {
+        final KyotoTycoonFuture<byte[]> future = new KyotoTycoonFuture<byte[]>();
+
+        /** The number of the writes this client had sent when the read was sent. */
+        long writesSent;
+    }
+
+    /**
+     * Identifies a record read in flight.
+     */
+    private static class ReadKey {
+        final int dbidx;
+        final byte[] key;
+        final int hash;
+
+        ReadKey(int dbidx, byte[] key) {
+            this.dbidx = dbidx;
+            this.key = key;
+            this.hash = 31 * dbidx + Arrays.hashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ReadKey)) {
+                return false;
+            }
+            ReadKey other = (ReadKey) obj;
+            return dbidx == other.dbidx && Arrays.equals(key, other.key);
+        }
+    }
+
+    private static class PendingGet {
+        final byte[] key;
+        final int dbidx;
+        final KyotoTycoonFuture<byte[]> future;
+
+        PendingGet(byte[] key, int dbidx, KyotoTycoonFuture<byte[]> future) {
+            this.key = key;
+            this.dbidx = dbidx;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Sends the coalesced set operations as a set_bulk request.
+     */
+    private class SetCoalescer extends Coalescer<PendingSet> {
+        SetCoalescer(ScheduledExecutorService scheduler) {
+            super(scheduler, getServerCount(), writeCoalescingLingerNanos,
+                    Integer.MAX_VALUE, writeCoalescingMaxBytes);
+        }
+
+        @Override
+        protected KyotoTycoonFuture<?> flush(int serverIndex, final List<PendingSet> requests) {
+            SetBulkRequest setbulk = new SetBulkRequest();
+            for (PendingSet set : requests) {
+                setbulk.add(set.record);
+            }
+            KyotoTycoonFuture<Void> sent = submit(serverIndex, setbulk, null, SET_BULK_CONVERTER);
+            sent.addListener(new KyotoTycoonFutureListener<Void>() {
+                @Override
+                public void operationComplete(KyotoTycoonFuture<Void> future) {
+                    for (PendingSet set : requests) {
+                        if (future.isSuccess()) {
+                            set.future.setSuccess(null);
+                        } else {
+                            set.future.setFailure(new KyotoTycoonOperationFailedException(
+                                    "Failed to set(bin): key=" + Arrays.toString(set.record.key),
+                                    future.getCause()));
+                        }
+                    }
+                }
+            });
+            return sent;
+        }
+    }
+
+    /**
+     * Sends the coalesced remove operations as a remove_bulk request.
+     */
+    private class RemoveCoalescer extends Coalescer<PendingRemove> {
+        RemoveCoalescer(ScheduledExecutorService scheduler) {
+            super(scheduler, getServerCount(), writeCoalescingLingerNanos,
+                    Integer.MAX_VALUE, writeCoalescingMaxBytes);
+        }
+
+        @Override
+        protected KyotoTycoonFuture<?> flush(int serverIndex, final List<PendingRemove> requests) {
+            RemoveBulkRequest request = new RemoveBulkRequest();
+            for (PendingRemove remove : requests) {
+                request.add(remove.key, remove.dbidx);
+            }
+            final RemoveHitPolicy policy = removeHitPolicy;
+            KyotoTycoonFuture<Long> sent = submit(serverIndex, request, null, REMOVE_BULK_CONVERTER);
+            sent.addListener(new KyotoTycoonFutureListener<Long>() {
+                @Override
+                public void operationComplete(KyotoTycoonFuture<Long> future) {
+                    if (!future.isSuccess()) {
+                        for (PendingRemove remove : requests) {
+                            remove.future.setFailure(new KyotoTycoonOperationFailedException(
+                                    "Failed to remove(bin): key=" + Arrays.toString(remove.key),
+                                    future.getCause()));
+                        }
+                        return;
+                    }
+                    
+                    long hits = future.join();
+                    boolean removed;
+                    if (hits <= 0) {
+                        removed = false;
+                    } else if (hits >= requests.size()) {
+                        removed = true;
+                    } else {
+                        removed = (policy == RemoveHitPolicy.OPTIMISTIC);
+                    }
+                    for (PendingRemove remove : requests) {
+                        remove.future.setSuccess(removed);
+                    }
+                }
+            });
+            return sent;
+        }
+    }
+
+    private static class PendingSet {
+        final Record record;
+        final KyotoTycoonFuture<Void> future;
+
+        PendingSet(Record record, KyotoTycoonFuture<Void> future) {
+            this.record = record;
+            this.future = future;
+        }
+    }
+
+    private static class PendingRemove {
+        final byte[] key;
+        final int dbidx;
+        final KyotoTycoonFuture<Boolean> future;
+
+        PendingRemove(byte[] key, int dbidx, KyotoTycoonFuture<Boolean> future) {
+            this.key = key;
+            this.dbidx = dbidx;
+            this.future = future;
         }
-        
-        PlayScriptResponse response = (PlayScriptResponse) operation.getResponse();
-        return response.getValues();
     }
 }
@@ -3,17 +3,21 @@ package kt4j.binary;
 import java.util.Arrays;
 
 /**
+ * A record retrieved with the binary protocol, along with its expiration time.
  * 
  * @author kumai
  *
  */
-class Record {
+public class Record {
     static final int DBIDX_LENGTH = 2;
     static final int KSIZ_LENGTH = 4;
     static final int VSIZ_LENGTH = 4;
     static final int XT_LENGTH = 8;
     static final int HEADER_LENGTH = DBIDX_LENGTH + KSIZ_LENGTH + VSIZ_LENGTH + XT_LENGTH;
     
+    /** The expiration time that Kyoto Tycoon gives to the records without expiration. */
+    static final long XT_MAX = (1L << 40) - 1;
+    
     final int dbidx;
     final long xt;
     final byte[] key;
@@ -26,6 +30,30 @@ class Record {
         this.value = value;
     }
 
+    /**
+     * Returns the index of the database that the record belongs to.
+     */
+    public int getDatabaseIndex() {
+        return dbidx;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the epoch time in seconds when the record expires.
+     * 
+     * @return the expiration time, or <code>Long.MAX_VALUE</code> if the record doesn't expire.
+     */
+    public long getExpirationTime() {
+        return (0 < xt && xt < XT_MAX) ? xt : Long.MAX_VALUE;
+    }
+
     int length() {
         return HEADER_LENGTH + key.length + value.length;
     }
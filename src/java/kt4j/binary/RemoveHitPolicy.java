@@ -0,0 +1,23 @@
+package kt4j.binary;
+
+/**
+ * Decides the result of a coalesced {@link KyotoTycoonBinaryClient#remove(byte[])} call.
+ * <p>
+ * The response of a remove_bulk request only tells the number of the removed records,
+ * not which of them were removed. When the number is neither 0 nor the number of the keys
+ * in the batch, the result of each caller is ambiguous, and this policy decides it.
+ * </p>
+ * 
+ * @author kumai
+ */
+public enum RemoveHitPolicy {
+    /**
+     * Reports ambiguous removals as removed (true).
+     */
+    OPTIMISTIC,
+    
+    /**
+     * Reports ambiguous removals as not found (false).
+     */
+    PESSIMISTIC,
+}
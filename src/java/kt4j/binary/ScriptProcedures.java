@@ -0,0 +1,83 @@
+package kt4j.binary;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import kt4j.Bytes;
+import kt4j.ExpirationTime;
+
+/**
+ * Builds the calls of the procedures in <code>kt4j/kt4j.lua</code>, the script bundled with kt4j,
+ * which let the binary protocol carry the operations that have no binary command.
+ * 
+ * @author kumai
+ */
+final class ScriptProcedures {
+    static final String VERSION = "kt4j_version";
+    static final String INCREMENT = "kt4j_increment";
+    static final String CAS = "kt4j_cas";
+    static final String ADD = "kt4j_add";
+    static final String REPLACE = "kt4j_replace";
+    static final String SEIZE = "kt4j_seize";
+
+    static final byte[] NUM = Bytes.utf8("num");
+    static final byte[] RESULT = Bytes.utf8("result");
+    static final byte[] VALUE = Bytes.utf8("value");
+    static final byte[] ERROR = Bytes.utf8("error");
+
+    /** The largest magnitude that the numbers of the script language represent exactly. */
+    private static final long MAX_EXACT_NUMBER = 1L << 53;
+
+    private ScriptProcedures() {}
+
+    /**
+     * Tests the number can be passed to the script language without losing precision.
+     */
+    static boolean isExact(long number) {
+        return (-MAX_EXACT_NUMBER <= number && number <= MAX_EXACT_NUMBER);
+    }
+
+    static PlayScriptRequest increment(byte[] key, long num, long origin, ExpirationTime xt, int databaseIndex) {
+        Map<byte[], byte[]> params = params(key, xt, databaseIndex);
+        params.put(NUM, Bytes.utf8(String.valueOf(num)));
+        params.put(Bytes.utf8("orig"), Bytes.utf8(String.valueOf(origin)));
+        return new PlayScriptRequest(INCREMENT, params);
+    }
+
+    static PlayScriptRequest cas(byte[] key, byte[] expect, byte[] update, ExpirationTime xt, int databaseIndex) {
+        Map<byte[], byte[]> params = params(key, xt, databaseIndex);
+        if (expect != null) {
+            params.put(Bytes.utf8("oval"), expect);
+        }
+        if (update != null) {
+            params.put(Bytes.utf8("nval"), update);
+        }
+        return new PlayScriptRequest(CAS, params);
+    }
+
+    static PlayScriptRequest add(byte[] key, byte[] value, ExpirationTime xt, int databaseIndex) {
+        Map<byte[], byte[]> params = params(key, xt, databaseIndex);
+        params.put(VALUE, value);
+        return new PlayScriptRequest(ADD, params);
+    }
+
+    static PlayScriptRequest replace(byte[] key, byte[] value, ExpirationTime xt, int databaseIndex) {
+        Map<byte[], byte[]> params = params(key, xt, databaseIndex);
+        params.put(VALUE, value);
+        return new PlayScriptRequest(REPLACE, params);
+    }
+
+    static PlayScriptRequest seize(byte[] key, int databaseIndex) {
+        return new PlayScriptRequest(SEIZE, params(key, null, databaseIndex));
+    }
+
+    private static Map<byte[], byte[]> params(byte[] key, ExpirationTime xt, int databaseIndex) {
+        Map<byte[], byte[]> params = new LinkedHashMap<byte[], byte[]>();
+        params.put(Bytes.utf8("key"), key);
+        params.put(Bytes.utf8("DB"), Bytes.utf8(String.valueOf(databaseIndex)));
+        if (xt != null) {
+            params.put(Bytes.utf8("xt"), Bytes.utf8(xt.toString()));
+        }
+        return params;
+    }
+}
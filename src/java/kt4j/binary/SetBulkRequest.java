@@ -3,6 +3,8 @@ package kt4j.binary;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 import kt4j.ExpirationTime;
 import kt4j.Request;
 
@@ -30,66 +32,38 @@ class SetBulkRequest extends BinaryRequest {
     
     public SetBulkRequest add(byte[] key, byte[] value, ExpirationTime xt, int databaseIndex) {
         long expirationTime = (xt == null) ? Long.MAX_VALUE : xt.value;
-        records.add(new Record(databaseIndex, key, value, expirationTime));
+        return add(new Record(databaseIndex, key, value, expirationTime));
+    }
+    
+    SetBulkRequest add(Record record) {
+        records.add(record);
         return this;
     }
     
     @Override
-    public byte[] encode() {
-        int numRecords = getNumberOfRecords();
-        
-        int messageLength = HEADER_BYTE_LENGTH;
+    public ChannelBuffer encode() {
+        int copiedLength = HEADER_BYTE_LENGTH;
         for (Record record : records) {
-            messageLength += record.length();
+            copiedLength += Record.HEADER_LENGTH;
+            copiedLength += BinaryMessageBuilder.copiedLength(record.key);
+            copiedLength += BinaryMessageBuilder.copiedLength(record.value);
         }
         
-        byte[] message = new byte[messageLength];
-        
-        int i = 0;
-        
-        message[i++] = command.magic;
-        
-        // flags
-        message[i++] = (byte) ((flags >>> 24) & 0xFF);
-        message[i++] = (byte) ((flags >>> 16) & 0xFF);
-        message[i++] = (byte) ((flags >>>  8) & 0xFF);
-        message[i++] = (byte) ((flags >>>  0) & 0xFF);
-        
-        message[i++] = (byte) ((numRecords >>> 24) & 0xFF);
-        message[i++] = (byte) ((numRecords >>> 16) & 0xFF);
-        message[i++] = (byte) ((numRecords >>>  8) & 0xFF);
-        message[i++] = (byte) ((numRecords >>>  0) & 0xFF);
+        BinaryMessageBuilder message = new BinaryMessageBuilder(copiedLength)
+                .writeByte(command.magic)
+                .writeInt(flags)
+                .writeInt(getNumberOfRecords());
         
         // Record
         for (Record record : records) {
-            message[i++] = (byte) ((record.dbidx >>> 8) & 0xFF);
-            message[i++] = (byte) ((record.dbidx >>> 0) & 0xFF);
-            
-            message[i++] = (byte) ((record.key.length >>> 24) & 0xFF);
-            message[i++] = (byte) ((record.key.length >>> 16) & 0xFF);
-            message[i++] = (byte) ((record.key.length >>>  8) & 0xFF);
-            message[i++] = (byte) ((record.key.length >>>  0) & 0xFF);
-            
-            message[i++] = (byte) ((record.value.length >>> 24) & 0xFF);
-            message[i++] = (byte) ((record.value.length >>> 16) & 0xFF);
-            message[i++] = (byte) ((record.value.length >>>  8) & 0xFF);
-            message[i++] = (byte) ((record.value.length >>>  0) & 0xFF);
-
-            message[i++] = (byte) ((record.xt >>> 56) & 0xFF);
-            message[i++] = (byte) ((record.xt >>> 48) & 0xFF);
-            message[i++] = (byte) ((record.xt >>> 40) & 0xFF);
-            message[i++] = (byte) ((record.xt >>> 32) & 0xFF);
-            message[i++] = (byte) ((record.xt >>> 24) & 0xFF);
-            message[i++] = (byte) ((record.xt >>> 16) & 0xFF);
-            message[i++] = (byte) ((record.xt >>>  8) & 0xFF);
-            message[i++] = (byte) ((record.xt >>>  0) & 0xFF);
-            
-            System.arraycopy(record.key, 0, message, i, record.key.length);
-            i += record.key.length;
-            System.arraycopy(record.value, 0, message, i, record.value.length);
-            i += record.value.length;
+            message.writeShort(record.dbidx)
+                   .writeInt(record.key.length)
+                   .writeInt(record.value.length)
+                   .writeLong(record.xt)
+                   .writeBytes(record.key)
+                   .writeBytes(record.value);
         }
         
-        return message;
+        return message.build();
     }
 }
@@ -0,0 +1,324 @@
+package kt4j.binary;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import kt4j.AsyncKyotoTycoonClient;
+import kt4j.Bytes.ByteArrayWrapper;
+import kt4j.ExpirationTime;
+import kt4j.KyotoTycoonFuture;
+import kt4j.KyotoTycoonOperationFailedException;
+
+/**
+ * Buffers the writes to {@link KyotoTycoonBinaryClient}, and sends only the last write of each key.
+ * <p>
+ * {@link #set(byte[], byte[], ExpirationTime)} and {@link #remove(byte[])} keep the latest write of
+ * each key in process and return at once. After {@link #start()}, the buffer is flushed every
+ * interval, and also as soon as it holds the max records; the flushes run in the thread of the
+ * buffer, never in the writing thread. A flush sends the sets as set_bulk and the removes as
+ * remove_bulk, grouping the sets by their expiration times. So a key overwritten many times within
+ * an interval is written to the server once.
+ * </p>
+ * <p>
+ * The flushes run one at a time and each waits for its responses, so the writes of a key reach
+ * the server in order. The writes of a failed flush are buffered again unless a newer write of
+ * the same key has replaced them, and retried by the next flush.
+ * </p>
+ * <p>
+ * The buffer holds the writes of at most <code>capacity</code> keys, counting the ones being
+ * flushed. While the server is down, the writes of the new keys beyond that are rejected with
+ * {@link KyotoTycoonOperationFailedException}, and the caller decides whether to write them
+ * directly, retry or drop them.
+ * </p>
+ * <p>
+ * The buffered writes are not visible to the reads through the client until they are flushed,
+ * and are lost if the process dies. Call {@link #stop()}, which flushes the buffer and waits,
+ * before stopping the client.
+ * </p>
+ *
+ * @author kumai
+ */
+public class WriteBehindBuffer {
+    private final AsyncKyotoTycoonClient client;
+    private final long intervalNanos;
+    private final int maxRecords;
+    private final int capacity;
+    private final Object flushLock = new Object();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (KyotoTycoonOperationFailedException e) {
+                // buffered again, and retried by the next flush
+            }
+        }
+    };
+
+    // guarded by this
+    private LinkedHashMap<ByteArrayWrapper, PendingWrite> buffer = new LinkedHashMap<ByteArrayWrapper, PendingWrite>();
+    private int flushing;
+    private boolean flushRequested;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param client the client to write the records with.
+     * @param interval the interval to flush the buffer at.
+     * @param unit the unit of <code>interval</code>.
+     * @param maxRecords the number of the buffered keys that flushes the buffer.
+     * @param capacity the maximum number of the buffered keys, including the ones being flushed.
+     * @throws IllegalArgumentException if <code>interval</code> or <code>maxRecords</code> is not positive,
+     *      or <code>capacity</code> is less than <code>maxRecords</code>
+     */
+    public WriteBehindBuffer(KyotoTycoonBinaryClient client, long interval, TimeUnit unit, int maxRecords,
+            int capacity) throws IllegalArgumentException {
+        this(client.async(), interval, unit, maxRecords, capacity);
+    }
+
+    WriteBehindBuffer(AsyncKyotoTycoonClient client, long interval, TimeUnit unit, int maxRecords, int capacity)
+            throws IllegalArgumentException {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval");
+        }
+        if (maxRecords < 1) {
+            throw new IllegalArgumentException("maxRecords");
+        }
+        if (capacity < maxRecords) {
+            throw new IllegalArgumentException("capacity");
+        }
+        this.client = client;
+        this.intervalNanos = unit.toNanos(interval);
+        this.maxRecords = maxRecords;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Starts flushing the buffer every interval and whenever it holds the max records.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kt4j-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(flushTask, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        requestFlushIfFull();
+    }
+
+    /**
+     * Stops flushing every interval, and flushes the buffer.
+     *
+     * @throws KyotoTycoonOperationFailedException if the last flush failed.
+     *      The writes stay in the buffer.
+     */
+    public void stop() throws KyotoTycoonOperationFailedException {
+        ScheduledExecutorService scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler;
+            this.scheduler = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Buffers a write of a record, replacing the buffered write of the same key.
+     *
+     * @param key the key of the record.
+     * @param value the value of the record.
+     * @param xt the expiration time of the record. If null is specified, no expiration time is specified.
+     * @throws KyotoTycoonOperationFailedException if the buffer is full.
+     */
+    public void set(byte[] key, byte[] value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        buffer(new PendingWrite(key, value, xt));
+    }
+
+    /**
+     * Buffers a removal of a record, replacing the buffered write of the same key.
+     *
+     * @param key the key of the record.
+     * @throws KyotoTycoonOperationFailedException if the buffer is full.
+     */
+    public void remove(byte[] key) throws KyotoTycoonOperationFailedException {
+        buffer(new PendingWrite(key, null, null));
+    }
+
+    /**
+     * Returns the number of the keys buffered, not counting the ones being flushed.
+     */
+    public synchronized int size() {
+        return buffer.size();
+    }
+
+    private synchronized void buffer(PendingWrite write) throws KyotoTycoonOperationFailedException {
+        ByteArrayWrapper wrapper = new ByteArrayWrapper(write.key);
+        if (buffer.size() + flushing >= capacity && !buffer.containsKey(wrapper)) {
+            throw new KyotoTycoonOperationFailedException("Write-behind buffer is full: capacity=" + capacity);
+        }
+        buffer.put(wrapper, write);
+        requestFlushIfFull();
+    }
+
+    /**
+     * Hands a flush to the thread of the buffer if the buffer holds the max records.
+     */
+    private synchronized void requestFlushIfFull() {
+        if (buffer.size() >= maxRecords && !flushRequested && scheduler != null) {
+            flushRequested = true;
+            scheduler.execute(flushTask);
+        }
+    }
+
+    /**
+     * Sends the buffered writes and waits for the responses.
+     *
+     * @throws KyotoTycoonOperationFailedException if any request failed.
+     *      The failed writes are buffered again.
+     */
+    public void flush() throws KyotoTycoonOperationFailedException {
+        synchronized (flushLock) {
+            LinkedHashMap<ByteArrayWrapper, PendingWrite> writes;
+            synchronized (this) {
+                flushRequested = false;
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                writes = buffer;
+                buffer = new LinkedHashMap<ByteArrayWrapper, PendingWrite>();
+                flushing = writes.size();
+            }
+
+            ArrayList<byte[]> failed = new ArrayList<byte[]>();
+            KyotoTycoonOperationFailedException failure = null;
+            boolean sent = false;
+            try {
+                failure = send(writes, failed);
+                sent = true;
+            } finally {
+                synchronized (this) {
+                    if (!sent) {
+                        failed.clear();
+                        for (PendingWrite write : writes.values()) {
+                            failed.add(write.key);
+                        }
+                    }
+                    rebuffer(writes, failed);
+                    flushing = 0;
+                    requestFlushIfFull();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Sends the writes, and collects the keys of the failed ones.
+     *
+     * @return the last failure, or null if all the writes succeeded.
+     */
+    private KyotoTycoonOperationFailedException send(Map<ByteArrayWrapper, PendingWrite> writes, List<byte[]> failed) {
+        // the sets sharing an expiration time go in one set_bulk
+        LinkedHashMap<Long, Map<byte[], byte[]>> sets = new LinkedHashMap<Long, Map<byte[], byte[]>>();
+        LinkedHashMap<Long, ExpirationTime> expirationTimes = new LinkedHashMap<Long, ExpirationTime>();
+        ArrayList<byte[]> removes = new ArrayList<byte[]>();
+        for (PendingWrite write : writes.values()) {
+            if (write.value == null) {
+                removes.add(write.key);
+                continue;
+            }
+            Long group = (write.xt != null) ? write.xt.value : null;
+            Map<byte[], byte[]> records = sets.get(group);
+            if (records == null) {
+                records = new LinkedHashMap<byte[], byte[]>();
+                sets.put(group, records);
+                expirationTimes.put(group, write.xt);
+            }
+            records.put(write.key, write.value);
+        }
+
+        List<KyotoTycoonFuture<Void>> setFutures = new ArrayList<KyotoTycoonFuture<Void>>(sets.size());
+        KyotoTycoonFuture<Long> removeFuture = null;
+        KyotoTycoonOperationFailedException failure = null;
+        try {
+            for (Map.Entry<Long, Map<byte[], byte[]>> entry : sets.entrySet()) {
+                setFutures.add(client.setBulk(entry.getValue(), expirationTimes.get(entry.getKey())));
+            }
+            if (!removes.isEmpty()) {
+                removeFuture = client.removeBulk(removes);
+            }
+        } catch (KyotoTycoonOperationFailedException e) {
+            failure = e;
+        }
+
+        int i = 0;
+        for (Map<byte[], byte[]> records : sets.values()) {
+            if (i >= setFutures.size()) {
+                failed.addAll(records.keySet());    // not sent
+                continue;
+            }
+            try {
+                setFutures.get(i++).join();
+            } catch (KyotoTycoonOperationFailedException e) {
+                failure = e;
+                failed.addAll(records.keySet());
+            }
+        }
+        if (!removes.isEmpty()) {
+            if (removeFuture == null) {
+                failed.addAll(removes);     // not sent
+            } else {
+                try {
+                    removeFuture.join();
+                } catch (KyotoTycoonOperationFailedException e) {
+                    failure = e;
+                    failed.addAll(removes);
+                }
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Buffers the failed writes again, unless newer writes of the same keys have been buffered.
+     * This must be called with the lock of this buffer.
+     */
+    private void rebuffer(Map<ByteArrayWrapper, PendingWrite> writes, Iterable<byte[]> keys) {
+        for (byte[] key : keys) {
+            ByteArrayWrapper wrapper = new ByteArrayWrapper(key);
+            if (!buffer.containsKey(wrapper)) {
+                buffer.put(wrapper, writes.get(wrapper));
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        final byte[] key;
+        final byte[] value;
+        final ExpirationTime xt;
+
+        PendingWrite(byte[] key, byte[] value, ExpirationTime xt) {
+            this.key = key;
+            this.value = value;
+            this.xt = xt;
+        }
+    }
+}
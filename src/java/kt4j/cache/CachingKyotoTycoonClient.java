@@ -0,0 +1,806 @@
+package kt4j.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import kt4j.AbstractKyotoTycoonClient;
+import kt4j.Bytes;
+import kt4j.Bytes.ByteArrayWrapper;
+import kt4j.ExpirationTime;
+import kt4j.KyotoTycoonClient;
+import kt4j.KyotoTycoonOperationFailedException;
+import kt4j.binary.KyotoTycoonBinaryClient;
+import kt4j.binary.Record;
+import kt4j.tsvrpc.KyotoTycoonTsvRpcClient;
+
+/**
+ * A {@link KyotoTycoonClient} that keeps the recently read records in process, in front of another client.
+ * <p>
+ * get and getBulk answer from the cache first, and getBulk fetches only the missed keys in one request.
+ * The cache is bounded by the total size of the keys and the values, and keeps the records
+ * accessed most often (see {@link NearCache}).
+ * </p>
+ * <p>
+ * An entry expires with the record: the expiration time passed to set, or the one read with
+ * the record when the underlying client is a {@link KyotoTycoonBinaryClient}.
+ * No entry lives longer than the max TTL either, which bounds how long the writes of
+ * the other clients stay unseen.
+ * </p>
+ * <p>
+ * The writes through this client update or invalidate the cached entries of their keys:
+ * set and setBulk cache the new values, and remove, removeBulk, seize, cas, add, replace,
+ * increment and incrementDouble invalidate them. clear invalidates all. playScript doesn't
+ * invalidate anything; call {@link #invalidate(byte[])} for the records that a procedure changes.
+ * </p>
+ * <p>
+ * A second tier can be kept in a memory-mapped file with {@link #setPersistentCache(File, int, int)}.
+ * The records missed in process are looked up in the file before the server, and the file
+ * outlives the process, so a restarted client serves its working set without reloading it
+ * from the server. The records in the file expire with their expiration times too.
+ * </p>
+ * <p>
+ * The cached values are shared with the callers, and must not be modified.
+ * </p>
+ *
+ * @author kumai
+ */
+public class CachingKyotoTycoonClient implements KyotoTycoonClient {
+    /** The default max TTL, 60 seconds. */
+    public static final long DEFAULT_MAX_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /** The default max TTL of the persistent cache, 1 hour. */
+    public static final long DEFAULT_PERSISTENT_MAX_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final KyotoTycoonClient client;
+    private final KyotoTycoonBinaryClient binaryClient;
+    private final NearCache cache;
+    private long maxTtlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_TTL_MILLIS);
+    private File persistentFile;
+    private int persistentSlots;
+    private int persistentSlotSize;
+    private long persistentMaxTtlMillis = DEFAULT_PERSISTENT_MAX_TTL_MILLIS;
+    private volatile MappedCache persistentCache;
+
+    /**
+     * @param client the client to cache the records of.
+     * @param maxBytes the maximum size of the cache in bytes.
+     */
+    public CachingKyotoTycoonClient(KyotoTycoonClient client, long maxBytes) {
+        if (client == null) {
+            throw new NullPointerException("client");
+        }
+        this.client = client;
+        this.binaryClient = (client instanceof KyotoTycoonBinaryClient) ? (KyotoTycoonBinaryClient) client : null;
+        this.cache = new NearCache(maxBytes);
+    }
+
+    /**
+     * Sets the longest time that an entry stays in the cache.
+     * The default is {@value #DEFAULT_MAX_TTL_MILLIS} milliseconds.
+     * This must be called before {@link #start()}.
+     *
+     * @param maxTtl the max TTL.
+     * @param unit the unit of <code>maxTtl</code>.
+     */
+    public void setMaxTtl(long maxTtl, TimeUnit unit) throws IllegalArgumentException {
+        if (maxTtl <= 0) {
+            throw new IllegalArgumentException("maxTtl: " + maxTtl);
+        }
+        this.maxTtlNanos = unit.toNanos(maxTtl);
+    }
+
+    /**
+     * Keeps the records also in a memory-mapped file, which the client reuses after restarts.
+     * <p>
+     * The file holds <code>slots</code> records at most, and the records longer than
+     * <code>slotSize</code> bytes minus 20 bytes of the header, counting the key and the value, are not kept in the file.
+     * The file is initialized if it was created with another number or size of the slots,
+     * or for other servers or another database. The file is locked while the client runs;
+     * if another process has locked it, the client runs without the persistent cache.
+     * This must be called before {@link #start()}.
+     * </p>
+     *
+     * @param file the file to map.
+     * @param slots the number of the slots.
+     * @param slotSize the size of a slot in bytes.
+     */
+    public void setPersistentCache(File file, int slots, int slotSize) throws IllegalArgumentException {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots: " + slots);
+        }
+        if (slotSize <= MappedCache.SLOT_HEADER_LENGTH) {
+            throw new IllegalArgumentException("slotSize: " + slotSize);
+        }
+        this.persistentFile = file;
+        this.persistentSlots = slots;
+        this.persistentSlotSize = slotSize;
+    }
+
+    /**
+     * Sets the longest time that a record stays in the persistent cache.
+     * The default is {@value #DEFAULT_PERSISTENT_MAX_TTL_MILLIS} milliseconds.
+     * This must be called before {@link #start()}.
+     *
+     * @param maxTtl the max TTL.
+     * @param unit the unit of <code>maxTtl</code>.
+     */
+    public void setPersistentMaxTtl(long maxTtl, TimeUnit unit) throws IllegalArgumentException {
+        if (maxTtl <= 0) {
+            throw new IllegalArgumentException("maxTtl: " + maxTtl);
+        }
+        this.persistentMaxTtlMillis = unit.toMillis(maxTtl);
+    }
+
+    /**
+     * Removes the cached entry of a record.
+     *
+     * @param key the key of the record.
+     */
+    public void invalidate(byte[] key) {
+        invalidateKey(key);
+    }
+
+    /**
+     * Removes all the cached entries, including the ones in the persistent cache.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+        MappedCache persistentCache = this.persistentCache;
+        if (persistentCache != null) {
+            persistentCache.clear();
+        }
+    }
+
+    @Override
+    public synchronized void start() throws KyotoTycoonOperationFailedException {
+        if (persistentFile != null) {
+            int buckets = (persistentSlots + MappedCache.SLOTS_PER_BUCKET - 1) / MappedCache.SLOTS_PER_BUCKET;
+            try {
+                persistentCache = new MappedCache(persistentFile, buckets, persistentSlotSize, identity());
+            } catch (MappedCache.FileLockedException e) {
+                persistentCache = null;     // used by another process, such as the previous instance
+            } catch (IOException e) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to open the persistent cache: " + persistentFile, e);
+            }
+        }
+        client.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        client.stop();
+        cache.invalidateAll();
+        MappedCache persistentCache = this.persistentCache;
+        if (persistentCache != null) {
+            this.persistentCache = null;
+            try {
+                persistentCache.close();
+            } catch (IOException e) {
+                // the records not written are lost, which the cache can afford
+            }
+        }
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        long stamp;
+        invalidateKey(key);
+        try {
+            client.set(key, value, xt);
+        } finally {
+            // again, to reject the loads that read the old value while the write was pending
+            stamp = invalidateKey(key);
+        }
+        cacheLoaded(key, value, expiresAt(xt), stamp);
+    }
+
+    @Override
+    public void setBulk(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt, boolean atomic)
+            throws KyotoTycoonOperationFailedException {
+        for (byte[] key : keyValuePairs.keySet()) {
+            invalidateKey(key);
+        }
+        long[] stamps = new long[keyValuePairs.size()];
+        try {
+            client.setBulk(keyValuePairs, xt, atomic);
+        } finally {
+            int i = 0;
+            for (byte[] key : keyValuePairs.keySet()) {
+                stamps[i++] = invalidateKey(key);
+            }
+        }
+        long expiresAt = expiresAt(xt);
+        int i = 0;
+        for (Map.Entry<byte[], byte[]> entry : keyValuePairs.entrySet()) {
+            cacheLoaded(entry.getKey(), entry.getValue(), expiresAt, stamps[i++]);
+        }
+    }
+
+    @Override
+    public void setBulkString(Map<String, String> keyValuePairs, ExpirationTime xt, boolean atomic)
+            throws KyotoTycoonOperationFailedException {
+        LinkedHashMap<byte[], byte[]> byteKeyValuePairs = new LinkedHashMap<byte[], byte[]>();
+        for (Map.Entry<String, String> entry : keyValuePairs.entrySet()) {
+            byteKeyValuePairs.put(Bytes.utf8(entry.getKey()), Bytes.utf8(entry.getValue()));
+        }
+        setBulk(byteKeyValuePairs, xt, atomic);
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws KyotoTycoonOperationFailedException {
+        byte[] value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        long stamp = cache.stamp(key);
+        value = getPersistent(key, stamp);
+        if (value != null) {
+            return value;
+        }
+        if (binaryClient != null) {
+            List<Record> records = binaryClient.getBulkRecords(Collections.singletonList(key));
+            if (records.isEmpty()) {
+                return null;
+            }
+            Record record = records.get(0);
+            cacheLoaded(key, record.getValue(), expiresAt(record), stamp);
+            return record.getValue();
+        }
+        value = client.get(key);
+        if (value != null) {
+            cacheLoaded(key, value, Long.MAX_VALUE, stamp);
+        }
+        return value;
+    }
+
+    /**
+     * Retrieve records at once.
+     * <p>
+     * When <code>atomic</code> is false, the cached records are answered from the cache and
+     * the rest are retrieved at once. When <code>atomic</code> is true, all the records are
+     * retrieved from the server.
+     * </p>
+     */
+    @Override
+    public Map<byte[], byte[]> getBulk(List<byte[]> keys, boolean atomic)
+            throws KyotoTycoonOperationFailedException {
+        HashMap<ByteArrayWrapper, byte[]> result = new HashMap<ByteArrayWrapper, byte[]>();
+        HashMap<ByteArrayWrapper, Long> stamps = new HashMap<ByteArrayWrapper, Long>();
+        ArrayList<byte[]> misses = new ArrayList<byte[]>();
+        for (byte[] key : keys) {
+            if (atomic) {
+                misses.add(key);
+                continue;
+            }
+            byte[] value = cache.get(key);
+            if (value == null) {
+                long stamp = cache.stamp(key);
+                value = getPersistent(key, stamp);
+                if (value == null) {
+                    stamps.put(new ByteArrayWrapper(key), stamp);
+                    misses.add(key);
+                    continue;
+                }
+            }
+            result.put(new ByteArrayWrapper(key), value);
+        }
+        if (misses.isEmpty()) {
+            return new KeyValueMap(result);
+        }
+
+        if (binaryClient != null && !atomic) {
+            for (Record record : binaryClient.getBulkRecords(misses)) {
+                ByteArrayWrapper key = new ByteArrayWrapper(record.getKey());
+                result.put(key, record.getValue());
+                Long stamp = stamps.get(key);
+                if (stamp != null) {
+                    cacheLoaded(record.getKey(), record.getValue(), expiresAt(record), stamp);
+                }
+            }
+        } else {
+            for (Map.Entry<byte[], byte[]> entry : client.getBulk(misses, atomic).entrySet()) {
+                ByteArrayWrapper key = new ByteArrayWrapper(entry.getKey());
+                result.put(key, entry.getValue());
+                Long stamp = stamps.get(key);
+                if (stamp != null) {
+                    cacheLoaded(entry.getKey(), entry.getValue(), Long.MAX_VALUE, stamp);
+                }
+            }
+        }
+        return new KeyValueMap(result);
+    }
+
+    @Override
+    public Map<String, String> getBulkString(List<String> keys, boolean atomic)
+            throws KyotoTycoonOperationFailedException {
+        ArrayList<byte[]> byteKeys = new ArrayList<byte[]>(keys.size());
+        for (String key : keys) {
+            byteKeys.add(Bytes.utf8(key));
+        }
+        HashMap<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<byte[], byte[]> entry : getBulk(byteKeys, atomic).entrySet()) {
+            result.put(Bytes.utf8(entry.getKey()), Bytes.utf8(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public byte[] seize(byte[] key) throws KyotoTycoonOperationFailedException {
+        invalidateKey(key);
+        try {
+            return client.seize(key);
+        } finally {
+            invalidateKey(key);
+        }
+    }
+
+    @Override
+    public boolean remove(byte[] key) throws KyotoTycoonOperationFailedException {
+        invalidateKey(key);
+        try {
+            return client.remove(key);
+        } finally {
+            invalidateKey(key);
+        }
+    }
+
+    @Override
+    public long removeBulk(List<byte[]> keys, boolean atomic) throws KyotoTycoonOperationFailedException {
+        invalidateAll(keys);
+        try {
+            return client.removeBulk(keys, atomic);
+        } finally {
+            invalidateAll(keys);
+        }
+    }
+
+    @Override
+    public long removeBulkString(List<String> keys, boolean atomic) throws KyotoTycoonOperationFailedException {
+        ArrayList<byte[]> keyBytes = new ArrayList<byte[]>();
+        for (String key : keys) {
+            keyBytes.add(Bytes.utf8(key));
+        }
+        return removeBulk(keyBytes, atomic);
+    }
+
+    @Override
+    public long increment(byte[] key, long num, long origin, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        invalidateKey(key);
+        try {
+            return client.increment(key, num, origin, xt);
+        } finally {
+            invalidateKey(key);
+        }
+    }
+
+    @Override
+    public double incrementDouble(byte[] key, double num, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        return incrementDouble(key, num, 0, xt);
+    }
+
+    @Override
+    public double incrementDouble(byte[] key, double num, double origin, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        invalidateKey(key);
+        try {
+            return client.incrementDouble(key, num, origin, xt);
+        } finally {
+            invalidateKey(key);
+        }
+    }
+
+    @Override
+    public boolean cas(byte[] key, byte[] expect, byte[] update, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        invalidateKey(key);
+        try {
+            return client.cas(key, expect, update, xt);
+        } finally {
+            invalidateKey(key);
+        }
+    }
+
+    @Override
+    public boolean replace(byte[] key, byte[] value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        invalidateKey(key);
+        try {
+            return client.replace(key, value, xt);
+        } finally {
+            invalidateKey(key);
+        }
+    }
+
+    @Override
+    public boolean add(byte[] key, byte[] value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        invalidateKey(key);
+        try {
+            return client.add(key, value, xt);
+        } finally {
+            invalidateKey(key);
+        }
+    }
+
+    @Override
+    public void clear() throws KyotoTycoonOperationFailedException {
+        invalidateAll();
+        try {
+            client.clear();
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public List<byte[]> matchRegex(byte[] regex, long max) throws KyotoTycoonOperationFailedException {
+        return client.matchRegex(regex, max);
+    }
+
+    @Override
+    public List<byte[]> matchPrefix(byte[] prefix, long max) throws KyotoTycoonOperationFailedException {
+        return client.matchPrefix(prefix, max);
+    }
+
+    @Override
+    public Map<byte[], byte[]> playScript(String procedureName, Map<byte[], byte[]> input)
+            throws KyotoTycoonOperationFailedException {
+        return client.playScript(procedureName, input);
+    }
+
+    @Override
+    public Map<String, String> playScriptString(String procedureName, Map<String, String> input)
+            throws KyotoTycoonOperationFailedException {
+        return client.playScriptString(procedureName, input);
+    }
+
+    @Override
+    public void ping() throws KyotoTycoonOperationFailedException {
+        client.ping();
+    }
+
+    @Override
+    public void synchronize(boolean hard, String command) throws KyotoTycoonOperationFailedException {
+        client.synchronize(hard, command);
+    }
+
+    @Override
+    public void vacuum(int step) throws KyotoTycoonOperationFailedException {
+        client.vacuum(step);
+    }
+
+    @Override
+    public Map<String, String> getStatus() throws KyotoTycoonOperationFailedException {
+        return client.getStatus();
+    }
+
+    @Override
+    public Map<String, String> getReport() throws KyotoTycoonOperationFailedException {
+        return client.getReport();
+    }
+
+    @Override
+    public Map<byte[], byte[]> echo(Map<byte[], byte[]> input) throws KyotoTycoonOperationFailedException {
+        return client.echo(input);
+    }
+
+    @Override
+    public Map<String, String> echoString(Map<String, String> input) throws KyotoTycoonOperationFailedException {
+        return client.echoString(input);
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+        set(key, value, null);
+    }
+
+    @Override
+    public void set(String key, String value) {
+        set(Bytes.utf8(key), Bytes.utf8(value));
+    }
+
+    @Override
+    public void set(String key, String value, ExpirationTime xt) {
+        set(Bytes.utf8(key), Bytes.utf8(value), xt);
+    }
+
+    @Override
+    public void setBulkString(Map<String, String> keyValuePairs) throws KyotoTycoonOperationFailedException {
+        setBulkString(keyValuePairs, null);
+    }
+
+    @Override
+    public void setBulkString(Map<String, String> keyValuePairs, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        setBulkString(keyValuePairs, xt, false);
+    }
+
+    @Override
+    public String get(String key) throws KyotoTycoonOperationFailedException {
+        return Bytes.utf8(get(Bytes.utf8(key)));
+    }
+
+    @Override
+    public Map<byte[], byte[]> getBulk(List<byte[]> keys) throws KyotoTycoonOperationFailedException {
+        return getBulk(keys, false);
+    }
+
+    @Override
+    public Map<String, String> getBulkString(List<String> keys) throws KyotoTycoonOperationFailedException {
+        return getBulkString(keys, false);
+    }
+
+    @Override
+    public long removeBulk(List<byte[]> keys) throws KyotoTycoonOperationFailedException {
+        return removeBulk(keys, false);
+    }
+
+    @Override
+    public long removeBulkString(List<String> keys) throws KyotoTycoonOperationFailedException {
+        return removeBulkString(keys, false);
+    }
+
+    @Override
+    public String seize(String key) throws KyotoTycoonOperationFailedException {
+        return Bytes.utf8(seize(Bytes.utf8(key)));
+    }
+
+    @Override
+    public boolean remove(String key) throws KyotoTycoonOperationFailedException {
+        return remove(Bytes.utf8(key));
+    }
+
+    @Override
+    public long increment(String key) throws KyotoTycoonOperationFailedException {
+        return increment(Bytes.utf8(key));
+    }
+
+    @Override
+    public long increment(byte[] key) throws KyotoTycoonOperationFailedException {
+        return increment(key, null);
+    }
+
+    @Override
+    public long increment(String key, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        return increment(Bytes.utf8(key), xt);
+    }
+
+    @Override
+    public long increment(byte[] key, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        return increment(key, 1, 0, xt);
+    }
+
+    @Override
+    public long increment(String key, long num, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        return increment(key, num, 0, xt);
+    }
+
+    @Override
+    public long increment(byte[] key, long num, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        return increment(key, num, 0, xt);
+    }
+
+    @Override
+    public long increment(String key, long num, long origin, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        return increment(Bytes.utf8(key), num, origin, xt);
+    }
+
+    @Override
+    public double incrementDouble(String key, double num) throws KyotoTycoonOperationFailedException {
+        return incrementDouble(Bytes.utf8(key), num);
+    }
+
+    @Override
+    public double incrementDouble(byte[] key, double num) throws KyotoTycoonOperationFailedException {
+        return incrementDouble(key, num, null);
+    }
+
+    @Override
+    public double incrementDouble(String key, double num, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        return incrementDouble(Bytes.utf8(key), num, xt);
+    }
+
+    @Override
+    public double incrementDouble(String key, double num, double origin, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        return incrementDouble(Bytes.utf8(key), num, origin, xt);
+    }
+
+    @Override
+    public boolean cas(String key, String expect, String update) throws KyotoTycoonOperationFailedException {
+        return cas(Bytes.utf8(key), Bytes.utf8(expect), Bytes.utf8(update));
+    }
+
+    @Override
+    public boolean cas(String key, String expect, String update, ExpirationTime xt)
+            throws KyotoTycoonOperationFailedException {
+        return cas(Bytes.utf8(key), Bytes.utf8(expect), Bytes.utf8(update), xt);
+    }
+
+    @Override
+    public boolean cas(byte[] key, byte[] expect, byte[] update) throws KyotoTycoonOperationFailedException {
+        return cas(key, expect, update, null);
+    }
+
+    @Override
+    public boolean replace(String key, String value) throws KyotoTycoonOperationFailedException {
+        return replace(key, value, null);
+    }
+
+    @Override
+    public boolean replace(byte[] key, byte[] value) throws KyotoTycoonOperationFailedException {
+        return replace(key, value, null);
+    }
+
+    @Override
+    public boolean replace(String key, String value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        return replace(Bytes.utf8(key), Bytes.utf8(value), xt);
+    }
+
+    @Override
+    public boolean add(String key, String value) throws KyotoTycoonOperationFailedException {
+        return add(key, value, null);
+    }
+
+    @Override
+    public boolean add(byte[] key, byte[] value) throws KyotoTycoonOperationFailedException {
+        return add(key, value, null);
+    }
+
+    @Override
+    public boolean add(String key, String value, ExpirationTime xt) throws KyotoTycoonOperationFailedException {
+        return add(Bytes.utf8(key), Bytes.utf8(value), xt);
+    }
+
+    @Override
+    public List<String> matchRegex(String regex) throws KyotoTycoonOperationFailedException {
+        return client.matchRegex(regex);
+    }
+
+    @Override
+    public List<String> matchRegex(String regex, long max) throws KyotoTycoonOperationFailedException {
+        return client.matchRegex(regex, max);
+    }
+
+    @Override
+    public List<byte[]> matchRegex(byte[] regex) throws KyotoTycoonOperationFailedException {
+        return client.matchRegex(regex);
+    }
+
+    @Override
+    public List<String> matchPrefix(String prefix) throws KyotoTycoonOperationFailedException {
+        return client.matchPrefix(prefix);
+    }
+
+    @Override
+    public List<String> matchPrefix(String prefix, long max) throws KyotoTycoonOperationFailedException {
+        return client.matchPrefix(prefix, max);
+    }
+
+    @Override
+    public List<byte[]> matchPrefix(byte[] prefix) throws KyotoTycoonOperationFailedException {
+        return client.matchPrefix(prefix);
+    }
+
+    /**
+     * Describes the servers and the database of the client, so that the persistent cache
+     * is not reused for other data.
+     */
+    private String identity() {
+        StringBuilder identity = new StringBuilder();
+        if (client instanceof AbstractKyotoTycoonClient) {
+            ArrayList<String> servers = new ArrayList<String>();
+            for (SocketAddress server : ((AbstractKyotoTycoonClient) client).getServers()) {
+                servers.add(server.toString());
+            }
+            Collections.sort(servers);
+            identity.append("servers=").append(servers);
+        } else {
+            identity.append("client=").append(client.getClass().getName());
+        }
+        if (client instanceof KyotoTycoonTsvRpcClient) {
+            identity.append(" database=").append(((KyotoTycoonTsvRpcClient) client).getDatabase());
+        }
+        if (binaryClient != null) {
+            identity.append(" databaseIndex=").append(binaryClient.getDatabaseIndex());
+        }
+        return identity.toString();
+    }
+
+    private void invalidateAll(List<byte[]> keys) {
+        for (byte[] key : keys) {
+            invalidateKey(key);
+        }
+    }
+
+    private long invalidateKey(byte[] key) {
+        long stamp = cache.invalidate(key);
+        MappedCache persistentCache = this.persistentCache;
+        if (persistentCache != null) {
+            persistentCache.remove(key);
+        }
+        return stamp;
+    }
+
+    /**
+     * Looks up the persistent cache, and caches the found record in process.
+     */
+    private byte[] getPersistent(byte[] key, long stamp) {
+        MappedCache persistentCache = this.persistentCache;
+        if (persistentCache == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        MappedCache.Value stored = persistentCache.get(key, now);
+        if (stored == null) {
+            return null;
+        }
+        cache.put(key, stored.value, ttlNanos(stored.expiresAt, now), stamp);
+        return stored.value;
+    }
+
+    /**
+     * Caches a record read from or written to the server.
+     * The persistent cache follows only if the record is cached in process,
+     * so that it doesn't take the values that the local writes have replaced.
+     * It is checked again after the persistent cache is written, since a write may
+     * invalidate the key in between.
+     */
+    private void cacheLoaded(byte[] key, byte[] value, long expiresAt, long stamp) {
+        long now = System.currentTimeMillis();
+        if (!cache.put(key, value, ttlNanos(expiresAt, now), stamp)) {
+            return;
+        }
+        MappedCache persistentCache = this.persistentCache;
+        if (persistentCache != null) {
+            persistentCache.put(key, value, Math.min(expiresAt, now + persistentMaxTtlMillis));
+            if (!cache.contains(key, value)) {
+                persistentCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the epoch time in milliseconds when a record written with the expiration time expires.
+     *
+     * @return the expiration time, or <code>Long.MAX_VALUE</code> if the record doesn't expire.
+     */
+    static long expiresAt(ExpirationTime xt) {
+        if (xt == null) {
+            return Long.MAX_VALUE;
+        }
+        return (xt.value >= 0) ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(xt.value)
+                : TimeUnit.SECONDS.toMillis(-xt.value);
+    }
+
+    /**
+     * Returns the epoch time in milliseconds when a record read from the server expires.
+     *
+     * @return the expiration time, or <code>Long.MAX_VALUE</code> if the record doesn't expire.
+     */
+    static long expiresAt(Record record) {
+        long xt = record.getExpirationTime();
+        return (xt == Long.MAX_VALUE) ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(xt);
+    }
+
+    /**
+     * Returns the time to live of an entry in process, which is at most the max TTL.
+     */
+    private long ttlNanos(long expiresAt, long now) {
+        if (expiresAt == Long.MAX_VALUE) {
+            return maxTtlNanos;
+        }
+        return Math.min(TimeUnit.MILLISECONDS.toNanos(expiresAt - now), maxTtlNanos);
+    }
+}
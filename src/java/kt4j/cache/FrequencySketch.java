@@ -0,0 +1,110 @@
+package kt4j.cache;
+
+/**
+ * Estimates how often each key has been accessed recently, for the admission of {@link NearCache}.
+ * <p>
+ * This is a count-min sketch of 4-bit counters, sixteen in each <code>long</code>.
+ * A key is counted in four counters picked by four hash functions, and its frequency is
+ * the smallest of them. When the number of the increments reaches ten times the number of
+ * the counter words, all the counters are halved so that the old accesses fade away.
+ * </p>
+ * <p>
+ * Not thread-safe; {@link NearCache} guards it with its lock.
+ * </p>
+ *
+ * @author kumai
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L,
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    private static final int MAX_TABLE_LENGTH = 1 << 24;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    FrequencySketch() {
+        resize(16);
+    }
+
+    /**
+     * Grows the table so that it has at least as many counter words as the entries.
+     * The counts are lost when the table grows.
+     *
+     * @param entries the number of the entries held by the cache.
+     */
+    void ensureCapacity(int entries) {
+        if (entries > table.length && table.length < MAX_TABLE_LENGTH) {
+            resize(Math.min(Integer.highestOneBit(entries - 1) << 1, MAX_TABLE_LENGTH));
+        }
+    }
+
+    private void resize(int length) {
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = length * 10;
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated number of the recent accesses to the key, at most {@value #MAX_COUNT}.
+     *
+     * @param hash the hash code of the key.
+     */
+    int frequency(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; ++i) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts an access to the key.
+     *
+     * @param hash the hash code of the key.
+     */
+    void increment(int hash) {
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; ++i) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves all the counters.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; ++i) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size >>>= 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+}
@@ -0,0 +1,50 @@
+package kt4j.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import kt4j.Bytes.ByteArrayWrapper;
+
+/**
+ * An unmodifiable map of the records, which looks up the keys by their contents.
+ *
+ * @author kumai
+ */
+class KeyValueMap extends AbstractMap<byte[], byte[]> {
+    private final Map<ByteArrayWrapper, byte[]> source;
+
+    KeyValueMap(Map<ByteArrayWrapper, byte[]> source) {
+        this.source = source;
+    }
+
+    @Override
+    public int size() {
+        return source.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (get(key) != null);
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        if (key instanceof byte[]) {
+            return source.get(new ByteArrayWrapper((byte[]) key));
+        }
+        return null;
+    }
+
+    @Override
+    public Set<Map.Entry<byte[], byte[]>> entrySet() {
+        HashSet<Map.Entry<byte[], byte[]>> set = new HashSet<Map.Entry<byte[], byte[]>>();
+        for (Map.Entry<ByteArrayWrapper, byte[]> entry : source.entrySet()) {
+            set.add(new SimpleImmutableEntry<byte[], byte[]>(entry.getKey().array, entry.getValue()));
+        }
+        return Collections.unmodifiableSet(set);
+    }
+}
@@ -0,0 +1,343 @@
+package kt4j.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import kt4j.Bytes;
+
+/**
+ * A fixed-size store of records in a memory-mapped file, which outlives the process.
+ * <p>
+ * The file is a header followed by a hash index of fixed-size slots. A key hashes to a bucket of
+ * {@value #SLOTS_PER_BUCKET} slots, and is stored in one of them with its value and its expiration
+ * time, so no record needs more than one bucket to be read or written. When the bucket is full,
+ * the record expiring first is replaced. The records larger than a slot are not stored.
+ * </p>
+ * <p>
+ * The expiration times are the epoch times in milliseconds, so the records read after a restart
+ * still expire with the records on the server.
+ * </p>
+ * <p>
+ * The tag of a slot is cleared before the slot is rewritten and set after, so a process killed
+ * while writing leaves an empty slot rather than a broken record. The sizes read from a slot are
+ * checked against the slot, and a slot that doesn't fit is read as empty, so a corrupted file
+ * cannot break the reads.
+ * </p>
+ * <p>
+ * The header records the SHA-256 digest of the identity of the cached data, such as the servers
+ * and the database. The file is reused when it has the same geometry and the same identity,
+ * and initialized otherwise. The file is locked while open, so that two processes never share it.
+ * </p>
+ *
+ * @author kumai
+ */
+class MappedCache {
+    static final int SLOTS_PER_BUCKET = 4;
+
+    private static final long MAGIC = 0x4b54344a4c324341L;     // "KT4JL2CA"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_LENGTH = 64;
+    private static final int IDENTITY_OFFSET = 24;
+
+    private static final int TAG_OFFSET = 0;
+    private static final int KSIZ_OFFSET = 4;
+    private static final int VSIZ_OFFSET = 8;
+    private static final int XT_OFFSET = 12;
+    static final int SLOT_HEADER_LENGTH = 20;
+
+    private static final int MAX_SEGMENT_LENGTH = 1 << 30;
+    private static final int LOCK_STRIPES = 256;
+
+    private final RandomAccessFile file;
+    private final byte[] identity;
+    private final MappedByteBuffer[] segments;
+    private final int buckets;
+    private final int slotSize;
+    private final int bucketsPerSegment;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Opens the store in a file, creating or initializing the file if it doesn't have the same geometry
+     * or the same identity.
+     *
+     * @param path the file.
+     * @param buckets the number of the buckets.
+     * @param slotSize the size of a slot in bytes, including {@value #SLOT_HEADER_LENGTH} bytes of the header.
+     * @param identity identifies the data cached, such as the servers and the database.
+     * @throws FileLockedException if another process or another instance has the file open.
+     */
+    MappedCache(File path, int buckets, int slotSize, String identity) throws IOException {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("buckets: " + buckets);
+        }
+        if (slotSize <= SLOT_HEADER_LENGTH || (long) slotSize * SLOTS_PER_BUCKET > MAX_SEGMENT_LENGTH) {
+            throw new IllegalArgumentException("slotSize: " + slotSize);
+        }
+        this.buckets = buckets;
+        this.slotSize = slotSize;
+        this.bucketsPerSegment = MAX_SEGMENT_LENGTH / (slotSize * SLOTS_PER_BUCKET);
+        this.identity = digest(identity);
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            locks[i] = new Object();
+        }
+
+        file = new RandomAccessFile(path, "rw");
+        try {
+            lock(file.getChannel(), path);
+            boolean reusable = hasGeometry(file);
+            long length = FILE_HEADER_LENGTH + (long) buckets * SLOTS_PER_BUCKET * slotSize;
+            if (!reusable) {
+                file.setLength(0);
+            }
+            file.setLength(length);
+
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_LENGTH);
+            int numSegments = (buckets + bucketsPerSegment - 1) / bucketsPerSegment;
+            segments = new MappedByteBuffer[numSegments];
+            long position = FILE_HEADER_LENGTH;
+            for (int i = 0; i < numSegments; ++i) {
+                int segmentBuckets = Math.min(bucketsPerSegment, buckets - i * bucketsPerSegment);
+                long segmentLength = (long) segmentBuckets * SLOTS_PER_BUCKET * slotSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentLength);
+                position += segmentLength;
+            }
+            if (!reusable) {
+                header.putLong(0, MAGIC);
+                header.putInt(8, VERSION);
+                header.putInt(12, buckets);
+                header.putInt(16, slotSize);
+                header.position(IDENTITY_OFFSET);
+                header.put(this.identity);
+                header.force();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private boolean hasGeometry(RandomAccessFile file) throws IOException {
+        if (file.length() < FILE_HEADER_LENGTH) {
+            return false;
+        }
+        file.seek(0);
+        if (file.readLong() != MAGIC || file.readInt() != VERSION
+                || file.readInt() != buckets || file.readInt() != slotSize) {
+            return false;
+        }
+        byte[] stored = new byte[identity.length];
+        file.seek(IDENTITY_OFFSET);
+        file.readFully(stored);
+        return Arrays.equals(stored, identity);
+    }
+
+    private static void lock(FileChannel channel, File path) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            throw new FileLockedException(path);
+        }
+    }
+
+    private static byte[] digest(String identity) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(Bytes.utf8(identity));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every Java platform has SHA-256
+        }
+    }
+
+    /**
+     * Returns the maximum length of a key and a value stored together.
+     */
+    int maxRecordLength() {
+        return slotSize - SLOT_HEADER_LENGTH;
+    }
+
+    /**
+     * Returns the record of a key, or null if not stored or expired.
+     *
+     * @param key the key.
+     * @param nowMillis the current epoch time in milliseconds.
+     */
+    Value get(byte[] key, long nowMillis) {
+        int tag = tag(key);
+        int bucket = bucket(tag);
+        ByteBuffer segment = segments[bucket / bucketsPerSegment];
+        int base = (bucket % bucketsPerSegment) * SLOTS_PER_BUCKET * slotSize;
+        synchronized (locks[bucket % LOCK_STRIPES]) {
+            for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+                int slot = base + i * slotSize;
+                if (matches(segment, slot, tag, key)) {
+                    long expiresAt = segment.getLong(slot + XT_OFFSET);
+                    int vsiz = segment.getInt(slot + VSIZ_OFFSET);
+                    if (expiresAt <= nowMillis || vsiz < 0 || vsiz > maxRecordLength() - key.length) {
+                        segment.putInt(slot + TAG_OFFSET, 0);
+                        return null;
+                    }
+                    byte[] value = new byte[vsiz];
+                    ByteBuffer src = segment.duplicate();
+                    src.position(slot + SLOT_HEADER_LENGTH + key.length);
+                    src.get(value);
+                    return new Value(value, expiresAt);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a record, replacing the record of the same key or the one expiring first in the bucket.
+     *
+     * @param key the key.
+     * @param value the value.
+     * @param expiresAt the epoch time in milliseconds when the record expires.
+     * @return false if the record is larger than a slot.
+     */
+    boolean put(byte[] key, byte[] value, long expiresAt) {
+        if (key.length + value.length > maxRecordLength()) {
+            remove(key);
+            return false;
+        }
+        int tag = tag(key);
+        int bucket = bucket(tag);
+        ByteBuffer segment = segments[bucket / bucketsPerSegment];
+        int base = (bucket % bucketsPerSegment) * SLOTS_PER_BUCKET * slotSize;
+        synchronized (locks[bucket % LOCK_STRIPES]) {
+            int target = -1;
+            long earliest = Long.MAX_VALUE;
+            for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+                int slot = base + i * slotSize;
+                if (matches(segment, slot, tag, key)) {
+                    target = slot;
+                    break;
+                }
+                long slotExpiresAt = (segment.getInt(slot + TAG_OFFSET) == 0) ?
+                        Long.MIN_VALUE : segment.getLong(slot + XT_OFFSET);
+                if (slotExpiresAt < earliest) {
+                    earliest = slotExpiresAt;
+                    target = slot;
+                }
+            }
+
+            segment.putInt(target + TAG_OFFSET, 0);
+            segment.putInt(target + KSIZ_OFFSET, key.length);
+            segment.putInt(target + VSIZ_OFFSET, value.length);
+            segment.putLong(target + XT_OFFSET, expiresAt);
+            ByteBuffer dst = segment.duplicate();
+            dst.position(target + SLOT_HEADER_LENGTH);
+            dst.put(key);
+            dst.put(value);
+            segment.putInt(target + TAG_OFFSET, tag);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the record of a key.
+     */
+    void remove(byte[] key) {
+        int tag = tag(key);
+        int bucket = bucket(tag);
+        ByteBuffer segment = segments[bucket / bucketsPerSegment];
+        int base = (bucket % bucketsPerSegment) * SLOTS_PER_BUCKET * slotSize;
+        synchronized (locks[bucket % LOCK_STRIPES]) {
+            for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+                int slot = base + i * slotSize;
+                if (matches(segment, slot, tag, key)) {
+                    segment.putInt(slot + TAG_OFFSET, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the records.
+     */
+    void clear() {
+        for (int bucket = 0; bucket < buckets; ++bucket) {
+            ByteBuffer segment = segments[bucket / bucketsPerSegment];
+            int base = (bucket % bucketsPerSegment) * SLOTS_PER_BUCKET * slotSize;
+            synchronized (locks[bucket % LOCK_STRIPES]) {
+                for (int i = 0; i < SLOTS_PER_BUCKET; ++i) {
+                    segment.putInt(base + i * slotSize + TAG_OFFSET, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the records to the file, and closes it.
+     * The mapping itself is released when the buffers are garbage-collected.
+     */
+    void close() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        file.close();
+    }
+
+    private boolean matches(ByteBuffer segment, int slot, int tag, byte[] key) {
+        if (key.length > maxRecordLength() || segment.getInt(slot + TAG_OFFSET) != tag || segment.getInt(slot + KSIZ_OFFSET) != key.length) {
+            return false;
+        }
+        int offset = slot + SLOT_HEADER_LENGTH;
+        for (int i = 0; i < key.length; ++i) {
+            if (segment.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the hash code of the key, which is never 0 since 0 tags an empty slot.
+     */
+    private static int tag(byte[] key) {
+        int hash = Arrays.hashCode(key) * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash != 0) ? hash : 1;
+    }
+
+    private int bucket(int tag) {
+        return (int) ((tag & 0xFFFFFFFFL) % buckets);
+    }
+
+    /**
+     * Thrown when the file is locked by another process or another instance.
+     */
+    static class FileLockedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FileLockedException(File path) {
+            super("Locked by another process: " + path);
+        }
+    }
+
+    /**
+     * A record read from the file.
+     */
+    static class Value {
+        final byte[] value;
+        final long expiresAt;
+
+        Value(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
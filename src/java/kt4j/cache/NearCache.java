@@ -0,0 +1,376 @@
+package kt4j.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import kt4j.Bytes.ByteArrayWrapper;
+
+/**
+ * A size-bounded in-process store of records for {@link CachingKyotoTycoonClient}.
+ * <p>
+ * The eviction follows W-TinyLFU. A new entry enters a small LRU window, about 1% of the budget.
+ * The entries pushed out of the window become candidates for the main space, a segmented LRU
+ * whose probation segment holds the entries accessed once and whose protected segment holds
+ * the entries accessed again. When the main space is full, a candidate is admitted only if
+ * {@link FrequencySketch} says it has been accessed more often than the victim it would evict.
+ * So a scan over many cold keys cannot flush the hot ones.
+ * </p>
+ * <p>
+ * The budget is in bytes: each entry weighs its key, its value and {@value #ENTRY_OVERHEAD}
+ * bytes of bookkeeping.
+ * </p>
+ * <p>
+ * The lookups read a concurrent map without locking. The accesses are recorded under a lock
+ * only when the lock is free, so a contended hit skips the bookkeeping rather than waiting for it.
+ * </p>
+ * <p>
+ * A loader takes a {@link #stamp(byte[])} before it reads the server, and its {@link #put} is
+ * rejected if the key has been invalidated since then. So a slow read cannot bring back a value
+ * that a local write has already replaced. The stamps are tracked per key: the stamp leaves a
+ * pending marker for the key, {@link #invalidate(byte[])} replaces it, and {@link #put} succeeds
+ * only while its own marker is there, so the loads and writes of other keys never reject it.
+ * A load that starts while a write is pending shares the write's marker and may read the old
+ * value, so the writer invalidates the key again after the server has taken the new value.
+ * The oldest markers are dropped when there are more than {@value #MAX_PENDING} of them,
+ * which can only reject the puts of the loads pending the longest.
+ * </p>
+ *
+ * @author kumai
+ */
+class NearCache {
+    /** The approximate bytes taken by an entry besides its key and value. */
+    static final int ENTRY_OVERHEAD = 64;
+
+    /** The number of the pending markers kept before the oldest ones are dropped. */
+    static final int MAX_PENDING = 1 << 16;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = -1;
+
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final long maxProtectedBytes;
+
+    private final ConcurrentHashMap<ByteArrayWrapper, Entry> entries = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+    private final ConcurrentHashMap<ByteArrayWrapper, Long> pending = new ConcurrentHashMap<ByteArrayWrapper, Long>();
+    private final AtomicLong clock = new AtomicLong();
+
+    // guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final Entry[] queues = {new Entry(), new Entry(), new Entry()};
+    private final long[] queueBytes = new long[3];
+
+    /**
+     * @param maxBytes the maximum total weight of the entries.
+     */
+    NearCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.maxWindowBytes = Math.max(maxBytes / 100, 1);
+        this.maxProtectedBytes = (maxBytes - maxWindowBytes) * 4 / 5;
+    }
+
+    /**
+     * Returns the value of the key, or null if not cached or expired.
+     * The returned array is shared with the cache, and must not be modified.
+     */
+    byte[] get(byte[] key) {
+        ByteArrayWrapper wrapper = new ByteArrayWrapper(key);
+        Entry e = entries.get(wrapper);
+        if (e == null) {
+            recordAccess(spread(wrapper.hashCode()), null);
+            return null;
+        }
+        if (e.expiresAt - System.nanoTime() <= 0) {
+            lock.lock();
+            try {
+                if (e.queue != REMOVED) {
+                    evict(e);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        }
+        recordAccess(e.hash, e);
+        return e.value;
+    }
+
+    /**
+     * Returns true if the key is cached with the value, without recording the access.
+     */
+    boolean contains(byte[] key, byte[] value) {
+        Entry e = entries.get(new ByteArrayWrapper(key));
+        return e != null && e.value == value;
+    }
+
+    /**
+     * Returns the stamp to pass to {@link #put} after reading the value of the key from the server.
+     */
+    long stamp(byte[] key) {
+        ByteArrayWrapper wrapper = new ByteArrayWrapper(key);
+        Long stamp = clock.incrementAndGet();
+        Long current = pending.putIfAbsent(wrapper, stamp);
+        if (current != null) {
+            return current;     // shared with the load or the write already pending
+        }
+        trimPending();
+        return stamp;
+    }
+
+    /**
+     * Caches the value of a key, unless the key has been invalidated since the stamp was taken.
+     *
+     * @param key the key.
+     * @param value the value.
+     * @param ttlNanos the time to live of the entry in nanoseconds.
+     * @param stamp the stamp returned by {@link #stamp(byte[])} or {@link #invalidate(byte[])}.
+     * @return true if cached.
+     */
+    boolean put(byte[] key, byte[] value, long ttlNanos, long stamp) {
+        if (ttlNanos <= 0) {
+            return false;
+        }
+        ByteArrayWrapper wrapper = new ByteArrayWrapper(key);
+        Entry e = new Entry(wrapper, spread(wrapper.hashCode()), value, System.nanoTime() + ttlNanos);
+        if (e.weight > maxBytes - maxWindowBytes) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (!pending.remove(wrapper, stamp)) {
+                return false;
+            }
+            Entry old = entries.put(wrapper, e);
+            if (old != null) {
+                unlink(old);
+            }
+            link(WINDOW, e);
+            sketch.ensureCapacity(entries.size());
+            evictWindow();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry of a key, and rejects the pending puts of the key.
+     *
+     * @return the stamp to pass to {@link #put} after writing the key to the server.
+     */
+    long invalidate(byte[] key) {
+        ByteArrayWrapper wrapper = new ByteArrayWrapper(key);
+        long stamp = clock.incrementAndGet();
+        pending.put(wrapper, stamp);
+        // under the lock, so that a put that took the old marker has linked its entry
+        lock.lock();
+        try {
+            Entry e = entries.remove(wrapper);
+            if (e != null) {
+                unlink(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+        trimPending();
+        return stamp;
+    }
+
+    /**
+     * Removes all the entries, and rejects all the pending puts.
+     */
+    void invalidateAll() {
+        lock.lock();
+        try {
+            pending.clear();
+            for (Entry e : entries.values()) {
+                unlink(e);
+            }
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of the entries, including the expired ones not removed yet.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total weight of the entries.
+     */
+    long weightedSize() {
+        lock.lock();
+        try {
+            return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the older half of the pending markers when there are too many of them,
+     * as the keys whose loads missed or whose writes failed leave their markers behind.
+     */
+    private void trimPending() {
+        if (pending.size() <= MAX_PENDING) {
+            return;
+        }
+        long oldest = clock.get() - MAX_PENDING / 2;
+        for (Map.Entry<ByteArrayWrapper, Long> marker : pending.entrySet()) {
+            if (marker.getValue() <= oldest) {
+                pending.remove(marker.getKey(), marker.getValue());
+            }
+        }
+    }
+
+    private void recordAccess(int hash, Entry e) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            sketch.increment(hash);
+            if (e == null || e.queue == REMOVED) {
+                return;
+            }
+            switch (e.queue) {
+            case WINDOW:
+            case PROTECTED:
+                int queue = e.queue;
+                unlink(e);
+                link(queue, e);
+                break;
+
+            case PROBATION:
+                unlink(e);
+                link(PROTECTED, e);
+                while (queueBytes[PROTECTED] > maxProtectedBytes) {
+                    Entry demoted = queues[PROTECTED].next;
+                    unlink(demoted);
+                    link(PROBATION, demoted);
+                }
+                break;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the overflow of the window to the main space as the candidates for the admission.
+     */
+    private void evictWindow() {
+        while (queueBytes[WINDOW] > maxWindowBytes) {
+            Entry candidate = queues[WINDOW].next;
+            unlink(candidate);
+            link(PROBATION, candidate);
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Evicts either the candidate or the least recently used entries of the main space
+     * until the entries fit in the budget.
+     */
+    private void admit(Entry candidate) {
+        long now = System.nanoTime();
+        while (queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED] > maxBytes) {
+            Entry victim = queues[PROBATION].next;
+            if (victim == candidate) {
+                victim = victim.next;
+            }
+            if (victim.queue == REMOVED) {
+                victim = queues[PROTECTED].next;
+                if (victim.queue == REMOVED) {
+                    evict(candidate);
+                    return;
+                }
+            }
+            if (victim.expiresAt - now <= 0
+                    || sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+                return;
+            }
+        }
+    }
+
+    private void evict(Entry e) {
+        unlink(e);
+        entries.remove(e.key, e);
+    }
+
+    private void link(int queue, Entry e) {
+        Entry head = queues[queue];
+        e.prev = head.prev;
+        e.next = head;
+        head.prev.next = e;
+        head.prev = e;
+        e.queue = queue;
+        queueBytes[queue] += e.weight;
+    }
+
+    private void unlink(Entry e) {
+        if (e.queue == REMOVED) {
+            return;
+        }
+        queueBytes[e.queue] -= e.weight;
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = null;
+        e.next = null;
+        e.queue = REMOVED;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Entry {
+        final ByteArrayWrapper key;
+        final int hash;
+        final byte[] value;
+        final long expiresAt;
+        final int weight;
+
+        // guarded by the lock of the cache
+        Entry prev;
+        Entry next;
+        int queue;
+
+        /**
+         * Creates the head of a queue, which is never removed.
+         */
+        Entry() {
+            this.key = null;
+            this.hash = 0;
+            this.value = null;
+            this.expiresAt = 0L;
+            this.weight = 0;
+            this.prev = this;
+            this.next = this;
+            this.queue = REMOVED;
+        }
+
+        Entry(ByteArrayWrapper key, int hash, byte[] value, long expiresAt) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = key.array.length + value.length + ENTRY_OVERHEAD;
+        }
+    }
+}
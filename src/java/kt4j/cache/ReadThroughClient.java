@@ -0,0 +1,309 @@
+package kt4j.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import kt4j.Bytes;
+import kt4j.Bytes.ByteArrayWrapper;
+import kt4j.ExpirationTime;
+import kt4j.KyotoTycoonClient;
+import kt4j.KyotoTycoonOperationFailedException;
+import kt4j.binary.KyotoTycoonBinaryClient;
+import kt4j.binary.Record;
+
+/**
+ * Reads records through Kyoto Tycoon, loading the missing ones from their source with a {@link RecordLoader}.
+ * <p>
+ * A read retrieves the records with one getBulk, calls the loader once for all the missed keys,
+ * and stores the loaded records with one setBulk. The keys that the loader doesn't find are
+ * remembered in process for the negative TTL, and read as missing without reaching the server.
+ * </p>
+ * <p>
+ * With {@link #setRefreshAhead(long, TimeUnit, Executor)}, a record read within the refresh time of
+ * its expiration is returned as is, and loaded again in the background so that the readers don't
+ * wait for the loader when it expires. Only {@link KyotoTycoonBinaryClient} reads the expiration
+ * times, so the refresh-ahead needs it.
+ * </p>
+ * <p>
+ * The client must be started and stopped by the caller.
+ * </p>
+ *
+ * @author kumai
+ */
+public class ReadThroughClient {
+    /** The default negative TTL, 5 seconds. */
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /** The default size of the negative cache, 16 MB. */
+    public static final long DEFAULT_NEGATIVE_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static final byte[] ABSENT = new byte[0];
+
+    private final KyotoTycoonClient client;
+    private final KyotoTycoonBinaryClient binaryClient;
+    private final RecordLoader loader;
+    private final ConcurrentHashMap<ByteArrayWrapper, Boolean> refreshing =
+            new ConcurrentHashMap<ByteArrayWrapper, Boolean>();
+
+    private NearCache negatives = new NearCache(DEFAULT_NEGATIVE_CACHE_BYTES);
+    private long negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_NEGATIVE_TTL_MILLIS);
+    private ExpirationTime xt;
+    private long refreshAheadMillis;
+    private Executor refreshExecutor;
+
+    /**
+     * @param client the client to read the records through.
+     * @param loader loads the records missing in Kyoto Tycoon.
+     */
+    public ReadThroughClient(KyotoTycoonClient client, RecordLoader loader) {
+        if (client == null) {
+            throw new NullPointerException("client");
+        }
+        if (loader == null) {
+            throw new NullPointerException("loader");
+        }
+        this.client = client;
+        this.binaryClient = (client instanceof KyotoTycoonBinaryClient) ? (KyotoTycoonBinaryClient) client : null;
+        this.loader = loader;
+    }
+
+    /**
+     * Sets the expiration time of the loaded records stored in Kyoto Tycoon.
+     * The default is null, no expiration time.
+     * This must be called before the first read.
+     *
+     * @param xt the expiration time.
+     */
+    public void setExpirationTime(ExpirationTime xt) {
+        this.xt = xt;
+    }
+
+    /**
+     * Sets how long the keys that the loader doesn't find are read as missing without reaching the server.
+     * The default is {@value #DEFAULT_NEGATIVE_TTL_MILLIS} milliseconds,
+     * and the keys take {@value #DEFAULT_NEGATIVE_CACHE_BYTES} bytes at most.
+     * This must be called before the first read.
+     *
+     * @param ttl the negative TTL. 0 disables the negative caching.
+     * @param unit the unit of <code>ttl</code>.
+     * @param maxBytes the maximum size of the remembered keys in bytes.
+     */
+    public void setNegativeCaching(long ttl, TimeUnit unit, long maxBytes) throws IllegalArgumentException {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl: " + ttl);
+        }
+        this.negativeTtlNanos = unit.toNanos(ttl);
+        this.negatives = new NearCache(maxBytes);
+    }
+
+    /**
+     * Enables the refresh-ahead of the records about to expire.
+     * This must be called before the first read.
+     *
+     * @param refreshTime the time before the expiration to refresh the records.
+     * @param unit the unit of <code>refreshTime</code>.
+     * @param executor the executor to load and store the records in.
+     */
+    public void setRefreshAhead(long refreshTime, TimeUnit unit, Executor executor) throws IllegalArgumentException {
+        if (refreshTime <= 0) {
+            throw new IllegalArgumentException("refreshTime: " + refreshTime);
+        }
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.refreshAheadMillis = unit.toMillis(refreshTime);
+        this.refreshExecutor = executor;
+    }
+
+    /**
+     * Forgets that a key was not found, so that the next read reaches the server and the loader.
+     * Call this when a record is added to the source.
+     *
+     * @param key the key of the record.
+     */
+    public void invalidate(byte[] key) {
+        negatives.invalidate(key);
+    }
+
+    /**
+     * Retrieves a record, loading it if missing.
+     *
+     * @param key the key of the record.
+     * @return the value of the record, or null if neither Kyoto Tycoon nor the loader has it.
+     */
+    public byte[] get(byte[] key) throws KyotoTycoonOperationFailedException {
+        return getBulk(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Retrieves a record, loading it if missing.
+     * <p>
+     * The <code>key</code> and the value are encoded with UTF-8.
+     * </p>
+     *
+     * @param key the key of the record.
+     * @return the value of the record, or null if neither Kyoto Tycoon nor the loader has it.
+     */
+    public String get(String key) throws KyotoTycoonOperationFailedException {
+        return Bytes.utf8(get(Bytes.utf8(key)));
+    }
+
+    /**
+     * Retrieves records at once, loading the missing ones at once.
+     *
+     * @param keys the keys of the records to retrieve.
+     * @return A map of retrieved records. The map is unmodifiable.
+     */
+    public Map<byte[], byte[]> getBulk(List<byte[]> keys) throws KyotoTycoonOperationFailedException {
+        ArrayList<byte[]> requested = new ArrayList<byte[]>(keys.size());
+        for (byte[] key : keys) {
+            if (negatives.get(key) == null) {
+                requested.add(key);
+            }
+        }
+        HashMap<ByteArrayWrapper, byte[]> result = new HashMap<ByteArrayWrapper, byte[]>();
+        if (requested.isEmpty()) {
+            return new KeyValueMap(result);
+        }
+
+        if (binaryClient != null) {
+            ArrayList<byte[]> expiring = null;
+            long refreshAt = System.currentTimeMillis() + refreshAheadMillis;
+            for (Record record : binaryClient.getBulkRecords(requested)) {
+                result.put(new ByteArrayWrapper(record.getKey()), record.getValue());
+                if (refreshAheadMillis > 0 && record.getExpirationTime() != Long.MAX_VALUE
+                        && TimeUnit.SECONDS.toMillis(record.getExpirationTime()) <= refreshAt) {
+                    if (expiring == null) {
+                        expiring = new ArrayList<byte[]>();
+                    }
+                    expiring.add(record.getKey());
+                }
+            }
+            if (expiring != null) {
+                refresh(expiring);
+            }
+        } else {
+            for (Map.Entry<byte[], byte[]> entry : client.getBulk(requested, false).entrySet()) {
+                result.put(new ByteArrayWrapper(entry.getKey()), entry.getValue());
+            }
+        }
+
+        ArrayList<byte[]> misses = new ArrayList<byte[]>();
+        for (byte[] key : requested) {
+            if (!result.containsKey(new ByteArrayWrapper(key))) {
+                misses.add(key);
+            }
+        }
+        if (!misses.isEmpty()) {
+            load(misses, result);
+        }
+        return new KeyValueMap(result);
+    }
+
+    /**
+     * Loads the missed records, stores them, and remembers the keys not found.
+     */
+    private void load(List<byte[]> misses, Map<ByteArrayWrapper, byte[]> result) {
+        long[] stamps = new long[misses.size()];
+        for (int i = 0; i < stamps.length; ++i) {
+            stamps[i] = negatives.stamp(misses.get(i));
+        }
+        Map<byte[], byte[]> loaded;
+        try {
+            loaded = loader.load(misses);
+        } catch (Exception e) {
+            throw new KyotoTycoonOperationFailedException("Failed to load: keys=" + misses.size(), e);
+        }
+        if (loaded == null) {
+            loaded = Collections.emptyMap();
+        }
+
+        LinkedHashMap<byte[], byte[]> found = new LinkedHashMap<byte[], byte[]>();
+        for (Map.Entry<byte[], byte[]> entry : loaded.entrySet()) {
+            if (entry.getValue() != null) {
+                found.put(entry.getKey(), entry.getValue());
+                result.put(new ByteArrayWrapper(entry.getKey()), entry.getValue());
+            }
+        }
+        for (int i = 0; i < stamps.length; ++i) {
+            if (!result.containsKey(new ByteArrayWrapper(misses.get(i)))) {
+                negatives.put(misses.get(i), ABSENT, negativeTtlNanos, stamps[i]);
+            }
+        }
+        if (!found.isEmpty()) {
+            try {
+                client.setBulk(found, xt, false);
+            } catch (KyotoTycoonOperationFailedException e) {
+                // the loaded records are still returned, and the next read loads them again
+            }
+        }
+    }
+
+    /**
+     * Loads and stores the records about to expire in the background, unless they are already being refreshed.
+     */
+    private void refresh(List<byte[]> expiring) {
+        final ArrayList<byte[]> keys = new ArrayList<byte[]>(expiring.size());
+        for (byte[] key : expiring) {
+            if (refreshing.putIfAbsent(new ByteArrayWrapper(key), Boolean.TRUE) == null) {
+                keys.add(key);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reload(keys);
+                    } finally {
+                        release(keys);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(keys);
+        }
+    }
+
+    private void reload(List<byte[]> keys) {
+        Map<byte[], byte[]> loaded;
+        try {
+            loaded = loader.load(keys);
+        } catch (Exception e) {
+            return;     // the records stay until they expire
+        }
+        if (loaded == null) {
+            return;
+        }
+        LinkedHashMap<byte[], byte[]> found = new LinkedHashMap<byte[], byte[]>();
+        for (Map.Entry<byte[], byte[]> entry : loaded.entrySet()) {
+            if (entry.getValue() != null) {
+                found.put(entry.getKey(), entry.getValue());
+            }
+        }
+        try {
+            if (!found.isEmpty()) {
+                client.setBulk(found, xt, false);
+            }
+        } catch (KyotoTycoonOperationFailedException e) {
+            // the records stay until they expire
+        }
+    }
+
+    private void release(List<byte[]> keys) {
+        for (byte[] key : keys) {
+            refreshing.remove(new ByteArrayWrapper(key));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package kt4j.cache;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the records missing in Kyoto Tycoon from their source, for {@link ReadThroughClient}.
+ *
+ * @author kumai
+ */
+public interface RecordLoader {
+    /**
+     * Loads records at once.
+     *
+     * @param keys the keys of the records to load.
+     * @return the loaded records. The keys not in the map have no record, and null means none has.
+     * @throws Exception if failed to load the records.
+     */
+    Map<byte[], byte[]> load(List<byte[]> keys) throws Exception;
+}
@@ -0,0 +1,4 @@
+/**
+ * In-process caching of Kyoto Tycoon's records.
+ */
+package kt4j.cache;
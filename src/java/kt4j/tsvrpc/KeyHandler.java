@@ -0,0 +1,18 @@
+package kt4j.tsvrpc;
+
+/**
+ * Receives the keys of a match as they are decoded, before the whole response has been received.
+ * 
+ * @see KyotoTycoonTsvRpcClient#matchPrefix(byte[], long, KeyHandler)
+ * @see KyotoTycoonTsvRpcClient#matchRegex(byte[], long, KeyHandler)
+ * @author kumai
+ */
+public interface KeyHandler {
+    /**
+     * Handles a matched key.
+     * Called by the I/O threads, concurrently when the keys come from more than one server.
+     * 
+     * @param key the matched key.
+     */
+    void handleKey(byte[] key);
+}
@@ -1,15 +1,22 @@
 package kt4j.tsvrpc;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import kt4j.AsyncKyotoTycoonClient;
 import kt4j.Bytes;
 import kt4j.ExpirationTime;
+import kt4j.KyotoTycoonFuture;
 import kt4j.Operation;
 import kt4j.KyotoTycoonOperationFailedException;
 import kt4j.AbstractKyotoTycoonClient;
@@ -29,7 +36,27 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
     }
     
     public KyotoTycoonTsvRpcClient(String hostname, int port, TsvColumnCodec codec) {
-        super(new InetSocketAddress(hostname, port));
+        this(codec, new InetSocketAddress(hostname, port));
+    }
+
+    /**
+     * Creates a new instance that shards the records across the specified servers.
+     * 
+     * @param servers Kyoto Tycoon server addresses.
+     */
+    public KyotoTycoonTsvRpcClient(SocketAddress... servers) {
+        this(TsvColumnCodec.BASE_64, servers);
+    }
+
+    /**
+     * Creates a new instance that shards the records across the specified servers.
+     * 
+     * @param codec the column encoding. {@link TsvColumnCodec#ADAPTIVE} selects the most compact one
+     *      for each request.
+     * @param servers Kyoto Tycoon server addresses.
+     */
+    public KyotoTycoonTsvRpcClient(TsvColumnCodec codec, SocketAddress... servers) {
+        super(servers);
         this.codec = codec;
     }
 
@@ -41,79 +68,94 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
     public void setDatabase(String database) {
         this.database = database;
     }
+
+    /**
+     * Returns the target database identifier, or null if not set.
+     */
+    public String getDatabase() {
+        return database;
+    }
     
     @Override
     public void set(byte[] key, byte[] value, ExpirationTime xt)
             throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createSet(key, value, xt, codec);
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        if (!operation.isSucceeded()) {
-            if (operation.getException() != null) {
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to set: key=" + Arrays.toString(key), operation.getException());
-            } else {
-                int status = ((TsvRpcResponse) operation.getResponse()).status;
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to set: key=" + Arrays.toString(key) + ", status=" + status);
-            }
-        }
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createSet(key, value, xt, codec));
+        new SetConverter(key).convert(call(key, request));
     }
 
+    /**
+     * Sets the value of a record asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#set(byte[], byte[], ExpirationTime)
+     */
+    protected KyotoTycoonFuture<Void> setAsync(byte[] key, byte[] value, ExpirationTime xt,
+            Executor executor) {
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createSet(key, value, xt, codec));
+        return submit(locate(key), request, executor, new SetConverter(key));
+    }
+
+    /**
+     * Stores records at once.
+     * <p>
+     * When the records are sharded across two or more servers, <code>atomic</code> is
+     * applied to the records on each server.
+     * </p>
+     */
     @Override
     public void setBulkString(Map<String, String> keyValuePairs, ExpirationTime xt, boolean atomic)
             throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createSetBulk(keyValuePairs, xt, atomic, codec);
-        doSetBulk(request);
+        LinkedHashMap<byte[], byte[]> byteKeyValuePairs = new LinkedHashMap<byte[], byte[]>();
+        for (Map.Entry<String, String> entry : keyValuePairs.entrySet()) {
+            byteKeyValuePairs.put(Bytes.utf8(entry.getKey()), Bytes.utf8(entry.getValue()));
+        }
+        setBulk(byteKeyValuePairs, xt, atomic);
     }
 
+    /**
+     * Stores records at once.
+     * <p>
+     * When the records are sharded across two or more servers, <code>atomic</code> is
+     * applied to the records on each server.
+     * </p>
+     */
     @Override
     public void setBulk(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt, boolean atomic)
             throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createSetBulk(keyValuePairs, xt, atomic, codec);
-        doSetBulk(request);
+        setBulkAsync(keyValuePairs, xt, atomic, null).join();
     }
     
-    private void doSetBulk(TsvRpcRequest request) {
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        if (!operation.isSucceeded()) {
-            if (operation.getException() != null) {
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to setbulk.", operation.getException());
-            } else {
-                int status = ((TsvRpcResponse) operation.getResponse()).status;
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to setbulk: status=" + status);
+    /**
+     * Stores records at once asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#setBulk(Map, ExpirationTime)
+     */
+    protected KyotoTycoonFuture<Void> setBulkAsync(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt,
+            boolean atomic, Executor executor) {
+        Map<byte[], byte[]>[] shards = partition(keyValuePairs);
+        ArrayList<KyotoTycoonFuture<Void>> futures = new ArrayList<KyotoTycoonFuture<Void>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                TsvRpcRequest request = withDatabase(TsvRpcRequest.createSetBulk(shards[i], xt, atomic, codec));
+                futures.add(submit(i, request, null, SET_BULK_CONVERTER));
             }
         }
+        return gather(futures, executor, VOID_MERGER);
     }
 
     @Override
     public byte[] get(byte[] key) throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createGet(key, codec);
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        if (operation.isSucceeded()) {
-            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-            byte[] value = response.getValue();
-            return value;
-        } else {
-            if (operation.getException() != null) {
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to get: key=" + Arrays.toString(key), operation.getException());
-            } else {
-                int status = ((TsvRpcResponse) operation.getResponse()).status;
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to get: key=" + Arrays.toString(key) + ", status=" + status);
-            }
-        }
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createGet(key, codec));
+        return new GetConverter(key).convert(call(key, request));
+    }
+
+    /**
+     * Retrieves the value of a record asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#get(byte[])
+     */
+    protected KyotoTycoonFuture<byte[]> getAsync(byte[] key, Executor executor) {
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createGet(key, codec));
+        return submit(locate(key), request, executor, new GetConverter(key));
     }
 
     @Override
@@ -122,7 +164,7 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
+        Operation operation = call(key, request);
         TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
         if (operation.isSucceeded()) {
             byte[] value = response.getValue();
@@ -140,54 +182,36 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
 
     @Override
     public boolean remove(byte[] key) throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createRemove(key, codec);
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        if (operation.isSucceeded()) {
-            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-            return (response.status == 200);
-        } else {
-            if (operation.getException() != null) {
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to remove: key=" + Arrays.toString(key), operation.getException());
-            } else {
-                int status = ((TsvRpcResponse) operation.getResponse()).status;
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to remove: key=" + Arrays.toString(key) + ", status=" + status);
-            }
-        }
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createRemove(key, codec));
+        return new RemoveConverter(key).convert(call(key, request));
+    }
+
+    /**
+     * Removes a record asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#remove(byte[])
+     */
+    protected KyotoTycoonFuture<Boolean> removeAsync(byte[] key, Executor executor) {
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createRemove(key, codec));
+        return submit(locate(key), request, executor, new RemoveConverter(key));
     }
 
     @Override
     public long increment(byte[] key, long num, long origin, ExpirationTime xt)
             throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createIncrement(key, num, origin, xt, codec);
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        if (operation.isSucceeded()) {
-            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-            if (response.status == 450) {
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to increment(the existing record is not compatible): key=" + Arrays.toString(key),
-                        operation.getException());
-            }
-            
-            long result = response.getNumber();
-            return result;
-        } else {
-            if (operation.getException() != null) {
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to increment: key=" + Arrays.toString(key), operation.getException());
-            } else {
-                int status = ((TsvRpcResponse) operation.getResponse()).status;
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to increment: key=" + Arrays.toString(key) + ", status=" + status);
-            }
-        }
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createIncrement(key, num, origin, xt, codec));
+        return new IncrementConverter(key).convert(call(key, request));
+    }
+
+    /**
+     * Adds a number to the numeric integer value of a record asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#increment(byte[], long, long, ExpirationTime)
+     */
+    protected KyotoTycoonFuture<Long> incrementAsync(byte[] key, long num, long origin, ExpirationTime xt,
+            Executor executor) {
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createIncrement(key, num, origin, xt, codec));
+        return submit(locate(key), request, executor, new IncrementConverter(key));
     }
 
     @Override
@@ -208,7 +232,7 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
+        Operation operation = call(key, request);
         if (operation.isSucceeded()) {
             TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
             if (response.status == 450) {
@@ -234,23 +258,19 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
     @Override
     public boolean cas(byte[] key, byte[] expect, byte[] update, ExpirationTime xt)
             throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createCas(key, expect, update, xt, codec);
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        if (operation.isSucceeded()) {
-            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-            if (response.status == 450) {
-                // the old value assumption was failed
-                return false;
-            }
-            return true;
-        } else {
-            int status = ((TsvRpcResponse) operation.getResponse()).status;
-            throw new KyotoTycoonOperationFailedException(
-                    "Failed to cas: key=" + Arrays.toString(key) + ", status=" + status);
-        }
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createCas(key, expect, update, xt, codec));
+        return new CasConverter(key).convert(call(key, request));
+    }
+
+    /**
+     * Performs compare-and-swap asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#cas(byte[], byte[], byte[], ExpirationTime)
+     */
+    protected KyotoTycoonFuture<Boolean> casAsync(byte[] key, byte[] expect, byte[] update, ExpirationTime xt,
+            Executor executor) {
+        TsvRpcRequest request = withDatabase(TsvRpcRequest.createCas(key, expect, update, xt, codec));
+        return submit(locate(key), request, executor, new CasConverter(key));
     }
 
     @Override
@@ -260,7 +280,7 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
+        Operation operation = call(key, request);
         if (operation.isSucceeded()) {
             TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
             if (response.status == 450) {
@@ -282,7 +302,7 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
+        Operation operation = call(key, request);
         TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
         if (operation.isSucceeded()) {
             if (response.status == 450) {
@@ -307,42 +327,66 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         return toStringMap(result);
     }
 
+    /**
+     * Retrieves records at once.
+     * <p>
+     * When the records are sharded across two or more servers, <code>atomic</code> is
+     * applied to the records on each server.
+     * </p>
+     */
     @Override
     public Map<byte[], byte[]> getBulk(List<byte[]> keys, boolean atomic)
             throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createGetBulk(keys, atomic, codec);
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (operation.isSucceeded()) {
-            Map<byte[], byte[]> result = response.getBulkResult();
-            return Collections.unmodifiableMap(result);
-        } else {
-            int status = (response != null) ? response.status : -1;
-            throw new KyotoTycoonOperationFailedException(
-                    "Failed to get_bulk: status=" + status + ", keys=" + keys);
+        return getBulkAsync(keys, atomic, null).join();
+    }
+
+    /**
+     * Retrieves records at once asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#getBulk(List)
+     */
+    protected KyotoTycoonFuture<Map<byte[], byte[]>> getBulkAsync(List<byte[]> keys, boolean atomic,
+            Executor executor) {
+        List<byte[]>[] shards = partition(keys);
+        ArrayList<KyotoTycoonFuture<Map<byte[], byte[]>>> futures =
+                new ArrayList<KyotoTycoonFuture<Map<byte[], byte[]>>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                TsvRpcRequest request = withDatabase(TsvRpcRequest.createGetBulk(shards[i], atomic, codec));
+                futures.add(submit(i, request, null, new GetBulkConverter(shards[i])));
+            }
         }
+        return gather(futures, executor, MAP_MERGER);
     }
 
+    /**
+     * Removes records at once.
+     * <p>
+     * When the records are sharded across two or more servers, <code>atomic</code> is
+     * applied to the records on each server.
+     * </p>
+     */
     @Override
     public long removeBulk(List<byte[]> keys, boolean atomic)
             throws KyotoTycoonOperationFailedException {
-        TsvRpcRequest request = TsvRpcRequest.createRemoveBulk(keys, atomic, codec);
-        if (database != null) {
-            request.setDatabaseIdentifier(database);
-        }
-        Operation operation = call(request);
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (operation.isSucceeded()) {
-            long num = response.getNumber();
-            return num;
-        } else {
-            int status = (response != null) ? response.status : -1;
-            throw new KyotoTycoonOperationFailedException(
-                    "Failed to remove_bulk: status=" + status + ", keys=" + keys);
+        return removeBulkAsync(keys, atomic, null).join();
+    }
+
+    /**
+     * Removes records at once asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#removeBulk(List)
+     */
+    protected KyotoTycoonFuture<Long> removeBulkAsync(List<byte[]> keys, boolean atomic, Executor executor) {
+        List<byte[]>[] shards = partition(keys);
+        ArrayList<KyotoTycoonFuture<Long>> futures = new ArrayList<KyotoTycoonFuture<Long>>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            if (shards[i] != null) {
+                TsvRpcRequest request = withDatabase(TsvRpcRequest.createRemoveBulk(shards[i], atomic, codec));
+                futures.add(submit(i, request, null, new RemoveBulkConverter(shards[i])));
+            }
         }
+        return gather(futures, executor, SUM_MERGER);
     }
 
     @Override
@@ -361,11 +405,13 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
-        if (!operation.isSucceeded()) {
-            int status = ((TsvRpcResponse) operation.getResponse()).status;
-            throw new KyotoTycoonOperationFailedException(
-                    "Failed to clear: status=" + status);
+        for (Operation operation : callAll(request)) {
+            if (!operation.isSucceeded()) {
+                TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+                int status = (response != null) ? response.status : -1;
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to clear: status=" + status, operation.getException());
+            }
         }
     }
 
@@ -376,14 +422,19 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (operation.isSucceeded()) {
-            return new ArrayList<byte[]>(response.getBulkResult().keySet());
-        } else {
-            throw new KyotoTycoonOperationFailedException(
-                    "Failed to match_regex: status=" + ((response != null) ? response.status : "?"));
+        ArrayList<byte[]> result = new ArrayList<byte[]>();
+        for (Operation operation : callAll(request)) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to match_regex: status=" + ((response != null) ? response.status : "?"));
+            }
+            result.addAll(response.getBulkResult().keySet());
+        }
+        if (max > -1 && result.size() > max) {
+            return new ArrayList<byte[]>(result.subList(0, (int) max));
         }
+        return result;
     }
 
     @Override
@@ -393,29 +444,120 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (operation.isSucceeded()) {
-            return new ArrayList<byte[]>(response.getBulkResult().keySet());
-        } else {
+        ArrayList<byte[]> result = new ArrayList<byte[]>();
+        for (Operation operation : callAll(request)) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (!operation.isSucceeded()) {
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to match_preifx: status=" + ((response != null) ? response.status : "?"));
+            }
+            result.addAll(response.getBulkResult().keySet());
+        }
+        if (max > -1 && result.size() > max) {
+            return new ArrayList<byte[]>(result.subList(0, (int) max));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the keys that match the regular expression, and hands each key to the handler
+     * as soon as its row is decoded, without collecting the whole response.
+     * 
+     * @param regex the regular expression.
+     * @param max the maximum number of the keys handled. -1 handles all.
+     * @param handler receives the matched keys on the I/O threads.
+     * @return the number of the keys handled.
+     * @throws KyotoTycoonOperationFailedException if any server fails, or the handler throws an exception.
+     */
+    public long matchRegex(byte[] regex, long max, KeyHandler handler)
+            throws KyotoTycoonOperationFailedException {
+        return match(TsvRpcRequest.createMatchRegex(regex, max, codec), max, handler);
+    }
+
+    /**
+     * Finds the keys that start with the prefix, and hands each key to the handler
+     * as soon as its row is decoded, without collecting the whole response.
+     * 
+     * @param prefix the prefix.
+     * @param max the maximum number of the keys handled. -1 handles all.
+     * @param handler receives the matched keys on the I/O threads.
+     * @return the number of the keys handled.
+     * @throws KyotoTycoonOperationFailedException if any server fails, or the handler throws an exception.
+     */
+    public long matchPrefix(byte[] prefix, long max, KeyHandler handler)
+            throws KyotoTycoonOperationFailedException {
+        return match(TsvRpcRequest.createMatchPrefix(prefix, max, codec), max, handler);
+    }
+
+    private long match(TsvRpcRequest request, long max, KeyHandler handler) {
+        if (database != null) {
+            request.setDatabaseIdentifier(database);
+        }
+        KeyRows rows = new KeyRows(max, handler);
+        request.setRowHandler(rows);
+        for (Operation operation : callAll(request)) {
+            if (!operation.isSucceeded()) {
+                TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to " + request.command.procedureName + ": status="
+                        + ((response != null) ? response.status : "?"), operation.getException());
+            }
+        }
+        if (rows.failure != null) {
             throw new KyotoTycoonOperationFailedException(
-                    "Failed to match_preifx: status=" + ((response != null) ? response.status : "?"));
+                    "Failed to handle a key of " + request.command.procedureName, rows.failure);
+        }
+        return Math.min(rows.count.get(), (max > -1) ? max : Long.MAX_VALUE);
+    }
+
+    /**
+     * Hands the keys in the rows of a match response to a {@link KeyHandler}.
+     * The rows of the keys start with '_', and the others, such as the number of the keys, are skipped.
+     */
+    private static class KeyRows implements TsvRowHandler {
+        final AtomicLong count = new AtomicLong();
+        final long max;
+        final KeyHandler handler;
+        volatile RuntimeException failure;
+
+        KeyRows(long max, KeyHandler handler) {
+            this.max = max;
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleRow(byte[] key, byte[] value) {
+            if (key.length == 0 || key[0] != '_' || failure != null) {
+                return;
+            }
+            if (count.incrementAndGet() > max && max > -1) {
+                return;
+            }
+            try {
+                handler.handleKey(Arrays.copyOfRange(key, 1, key.length));
+            } catch (RuntimeException e) {
+                // the I/O thread goes on with the other rows; the caller gets the failure
+                failure = e;
+            }
         }
     }
 
     @Override
     public Map<byte[], byte[]> playScript(String procedureName, Map<byte[], byte[]> params)
             throws KyotoTycoonOperationFailedException {
-        Operation operation = call(TsvRpcRequest.createPlayScript(procedureName, params, codec));
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (operation.isSucceeded()) {
-            Map<byte[], byte[]> result = response.getBulkResult();
-            return Collections.unmodifiableMap(result);
-        } else {
-            int status = (response != null) ? response.status : -1;
-            throw new KyotoTycoonOperationFailedException(
-                    "Failed to play_script: status=" + status + ", params=" + params);
-        }
+        TsvRpcRequest request = TsvRpcRequest.createPlayScript(procedureName, params, codec);
+        return new PlayScriptConverter(params).convert(call(request));
+    }
+
+    /**
+     * Calls a procedure of the script language extension asynchronously.
+     * 
+     * @see AsyncKyotoTycoonClient#playScript(String, Map)
+     */
+    protected KyotoTycoonFuture<Map<byte[], byte[]>> playScriptAsync(String procedureName,
+            Map<byte[], byte[]> params, Executor executor) {
+        TsvRpcRequest request = TsvRpcRequest.createPlayScript(procedureName, params, codec);
+        return submit(0, request, executor, new PlayScriptConverter(params));
     }
 
     @Override
@@ -424,11 +566,12 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (response == null || response.status != 200) {
-            int status = (response != null) ? response.status : -1;
-            throw new KyotoTycoonOperationFailedException("Failed to void: status=" + status);
+        for (Operation operation : callAll(request)) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (response == null || response.status != 200) {
+                int status = (response != null) ? response.status : -1;
+                throw new KyotoTycoonOperationFailedException("Failed to void: status=" + status);
+            }
         }
     }
 
@@ -438,16 +581,17 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (response == null || response.status != 200) {
-            int status = (response != null) ? response.status : -1;
-            if (status == 450) {
-                throw new KyotoTycoonOperationFailedException(
-                        "Failed to synchronize - the postprocessing command failed: command=" + command);
-            } else {
-                throw new KyotoTycoonOperationFailedException("Failed to synchronize: "
-                        + "status=" + status + ", hard=" + hard + ", command=" + command);
+        for (Operation operation : callAll(request)) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (response == null || response.status != 200) {
+                int status = (response != null) ? response.status : -1;
+                if (status == 450) {
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to synchronize - the postprocessing command failed: command=" + command);
+                } else {
+                    throw new KyotoTycoonOperationFailedException("Failed to synchronize: "
+                            + "status=" + status + ", hard=" + hard + ", command=" + command);
+                }
             }
         }
     }
@@ -458,12 +602,13 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         if (database != null) {
             request.setDatabaseIdentifier(database);
         }
-        Operation operation = call(request);
-        TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
-        if (response == null || response.status != 200) {
-            int status = (response != null) ? response.status : -1;
-            throw new KyotoTycoonOperationFailedException("Failed to vacuum: "
-                    + "status=" + status + ", step=" + step);
+        for (Operation operation : callAll(request)) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (response == null || response.status != 200) {
+                int status = (response != null) ? response.status : -1;
+                throw new KyotoTycoonOperationFailedException("Failed to vacuum: "
+                        + "status=" + status + ", step=" + step);
+            }
         }
     }
 
@@ -521,6 +666,95 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         return toStringMap(response.getRawResult());
     }
     
+    /**
+     * Splits the keys by the servers that store them.
+     * 
+     * @return the keys indexed by the server index. The element is null if no keys belong to the server.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected List<byte[]>[] partition(List<byte[]> keys) {
+        List<byte[]>[] shards = new List[getServerCount()];
+        if (shards.length == 1) {
+            shards[0] = keys;
+            return shards;
+        }
+        for (byte[] key : keys) {
+            int index = locate(key);
+            if (shards[index] == null) {
+                shards[index] = new ArrayList<byte[]>();
+            }
+            shards[index].add(key);
+        }
+        return shards;
+    }
+
+    /**
+     * Splits the records by the servers that store them.
+     * The keys are either <code>byte[]</code> or <code>String</code>s encoded with UTF-8.
+     * 
+     * @return the records indexed by the server index. The element is null if no keys belong to the server.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected <K, V> Map<K, V>[] partition(Map<K, V> keyValuePairs) {
+        Map<K, V>[] shards = new Map[getServerCount()];
+        if (shards.length == 1) {
+            shards[0] = keyValuePairs;
+            return shards;
+        }
+        for (Map.Entry<K, V> kv : keyValuePairs.entrySet()) {
+            byte[] key = (kv.getKey() instanceof String) ?
+                    Bytes.utf8((String) kv.getKey()) : (byte[]) kv.getKey();
+            int index = locate(key);
+            if (shards[index] == null) {
+                shards[index] = new LinkedHashMap<K, V>();
+            }
+            shards[index].put(kv.getKey(), kv.getValue());
+        }
+        return shards;
+    }
+    
+    /**
+     * Returns the asynchronous view of this client.
+     * The listeners of the returned futures are notified by the I/O thread.
+     */
+    public AsyncKyotoTycoonClient async() {
+        return async(null);
+    }
+
+    /**
+     * Returns the asynchronous view of this client.
+     * 
+     * @param executor
+     *      the executor to notify the listeners of the returned futures.
+     *      If null, the I/O thread notifies them.
+     */
+    public AsyncKyotoTycoonClient async(Executor executor) {
+        return new AsyncClient(executor, 0L);
+    }
+
+    /**
+     * Returns the asynchronous view of this client whose futures fail with
+     * {@link java.util.concurrent.TimeoutException} when they are not done in time.
+     * 
+     * @param executor
+     *      the executor to notify the listeners of the returned futures.
+     *      If null, the I/O thread notifies them.
+     * @param timeout
+     *      the deadline of each call from its start. 0 or less means no deadline.
+     * @param unit
+     *      the unit of <code>timeout</code>.
+     */
+    public AsyncKyotoTycoonClient async(Executor executor, long timeout, TimeUnit unit) {
+        return new AsyncClient(executor, unit.toMillis(timeout));
+    }
+    
+    private TsvRpcRequest withDatabase(TsvRpcRequest request) {
+        if (database != null) {
+            request.setDatabaseIdentifier(database);
+        }
+        return request;
+    }
+    
     private Map<String, String> toStringMap(Map<byte[], byte[]> source) {
         HashMap<String, String> result = new HashMap<String, String>();
         for (Map.Entry<byte[], byte[]> entry : source.entrySet()) {
@@ -528,4 +762,313 @@ public class KyotoTycoonTsvRpcClient extends AbstractKyotoTycoonClient {
         }
         return result;
     }
+
+    private class AsyncClient implements AsyncKyotoTycoonClient {
+        private final Executor executor;
+        private final long timeoutMillis;
+
+        AsyncClient(Executor executor, long timeoutMillis) {
+            this.executor = executor;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public KyotoTycoonFuture<byte[]> get(byte[] key) {
+            return expire(getAsync(key, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Void> set(byte[] key, byte[] value, ExpirationTime xt) {
+            return expire(setAsync(key, value, xt, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Boolean> remove(byte[] key) {
+            return expire(removeAsync(key, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Map<byte[], byte[]>> getBulk(List<byte[]> keys) {
+            return expire(getBulkAsync(keys, false, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Void> setBulk(Map<byte[], byte[]> keyValuePairs, ExpirationTime xt) {
+            return expire(setBulkAsync(keyValuePairs, xt, false, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Long> removeBulk(List<byte[]> keys) {
+            return expire(removeBulkAsync(keys, false, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Long> increment(byte[] key, long num, long origin, ExpirationTime xt) {
+            return expire(incrementAsync(key, num, origin, xt, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Boolean> cas(byte[] key, byte[] expect, byte[] update, ExpirationTime xt) {
+            return expire(casAsync(key, expect, update, xt, executor), timeoutMillis);
+        }
+
+        @Override
+        public KyotoTycoonFuture<Map<byte[], byte[]>> playScript(String procedureName,
+                Map<byte[], byte[]> params) {
+            return expire(playScriptAsync(procedureName, params, executor), timeoutMillis);
+        }
+    }
+
+    private static final ResultConverter<Void> SET_BULK_CONVERTER = new ResultConverter<Void>() {
+        @Override
+        public Void convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                if (operation.getException() != null) {
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to setbulk.", operation.getException());
+                } else {
+                    int status = ((TsvRpcResponse) operation.getResponse()).status;
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to setbulk: status=" + status);
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Merges nothing for the operations that have no result.
+     */
+    protected static final ResultMerger<Void, Void> VOID_MERGER = new ResultMerger<Void, Void>() {
+        @Override
+        public Void merge(List<Void> results) {
+            return null;
+        }
+    };
+
+    /**
+     * Sums up the numbers of the records.
+     */
+    protected static final ResultMerger<Long, Long> SUM_MERGER = new ResultMerger<Long, Long>() {
+        @Override
+        public Long merge(List<Long> results) {
+            long sum = 0;
+            for (Long result : results) {
+                sum += result;
+            }
+            return sum;
+        }
+    };
+
+    private static final ResultMerger<Map<byte[], byte[]>, Map<byte[], byte[]>> MAP_MERGER =
+            new ResultMerger<Map<byte[], byte[]>, Map<byte[], byte[]>>() {
+        @Override
+        public Map<byte[], byte[]> merge(List<Map<byte[], byte[]>> results) {
+            if (results.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<byte[], byte[]> result = results.get(0);
+            for (int i = 1; i < results.size(); ++i) {
+                for (Map.Entry<byte[], byte[]> entry : results.get(i).entrySet()) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return Collections.unmodifiableMap(result);
+        }
+    };
+
+    private static class SetConverter implements ResultConverter<Void> {
+        private final byte[] key;
+
+        SetConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public Void convert(Operation operation) {
+            if (!operation.isSucceeded()) {
+                if (operation.getException() != null) {
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to set: key=" + Arrays.toString(key), operation.getException());
+                } else {
+                    int status = ((TsvRpcResponse) operation.getResponse()).status;
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to set: key=" + Arrays.toString(key) + ", status=" + status);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class GetConverter implements ResultConverter<byte[]> {
+        private final byte[] key;
+
+        GetConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public byte[] convert(Operation operation) {
+            if (operation.isSucceeded()) {
+                TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+                byte[] value = response.getValue();
+                return value;
+            } else {
+                if (operation.getException() != null) {
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to get: key=" + Arrays.toString(key), operation.getException());
+                } else {
+                    int status = ((TsvRpcResponse) operation.getResponse()).status;
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to get: key=" + Arrays.toString(key) + ", status=" + status);
+                }
+            }
+        }
+    }
+
+    private static class RemoveConverter implements ResultConverter<Boolean> {
+        private final byte[] key;
+
+        RemoveConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public Boolean convert(Operation operation) {
+            if (operation.isSucceeded()) {
+                TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+                return (response.status == 200);
+            } else {
+                if (operation.getException() != null) {
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to remove: key=" + Arrays.toString(key), operation.getException());
+                } else {
+                    int status = ((TsvRpcResponse) operation.getResponse()).status;
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to remove: key=" + Arrays.toString(key) + ", status=" + status);
+                }
+            }
+        }
+    }
+
+    private static class IncrementConverter implements ResultConverter<Long> {
+        private final byte[] key;
+
+        IncrementConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public Long convert(Operation operation) {
+            if (operation.isSucceeded()) {
+                TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+                if (response.status == 450) {
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to increment(the existing record is not compatible): key=" + Arrays.toString(key),
+                            operation.getException());
+                }
+                
+                long result = response.getNumber();
+                return result;
+            } else {
+                if (operation.getException() != null) {
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to increment: key=" + Arrays.toString(key), operation.getException());
+                } else {
+                    int status = ((TsvRpcResponse) operation.getResponse()).status;
+                    throw new KyotoTycoonOperationFailedException(
+                            "Failed to increment: key=" + Arrays.toString(key) + ", status=" + status);
+                }
+            }
+        }
+    }
+
+    private static class CasConverter implements ResultConverter<Boolean> {
+        private final byte[] key;
+
+        CasConverter(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public Boolean convert(Operation operation) {
+            if (operation.isSucceeded()) {
+                TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+                if (response.status == 450) {
+                    // the old value assumption was failed
+                    return false;
+                }
+                return true;
+            } else {
+                TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+                int status = (response != null) ? response.status : -1;
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to cas: key=" + Arrays.toString(key) + ", status=" + status,
+                        operation.getException());
+            }
+        }
+    }
+
+    private static class GetBulkConverter implements ResultConverter<Map<byte[], byte[]>> {
+        private final List<byte[]> keys;
+
+        GetBulkConverter(List<byte[]> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public Map<byte[], byte[]> convert(Operation operation) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (operation.isSucceeded()) {
+                return response.getBulkResult();
+            } else {
+                int status = (response != null) ? response.status : -1;
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to get_bulk: status=" + status + ", keys=" + keys, operation.getException());
+            }
+        }
+    }
+
+    private static class RemoveBulkConverter implements ResultConverter<Long> {
+        private final List<byte[]> keys;
+
+        RemoveBulkConverter(List<byte[]> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public Long convert(Operation operation) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (operation.isSucceeded()) {
+                long num = response.getNumber();
+                return num;
+            } else {
+                int status = (response != null) ? response.status : -1;
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to remove_bulk: status=" + status + ", keys=" + keys, operation.getException());
+            }
+        }
+    }
+
+    private static class PlayScriptConverter implements ResultConverter<Map<byte[], byte[]>> {
+        private final Map<byte[], byte[]> params;
+
+        PlayScriptConverter(Map<byte[], byte[]> params) {
+            this.params = params;
+        }
+
+        @Override
+        public Map<byte[], byte[]> convert(Operation operation) {
+            TsvRpcResponse response = (TsvRpcResponse) operation.getResponse();
+            if (operation.isSucceeded()) {
+                Map<byte[], byte[]> result = response.getBulkResult();
+                return Collections.unmodifiableMap(result);
+            } else {
+                int status = (response != null) ? response.status : -1;
+                throw new KyotoTycoonOperationFailedException(
+                        "Failed to play_script: status=" + status + ", params=" + params,
+                        operation.getException());
+            }
+        }
+    }
 }
@@ -1,13 +1,12 @@
 package kt4j.tsvrpc;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import kt4j.Bytes;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 /**
  * 
  * @author kumai
@@ -26,41 +25,48 @@ public enum TsvColumnCodec {
         public byte[] decode(byte[] value) {
             return Bytes.base64Decode(value);
         }
+
+        @Override
+        public void encode(Object value, ChannelBuffer dst) {
+            Bytes.base64Encode(toEncodeableBytes(value), dst);
+        }
+
+        @Override
+        int encodedLength(byte[] bytes) {
+            return Bytes.base64EncodedLength(bytes.length);
+        }
+
+        @Override
+        public byte[] decode(ChannelBuffer src, int index, int length) {
+            return Bytes.base64Decode(src, index, length);
+        }
         
     },
     
     URL_ENCODING("text/tab-separated-values; colenc=U") {
         @Override
         public byte[] encode(Object value) {
-            String str;
-            if (value instanceof String) {
-                str = (String) value;
-            } else {
-                byte[] buf = toEncodeableBytes(value);
-                str = new String(buf, charset());
-            }
-            
-            String encoded;
-            try {
-                encoded = URLEncoder.encode(str, charset().name());
-            } catch (UnsupportedEncodingException e) {
-                throw new Error("Shouldn't reached here.", e);
-            }
-            
-            return encoded.getBytes(charset());
+            return Bytes.urlEncode(toEncodeableBytes(value));
+        }
+
+        @Override
+        public void encode(Object value, ChannelBuffer dst) {
+            Bytes.urlEncode(toEncodeableBytes(value), dst);
+        }
+
+        @Override
+        int encodedLength(byte[] bytes) {
+            return Bytes.urlEncodedLength(bytes);
         }
 
         @Override
         public byte[] decode(byte[] value) {
-            String str = new String(value, charset());
-            String decoded;
-            try {
-                decoded = URLDecoder.decode(str, charset().name());
-            } catch (UnsupportedEncodingException e) {
-                throw new Error("Shouldn't reached here.", e);
-            }
-            
-            return decoded.getBytes(charset());
+            return Bytes.urlDecode(value);
+        }
+
+        @Override
+        public byte[] decode(ChannelBuffer src, int index, int length) {
+            return Bytes.urlDecode(src, index, length);
         }
     },
     
@@ -70,10 +76,81 @@ public enum TsvColumnCodec {
             return toEncodeableBytes(value);
         }
 
+        @Override
+        public void encode(Object value, ChannelBuffer dst) {
+            dst.writeBytes(toEncodeableBytes(value));
+        }
+
+        @Override
+        int encodedLength(byte[] bytes) {
+            return bytes.length;
+        }
+
         @Override
         public byte[] decode(byte[] value) {
             return value;
         }
+
+        @Override
+        public byte[] decode(ChannelBuffer src, int index, int length) {
+            byte[] value = new byte[length];
+            src.getBytes(index, value);
+            return value;
+        }
+    },
+    
+    /**
+     * Selects NONE, URL_ENCODING or BASE_64 for each request, whichever is the most compact
+     * for its columns. Used to encode a column by itself, it behaves as BASE_64.
+     */
+    ADAPTIVE(null) {
+        @Override
+        public byte[] encode(Object value) {
+            return BASE_64.encode(value);
+        }
+
+        @Override
+        public void encode(Object value, ChannelBuffer dst) {
+            BASE_64.encode(value, dst);
+        }
+
+        @Override
+        int encodedLength(byte[] bytes) {
+            return BASE_64.encodedLength(bytes);
+        }
+
+        @Override
+        public byte[] decode(byte[] value) {
+            return BASE_64.decode(value);
+        }
+
+        @Override
+        public byte[] decode(ChannelBuffer src, int index, int length) {
+            return BASE_64.decode(src, index, length);
+        }
+
+        @Override
+        TsvColumnCodec select(byte[][] columns, int numColumns) {
+            int length = 0;
+            int escaped = 0;
+            boolean plain = true;
+            for (int i = 0; i < numColumns; ++i) {
+                length += columns[i].length;
+                for (byte b : columns[i]) {
+                    if (b == '\t' || b == '\n' || b == '\r') {
+                        plain = false;
+                    }
+                    if (Bytes.urlEscaped(b)) {
+                        ++escaped;
+                    }
+                }
+            }
+            if (plain) {
+                return NONE;
+            }
+            // an escaped byte takes 3 bytes, while Base64 takes 4 bytes for every 3 bytes
+            return (escaped * 6 < length) ? URL_ENCODING : BASE_64;
+        }
     },
     ;
     
@@ -93,10 +170,53 @@ public enum TsvColumnCodec {
 
     public abstract byte[] decode(byte[] value);
     
+    /**
+     * Encodes a column and writes it to the buffer.
+     * 
+     * @param value the value to encode.
+     * @param dst the buffer to write the encoded column to.
+     */
+    public void encode(Object value, ChannelBuffer dst) {
+        dst.writeBytes(encode(value));
+    }
+    
+    /**
+     * Decodes a column straight from the buffer, without copying it into an intermediate array
+     * where the codec allows.
+     * 
+     * @param src the buffer that contains the column.
+     * @param index the index of the first byte of the column.
+     * @param length the length of the column in bytes.
+     * @return the decoded column.
+     */
+    public byte[] decode(ChannelBuffer src, int index, int length) {
+        byte[] value = new byte[length];
+        src.getBytes(index, value);
+        return decode(value);
+    }
+    
+    /**
+     * Returns the length of the bytes encoded by this codec.
+     */
+    int encodedLength(byte[] bytes) {
+        return encode(bytes).length;
+    }
+    
+    /**
+     * Selects the codec to encode the columns of a request with.
+     * 
+     * @param columns the names and the values of the columns.
+     * @param numColumns the number of the columns.
+     * @return this codec unless this is ADAPTIVE.
+     */
+    TsvColumnCodec select(byte[][] columns, int numColumns) {
+        return this;
+    }
+    
     public static final TsvColumnCodec forContentType(String contentType)
             throws NullPointerException, IllegalArgumentException {
         for (TsvColumnCodec enc : TsvColumnCodec.values()) {
-            if (enc.contentType.equalsIgnoreCase(contentType)) {
+            if (enc.contentType != null && enc.contentType.equalsIgnoreCase(contentType)) {
                 return enc;
             }
         }
@@ -0,0 +1,98 @@
+package kt4j.tsvrpc;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Splits a TSV-RPC response body into rows as its chunks arrive,
+ * and hands each row to a {@link TsvRowHandler}.
+ * <p>
+ * Only the incomplete row at the end of a chunk is kept until the next chunk,
+ * so the body is never aggregated as a whole.
+ * The rows are tokenized in a single pass over the buffer offsets, and each column is decoded
+ * straight from the buffer into its final array.
+ * </p>
+ * 
+ * @author kumai
+ */
+class TsvRowDecoder {
+    private static final byte[] EMPTY_COLUMN = new byte[0];
+
+    private final TsvColumnCodec columnCodec;
+    private final TsvRowHandler handler;
+    private ChannelBuffer partialRow;
+
+    TsvRowDecoder(TsvColumnCodec columnCodec, TsvRowHandler handler) {
+        this.columnCodec = columnCodec;
+        this.handler = handler;
+    }
+
+    /**
+     * Decodes the complete rows in the chunk, and keeps the rest for the next chunk.
+     */
+    void decode(ChannelBuffer chunk) {
+        if (partialRow != null && partialRow.readable()) {
+            int eol = indexOf(chunk, chunk.readerIndex(), chunk.writerIndex(), (byte) '\n');
+            if (eol < 0) {
+                partialRow.writeBytes(chunk);
+                return;
+            }
+            partialRow.writeBytes(chunk, chunk.readerIndex(), eol - chunk.readerIndex());
+            chunk.readerIndex(eol + 1);
+            decodeRow(partialRow, partialRow.readerIndex(), partialRow.writerIndex());
+            partialRow.clear();
+        }
+
+        int eol;
+        while ((eol = indexOf(chunk, chunk.readerIndex(), chunk.writerIndex(), (byte) '\n')) >= 0) {
+            decodeRow(chunk, chunk.readerIndex(), eol);
+            chunk.readerIndex(eol + 1);
+        }
+
+        if (chunk.readable()) {
+            if (partialRow == null) {
+                partialRow = ChannelBuffers.dynamicBuffer(Math.max(256, chunk.readableBytes()));
+            }
+            partialRow.writeBytes(chunk);
+        }
+    }
+
+    /**
+     * Decodes the last row that has no trailing newline.
+     */
+    void finish() {
+        if (partialRow != null && partialRow.readable()) {
+            decodeRow(partialRow, partialRow.readerIndex(), partialRow.writerIndex());
+        }
+        partialRow = null;
+    }
+
+    private void decodeRow(ChannelBuffer buffer, int start, int end) {
+        int tab = indexOf(buffer, start, end, (byte) '\t');
+        if (tab < 0) {
+            return;
+        }
+        byte[] key = columnCodec.decode(buffer, start, tab - start);
+        int valueLength = end - tab - 1;
+        byte[] value = (valueLength > 0) ? columnCodec.decode(buffer, tab + 1, valueLength) : EMPTY_COLUMN;
+        handler.handleRow(key, value);
+    }
+
+    /**
+     * Finds the byte in the backing array directly when the buffer has one,
+     * which is much cheaper than {@link ChannelBuffer#indexOf(int, int, byte)} per byte.
+     */
+    private static int indexOf(ChannelBuffer buffer, int fromIndex, int toIndex, byte value) {
+        if (!buffer.hasArray()) {
+            return buffer.indexOf(fromIndex, toIndex, value);
+        }
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        for (int i = fromIndex + offset, end = toIndex + offset; i < end; ++i) {
+            if (array[i] == value) {
+                return i - offset;
+            }
+        }
+        return -1;
+    }
+}
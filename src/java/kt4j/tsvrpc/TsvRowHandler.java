@@ -0,0 +1,17 @@
+package kt4j.tsvrpc;
+
+/**
+ * Receives the rows of a TSV-RPC response as they are decoded,
+ * before the whole response body has been received.
+ * 
+ * @author kumai
+ */
+interface TsvRowHandler {
+    /**
+     * Handles a row of the response. Called by the I/O thread.
+     * 
+     * @param key the decoded key column.
+     * @param value the decoded value column.
+     */
+    void handleRow(byte[] key, byte[] value);
+}
@@ -1,8 +1,12 @@
 package kt4j.tsvrpc;
 
-import java.io.ByteArrayOutputStream;
 import java.net.InetSocketAddress;
-import java.util.Arrays;
+import java.net.SocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import kt4j.Bytes;
+import kt4j.Request.Command;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -11,21 +15,24 @@ import org.jboss.netty.channel.ChannelDownstreamHandler;
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
-import org.jboss.netty.handler.codec.http.HttpMethod;
-import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 
 /**
- * This class is a transcoder for {@link org.jboss.netty.handler.codec.http.HttpRequest}/{@link org.jboss.netty.handler.codec.http.HttpResponse} and {@link TsvRpcRequest}/{@link TsvRpcResponse}. 
+ * This class is a transcoder for HTTP requests/{@link org.jboss.netty.handler.codec.http.HttpResponse} and {@link TsvRpcRequest}/{@link TsvRpcResponse}. 
+ * <p>
+ * The responses are decoded from the HTTP chunks as they arrive, without aggregating the content,
+ * so there is no limit on the size of a response.
+ * </p>
  * 
  * @author kumai
  */
 public class TsvRpcClientCodec implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+    /** The requests waiting for the responses, in the order they were written. */
+    private final Queue<TsvRpcRequest> requests = new ConcurrentLinkedQueue<TsvRpcRequest>();
     private final Encoder encoder = new Encoder();
     private final Decoder decoder = new Decoder();
     
@@ -39,7 +46,16 @@ public class TsvRpcClientCodec implements ChannelUpstreamHandler, ChannelDownstr
         decoder.handleUpstream(ctx, evt);
     }
     
-    private static class Encoder extends OneToOneEncoder {
+    /**
+     * Encodes the {@link TsvRpcRequest}s into HTTP/1.1 POST requests.
+     * <p>
+     * The request line and the fixed headers of each procedure are formatted once per connection,
+     * and only the Content-Type and the Content-Length are appended for each request.
+     * The Host header is the IP address of the server, so no DNS lookup happens on the I/O thread.
+     * </p>
+     */
+    private class Encoder extends OneToOneEncoder {
+        private final byte[][] templates = new byte[Command.values().length][];
         
         @Override
         protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
@@ -48,65 +64,123 @@ public class TsvRpcClientCodec implements ChannelUpstreamHandler, ChannelDownstr
             }
             
             TsvRpcRequest request = (TsvRpcRequest) msg;
+            ChannelBuffer content = request.encodeContent();
+            byte[] template = template(channel, request);
+            byte[] contentType = CONTENT_TYPES[request.getColumnCodec().ordinal()];
             
-            HttpRequest httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, request.getPath());
-            InetSocketAddress remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
-            HttpHeaders.setHost(httpRequest, remoteAddress.getHostName() + ":" + remoteAddress.getPort());
-            HttpHeaders.setKeepAlive(httpRequest, true);
-            
-            ChannelBuffer content = ChannelBuffers.copiedBuffer(request.getEncodedContent());
-            HttpHeaders.setHeader(httpRequest, HttpHeaders.Names.CONTENT_TYPE, request.getContentType());
-            httpRequest.setHeader(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
-            httpRequest.setContent(content);
+            ChannelBuffer header = ChannelBuffers.buffer(
+                    template.length + contentType.length + CONTENT_LENGTH.length + MAX_DIGITS + CRLFCRLF.length);
+            header.writeBytes(template);
+            header.writeBytes(contentType);
+            header.writeBytes(CONTENT_LENGTH);
+            writeDigits(header, content.readableBytes());
+            header.writeBytes(CRLFCRLF);
             
-            return httpRequest;
+            requests.offer(request);
+            return ChannelBuffers.wrappedBuffer(header, content);
+        }
+        
+        private byte[] template(Channel channel, TsvRpcRequest request) {
+            int index = request.command.ordinal();
+            byte[] template = templates[index];
+            if (template == null) {
+                template = Bytes.utf8("POST " + request.getPath() + " HTTP/1.1\r\n"
+                        + "Host: " + host(channel.getRemoteAddress()) + "\r\n"
+                        + "Connection: keep-alive\r\n");
+                templates[index] = template;
+            }
+            return template;
+        }
+    }
+    
+    /**
+     * Returns the value of the Host header, which is the IP address and the port of the server.
+     */
+    private static String host(SocketAddress address) {
+        if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).isUnresolved()) {
+            return "localhost";
+        }
+        InetSocketAddress inetAddress = (InetSocketAddress) address;
+        String host = inetAddress.getAddress().getHostAddress();
+        if (host.indexOf(':') >= 0) {
+            host = "[" + host + "]";
+        }
+        return host + ":" + inetAddress.getPort();
+    }
+    
+    private static void writeDigits(ChannelBuffer dst, int value) {
+        int start = dst.writerIndex();
+        do {
+            dst.writeByte('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // reverse the digits written from the lowest
+        for (int i = start, j = dst.writerIndex() - 1; i < j; ++i, --j) {
+            byte digit = dst.getByte(i);
+            dst.setByte(i, dst.getByte(j));
+            dst.setByte(j, digit);
+        }
+    }
+    
+    private static final int MAX_DIGITS = 10;
+    private static final byte[] CONTENT_LENGTH = Bytes.utf8("Content-Length: ");
+    private static final byte[] CRLFCRLF = Bytes.utf8("\r\n\r\n");
+    private static final byte[][] CONTENT_TYPES = new byte[TsvColumnCodec.values().length][];
+    static {
+        for (TsvColumnCodec codec : TsvColumnCodec.values()) {
+            if (codec.contentType != null) {
+                CONTENT_TYPES[codec.ordinal()] = Bytes.utf8("Content-Type: " + codec.contentType + "\r\n");
+            }
         }
     }
 
-    private static class Decoder extends OneToOneDecoder {
+    /**
+     * Decodes the HTTP responses and their chunks into {@link TsvRpcResponse}s.
+     * The rows are decoded as the chunks arrive, and handed to the {@link TsvRowHandler}
+     * of the request if set.
+     */
+    private class Decoder extends OneToOneDecoder {
+        private TsvRpcResponse response;
+        private TsvRowDecoder rowDecoder;
 
-        /* (non-Javadoc)
-         * @see org.jboss.netty.handler.codec.oneone.OneToOneDecoder#decode(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.Channel, java.lang.Object)
-         */
         @Override
         protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
-            if (!(msg instanceof HttpResponse)) {
-                return msg;
-            }
-            
-            HttpResponse httpResponse = (HttpResponse) msg;
-            
-            int httpStatusCode = httpResponse.getStatus().getCode();
-            
-            ChannelBuffer content = httpResponse.getContent();
-            ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-            while (content.readable()) {
-                byte[] buf = new byte[content.readableBytes()];
-                content.readBytes(buf);
-                byteArray.write(buf);
-            }
-            
-            TsvRpcResponse response = new TsvRpcResponse(httpStatusCode);
-            TsvColumnCodec columnCodec = TsvColumnCodec.forContentType(httpResponse.getHeader(HttpHeaders.Names.CONTENT_TYPE));
-            byte[] responseBody = byteArray.toByteArray();
-            int mark = 0;
-            for (int i = 0; i < responseBody.length; ++i) {
-                if (responseBody[i] == '\n' || i == (responseBody.length - 1)) {
-                    byte[] row = Arrays.copyOfRange(responseBody, mark, i);
-                    mark = i + 1;
-                    for (int j = 0; j < row.length; ++j) {
-                        if (row[j] == '\t') {
-                            byte[] keyBytes = Arrays.copyOf(row, j);
-                            byte[] decodedKey = columnCodec.decode(keyBytes);
-                            byte[] value = (j+1 < row.length) ?
-                                    columnCodec.decode(Arrays.copyOfRange(row, j+1, row.length)) : new byte[0];
-                            response.put(decodedKey, value);
-                        }
-                    }
+            if (msg instanceof HttpResponse) {
+                HttpResponse httpResponse = (HttpResponse) msg;
+                TsvRpcRequest request = requests.poll();
+                
+                response = new TsvRpcResponse(httpResponse.getStatus().getCode());
+                TsvRowHandler handler = (request != null && request.getRowHandler() != null) ?
+                        request.getRowHandler() : response;
+                TsvColumnCodec columnCodec = TsvColumnCodec.forContentType(
+                        httpResponse.getHeader(HttpHeaders.Names.CONTENT_TYPE));
+                rowDecoder = new TsvRowDecoder(columnCodec, handler);
+                rowDecoder.decode(httpResponse.getContent());
+                if (httpResponse.isChunked()) {
+                    return null;
+                }
+                return complete();
+            } else if (msg instanceof HttpChunk) {
+                if (rowDecoder == null) {
+                    return null;
                 }
+                HttpChunk chunk = (HttpChunk) msg;
+                rowDecoder.decode(chunk.getContent());
+                if (!chunk.isLast()) {
+                    return null;
+                }
+                return complete();
+            } else {
+                return msg;
             }
-            
-            return response;
+        }
+        
+        private TsvRpcResponse complete() {
+            rowDecoder.finish();
+            TsvRpcResponse completed = response;
+            response = null;
+            rowDecoder = null;
+            return completed;
         }
     }
 }
@@ -2,8 +2,7 @@ package kt4j.tsvrpc;
 
 import static kt4j.Bytes.utf8;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +11,9 @@ import kt4j.Bytes;
 import kt4j.ExpirationTime;
 import kt4j.Request;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
 /**
  * 
  * @author kumai
@@ -30,10 +32,20 @@ class TsvRpcRequest extends Request {
     
     private static final byte[] EMPTY_VALUE = new byte[0];
     
-    private final Map<Object, Object> values = new HashMap<Object, Object>();
+    /** The names and the values of the parameters alternately, in the order they were set. */
+    private byte[][] columns = new byte[8][];
+    private int numColumns;
+    
+    /** The positions of the parameters named by strings, to replace them when set again. */
+    private Map<String, Integer> namedColumns;
 
     private TsvColumnCodec columnCodec;
     
+    /** The codec selected for the current parameters, or null if not selected yet. */
+    private TsvColumnCodec selectedCodec;
+    
+    private TsvRowHandler rowHandler;
+    
     TsvRpcRequest(Command operation) {
         this(operation, TsvColumnCodec.NONE);
     }
@@ -46,14 +58,65 @@ class TsvRpcRequest extends Request {
 
     public void setDatabaseIdentifier(String db) {
         if (db != null) {
-            values.put("DB", utf8(db));
+            setRpcParam("DB", utf8(db));
         } else {
-            values.remove("DB");
+            removeRpcParam("DB");
         }
     }
     
+    /**
+     * Sets a parameter. The name and the value are converted to bytes as they are set.
+     * A parameter named by a string replaces the one set with the same name before.
+     */
     public void setRpcParam(Object name, Object value) {
-        values.put(name, value);
+        byte[] valueBytes = TsvColumnCodec.NONE.toEncodeableBytes(value);
+        Integer index = (name instanceof String && namedColumns != null) ? namedColumns.get(name) : null;
+        if (index != null) {
+            columns[index + 1] = valueBytes;
+        } else {
+            if (name instanceof String) {
+                if (namedColumns == null) {
+                    namedColumns = new HashMap<String, Integer>();
+                }
+                namedColumns.put((String) name, numColumns);
+            }
+            if (numColumns + 2 > columns.length) {
+                columns = Arrays.copyOf(columns, columns.length * 2);
+            }
+            columns[numColumns++] = TsvColumnCodec.NONE.toEncodeableBytes(name);
+            columns[numColumns++] = valueBytes;
+        }
+        selectedCodec = null;
+    }
+    
+    private void removeRpcParam(String name) {
+        Integer index = (namedColumns != null) ? namedColumns.remove(name) : null;
+        if (index == null) {
+            return;
+        }
+        System.arraycopy(columns, index + 2, columns, index, numColumns - index - 2);
+        numColumns -= 2;
+        columns[numColumns] = null;
+        columns[numColumns + 1] = null;
+        for (Map.Entry<String, Integer> entry : namedColumns.entrySet()) {
+            if (entry.getValue() > index) {
+                entry.setValue(entry.getValue() - 2);
+            }
+        }
+        selectedCodec = null;
+    }
+    
+    /**
+     * Sets the handler that receives the rows of the response as they are decoded,
+     * instead of storing them in the {@link TsvRpcResponse}.
+     * The handler is called by the I/O thread of each server this request is sent to.
+     */
+    void setRowHandler(TsvRowHandler rowHandler) {
+        this.rowHandler = rowHandler;
+    }
+    
+    TsvRowHandler getRowHandler() {
+        return rowHandler;
     }
     
     public String getPath() {
@@ -61,24 +124,52 @@ class TsvRpcRequest extends Request {
     }
     
     public String getContentType() {
-        return columnCodec.contentType;
+        return selectedCodec().contentType;
+    }
+    
+    /**
+     * Returns the codec the parameters are encoded with.
+     */
+    TsvColumnCodec getColumnCodec() {
+        return selectedCodec();
+    }
+    
+    /**
+     * Returns the codec to encode the parameters with, which {@link TsvColumnCodec#ADAPTIVE}
+     * selects once for the current parameters.
+     */
+    private TsvColumnCodec selectedCodec() {
+        if (selectedCodec == null) {
+            selectedCodec = columnCodec.select(columns, numColumns);
+        }
+        return selectedCodec;
     }
     
     public byte[] getEncodedContent() {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try {
-            for (Map.Entry<Object, Object> entry : values.entrySet()) {
-                out.write(columnCodec.encode((entry.getKey())));
-                out.write('\t');
-                out.write(columnCodec.encode(entry.getValue()));
-                out.write('\r');
-                out.write('\n');
-            }
-        } catch (IOException e) {
-            return null;
+        return encodeContent().array();
+    }
+    
+    /**
+     * Encodes the parameters into a buffer of the exact encoded size, which is computed up front
+     * so that the body is written once without growing or copying.
+     */
+    ChannelBuffer encodeContent() {
+        TsvColumnCodec columnCodec = selectedCodec();
+        int length = 0;
+        for (int i = 0; i < numColumns; i += 2) {
+            length += columnCodec.encodedLength(columns[i]) + 1 + columnCodec.encodedLength(columns[i + 1]) + 2;
         }
         
-        return out.toByteArray();
+        ChannelBuffer content = ChannelBuffers.wrappedBuffer(new byte[length]);
+        content.clear();
+        for (int i = 0; i < numColumns; i += 2) {
+            columnCodec.encode(columns[i], content);
+            content.writeByte('\t');
+            columnCodec.encode(columns[i + 1], content);
+            content.writeByte('\r');
+            content.writeByte('\n');
+        }
+        return content;
     }
     
     static TsvRpcRequest createGet(byte[] key, TsvColumnCodec codec) {
@@ -15,7 +15,7 @@ import kt4j.Response;
  * 
  * @author kumai
  */
-class TsvRpcResponse implements Response {
+class TsvRpcResponse implements Response, TsvRowHandler {
     private static final ByteArrayWrapper NUM_KEY = new ByteArrayWrapper(Bytes.utf8("num"));
     private static final ByteArrayWrapper VALUE_KEY = new ByteArrayWrapper(Bytes.utf8("value"));
     final int status;
@@ -30,6 +30,11 @@ class TsvRpcResponse implements Response {
         values.put(new ByteArrayWrapper(key), value);
     }
     
+    @Override
+    public void handleRow(byte[] key, byte[] value) {
+        put(key, value);
+    }
+    
     long getNumber() {
         byte[] numString = values.get(NUM_KEY);
         if (numString != null) {
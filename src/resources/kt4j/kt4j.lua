@@ -0,0 +1,114 @@
+--
+-- The procedures of kt4j for the script language extension of Kyoto Tycoon.
+--
+-- Load this script into every server with `ktserver -scr kt4j.lua`, and enable
+-- KyotoTycoonBinaryClient#setScriptProcedures(true). Then increment, cas, add, replace and seize
+-- are called with the binary play_script command instead of TSV-RPC.
+--
+-- Every procedure returns kt.RVSUCCESS when the operation was carried out, and puts its result in
+-- the output. A failed play_script means that either the procedure is missing or the database failed;
+-- the client calls kt4j_version to tell them apart, and goes back to TSV-RPC only in the former case:
+--   "result"  "true" or "false" for cas, add and replace.
+--   "num"     the value after increment.
+--   "value"   the value taken by seize, absent when there was no record.
+--   "error"   "incompatible" when increment finds a record that is not a number.
+--
+-- The input may have "DB", the index of the database (0 origin), and "xt", the expiration time
+-- in the same notation as TSV-RPC.
+--
+
+kt = __kyototycoon__
+
+local function database(inmap)
+   local index = tonumber(inmap.DB)
+   if index then
+      return kt.dbs[index + 1]
+   end
+   return kt.db
+end
+
+local function failed(db, expected)
+   return db:error():code() == expected
+end
+
+function kt4j_version(inmap, outmap)
+   outmap.version = "1"
+   return kt.RVSUCCESS
+end
+
+-- Numbers of Lua are doubles, so the client calls this only within +-2^53.
+function kt4j_increment(inmap, outmap)
+   local db = database(inmap)
+   if not db or not inmap.key or not inmap.num then
+      return kt.RVEINVALID
+   end
+   local num = db:increment(inmap.key, tonumber(inmap.num), tonumber(inmap.orig) or 0, tonumber(inmap.xt))
+   if num then
+      outmap.num = string.format("%.0f", num)
+   elseif failed(db, kt.Error.LOGIC) then
+      outmap.error = "incompatible"
+   else
+      return kt.RVEINTERNAL
+   end
+   return kt.RVSUCCESS
+end
+
+-- An absent "oval" means the record must not exist, and an absent "nval" removes the record.
+function kt4j_cas(inmap, outmap)
+   local db = database(inmap)
+   if not db or not inmap.key then
+      return kt.RVEINVALID
+   end
+   if db:cas(inmap.key, inmap.oval, inmap.nval, tonumber(inmap.xt)) then
+      outmap.result = "true"
+   elseif failed(db, kt.Error.LOGIC) then
+      outmap.result = "false"
+   else
+      return kt.RVEINTERNAL
+   end
+   return kt.RVSUCCESS
+end
+
+function kt4j_add(inmap, outmap)
+   local db = database(inmap)
+   if not db or not inmap.key or not inmap.value then
+      return kt.RVEINVALID
+   end
+   if db:add(inmap.key, inmap.value, tonumber(inmap.xt)) then
+      outmap.result = "true"
+   elseif failed(db, kt.Error.DUPREC) then
+      outmap.result = "false"
+   else
+      return kt.RVEINTERNAL
+   end
+   return kt.RVSUCCESS
+end
+
+function kt4j_replace(inmap, outmap)
+   local db = database(inmap)
+   if not db or not inmap.key or not inmap.value then
+      return kt.RVEINVALID
+   end
+   if db:replace(inmap.key, inmap.value, tonumber(inmap.xt)) then
+      outmap.result = "true"
+   elseif failed(db, kt.Error.NOREC) then
+      outmap.result = "false"
+   else
+      return kt.RVEINTERNAL
+   end
+   return kt.RVSUCCESS
+end
+
+function kt4j_seize(inmap, outmap)
+   local db = database(inmap)
+   if not db or not inmap.key then
+      return kt.RVEINVALID
+   end
+   local value = db:seize(inmap.key)
+   if value then
+      outmap.value = value
+   elseif not failed(db, kt.Error.NOREC) then
+      return kt.RVEINTERNAL
+   end
+   return kt.RVSUCCESS
+end
@@ -0,0 +1,80 @@
+package kt4j;
+
+import static org.junit.Assert.*;
+
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.junit.Test;
+
+public class BytesTest {
+
+    @Test
+    public void testBase64MatchesNetty() {
+        Random random = new Random(0);
+        for (int length = 0; length < 100; ++length) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            byte[] expected = toArray(Base64.encode(ChannelBuffers.wrappedBuffer(bytes), false));
+
+            assertArrayEquals(expected, Bytes.base64Encode(bytes));
+            assertArrayEquals(bytes, Bytes.base64Decode(expected));
+        }
+    }
+
+    @Test
+    public void testBase64EncodeIntoBuffer() {
+        ChannelBuffer dst = ChannelBuffers.dynamicBuffer(4);
+        dst.writeByte('[');
+        Bytes.base64Encode(Bytes.utf8("kyoto tycoon"), dst);
+        dst.writeByte(']');
+        assertEquals("[a3lvdG8gdHljb29u]", Bytes.utf8(toArray(dst)));
+    }
+
+    @Test
+    public void testBase64DecodeSlice() {
+        ChannelBuffer src = ChannelBuffers.wrappedBuffer(Bytes.utf8("key\tdmFsdWU=\n"));
+        assertEquals("value", Bytes.utf8(Bytes.base64Decode(src, 4, 8)));
+        assertEquals("value", Bytes.utf8(Bytes.base64Decode(Bytes.utf8("dmFs\r\ndWU="))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBase64DecodeInvalid() {
+        Bytes.base64Decode(Bytes.utf8("dmF*dWU="));
+    }
+
+    @Test
+    public void testUrlEncodeMatchesURLEncoder() throws Exception {
+        String[] strings = { "", "key", "a b+c", "100%", "\u4eac\u90fd/\u6771\u4eac", "-_.*~!'()" };
+        for (String str : strings) {
+            byte[] expected = Bytes.utf8(URLEncoder.encode(str, "UTF-8"));
+            assertArrayEquals(expected, Bytes.urlEncode(Bytes.utf8(str)));
+            assertEquals(str, Bytes.utf8(Bytes.urlDecode(expected)));
+        }
+    }
+
+    @Test
+    public void testUrlCodecIsBinarySafe() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) i;
+        }
+        ChannelBuffer dst = ChannelBuffers.dynamicBuffer(4);
+        Bytes.urlEncode(bytes, dst);
+        assertArrayEquals(bytes, Bytes.urlDecode(dst, dst.readerIndex(), dst.readableBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUrlDecodeIncompleteEscape() {
+        Bytes.urlDecode(Bytes.utf8("ab%4"));
+    }
+
+    private static byte[] toArray(ChannelBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+}
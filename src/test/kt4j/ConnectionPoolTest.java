@@ -0,0 +1,195 @@
+package kt4j;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+    ServerSocket server;
+    ClientBootstrap bootstrap;
+    HashedWheelTimer timer;
+    ConnectionPool testee;
+
+    @Before
+    public void setUp() throws Exception {
+        // accepts the connections in its backlog, and never answers
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                // the requests are swallowed, so the operations stay pending
+                return Channels.pipeline(new SimpleChannelDownstreamHandler() {
+                    @Override
+                    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) {
+                        e.getFuture().setSuccess();
+                    }
+                }, new KTChannelHandler());
+            }
+        });
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (testee != null) {
+            testee.stop();
+        }
+        timer.stop();
+        bootstrap.releaseExternalResources();
+        server.close();
+    }
+
+    @Test
+    public void testLeastInFlight() throws Exception {
+        testee = newPool(2, 2, ConnectionSelection.LEAST_IN_FLIGHT, 0);
+        ConnectionPool.Connection busy = testee.acquire();
+        send(busy);
+
+        for (int i = 0; i < 4; ++i) {
+            assertNotSame(busy, testee.acquire());
+        }
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        testee = newPool(3, 3, ConnectionSelection.ROUND_ROBIN, 0);
+        ConnectionPool.Connection first = testee.acquire();
+        send(first);
+
+        Set<ConnectionPool.Connection> chosen = new HashSet<ConnectionPool.Connection>();
+        chosen.add(first);
+        chosen.add(testee.acquire());
+        chosen.add(testee.acquire());
+        assertEquals(3, chosen.size());
+        // the busy connection takes its turn as well
+        assertSame(first, testee.acquire());
+    }
+
+    @Test
+    public void testGrowsWhenBusy() throws Exception {
+        testee = newPool(1, 2, ConnectionSelection.LEAST_IN_FLIGHT, 0);
+        ConnectionPool.Connection busy = testee.acquire();
+        assertSame(busy, testee.acquire());
+        assertEquals(1, testee.size());
+
+        send(busy);
+        assertSame(busy, testee.acquire());
+        awaitSize(2);
+        assertNotSame(busy, testee.acquire());
+    }
+
+    @Test
+    public void testGrowsUpToMaxSize() throws Exception {
+        testee = newPool(1, 1, ConnectionSelection.LEAST_IN_FLIGHT, 0);
+        ConnectionPool.Connection busy = testee.acquire();
+        send(busy);
+
+        assertSame(busy, testee.acquire());
+        Thread.sleep(200);
+        assertEquals(1, testee.size());
+    }
+
+    @Test
+    public void testReapsIdleConnections() throws Exception {
+        testee = newPool(1, 2, ConnectionSelection.LEAST_IN_FLIGHT, 100);
+        ConnectionPool.Connection busy = testee.acquire();
+        send(busy);
+        testee.acquire();
+        awaitSize(2);
+
+        // the idle connection is reaped, and the busy one stays
+        awaitSize(1);
+        assertSame(busy, testee.acquire());
+        Thread.sleep(300);
+        assertEquals(1, testee.size());
+        assertTrue(busy.channel.isOpen());
+    }
+
+    @Test
+    public void testReconnectsInBackground() throws Exception {
+        testee = newPool(1, 1, ConnectionSelection.LEAST_IN_FLIGHT, 0);
+        ConnectionPool.Connection lost = testee.acquire();
+        lost.channel.close();
+        awaitSize(0);
+
+        assertNull(testee.acquire());
+        testee.reconnect().join();
+        assertEquals(1, testee.size());
+        assertNotSame(lost, testee.acquire());
+    }
+
+    @Test
+    public void testReconnectFailure() throws Exception {
+        testee = newPool(1, 1, ConnectionSelection.LEAST_IN_FLIGHT, 0);
+        testee.acquire().channel.close();
+        awaitSize(0);
+        server.close();
+
+        try {
+            testee.reconnect().join();
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            // expected
+        }
+        assertNull(testee.acquire());
+    }
+
+    @Test
+    public void testRecycle() throws Exception {
+        testee = newPool(1, 1, ConnectionSelection.LEAST_IN_FLIGHT, 0);
+        ConnectionPool.Connection stale = testee.acquire();
+        Operation pending = send(stale);
+
+        testee.recycle(stale);
+        assertTrue(pending.isDone());
+        assertFalse(pending.isSucceeded());
+        awaitSize(1);
+        assertNotSame(stale, testee.acquire());
+    }
+
+    private ConnectionPool newPool(int minSize, int maxSize, ConnectionSelection selection,
+            long idleTimeoutMillis) {
+        ConnectionPool pool = new ConnectionPool(bootstrap,
+                new InetSocketAddress("127.0.0.1", server.getLocalPort()),
+                minSize, maxSize, selection, idleTimeoutMillis, timer);
+        pool.start();
+        assertEquals(minSize, pool.size());
+        return pool;
+    }
+
+    private static Operation send(ConnectionPool.Connection conn) {
+        Operation operation = new Operation(new Request(Request.Command.ECHO) {});
+        conn.channel.write(operation);
+        assertEquals(1, conn.handler.getPendingCount());
+        return operation;
+    }
+
+    private void awaitSize(int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (testee.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, testee.size());
+    }
+}
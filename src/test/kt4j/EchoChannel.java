@@ -0,0 +1,101 @@
+package kt4j;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.MessageEvent;
+
+/**
+ * An in-memory channel that answers each written {@link Request}
+ * with an {@link EchoResponse} carrying the request, or never answers when not echoing.
+ * The responses are received in the writing thread, or in the I/O thread if specified.
+ */
+class EchoChannel extends AbstractChannel {
+    private final ChannelConfig config = new DefaultChannelConfig();
+    private final SocketAddress address = new InetSocketAddress("127.0.0.1", 1978);
+
+    EchoChannel(ChannelHandler handler) {
+        this(handler, true, null);
+    }
+
+    EchoChannel(ChannelHandler handler, boolean echo, Executor ioThread) {
+        super(null, null, Channels.pipeline(handler), new EchoSink(echo, ioThread));
+    }
+
+    @Override
+    public ChannelConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return address;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return address;
+    }
+
+    static class EchoResponse implements Response {
+        final Request request;
+
+        EchoResponse(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public boolean isSucceeded() {
+            return true;
+        }
+    }
+
+    private static class EchoSink extends AbstractChannelSink {
+        private final boolean echo;
+        private final Executor ioThread;
+
+        EchoSink(boolean echo, Executor ioThread) {
+            this.echo = echo;
+            this.ioThread = ioThread;
+        }
+
+        @Override
+        public void eventSunk(ChannelPipeline pipeline, final ChannelEvent e) throws Exception {
+            if (echo && e instanceof MessageEvent && ((Request) ((MessageEvent) e).getMessage()).expectsReply()) {
+                final Request request = (Request) ((MessageEvent) e).getMessage();
+                e.getFuture().setSuccess();
+                if (ioThread == null) {
+                    Channels.fireMessageReceived(e.getChannel(), new EchoResponse(request));
+                } else {
+                    ioThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Channels.fireMessageReceived(e.getChannel(), new EchoResponse(request));
+                        }
+                    });
+                }
+            } else {
+                e.getFuture().setSuccess();
+            }
+        }
+    }
+}
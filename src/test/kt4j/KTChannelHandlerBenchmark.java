@@ -0,0 +1,80 @@
+package kt4j;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.Channels;
+import org.junit.Test;
+
+/**
+ * Compares the writer contention of {@link KTChannelHandler} with the former
+ * {@link LockingKTChannelHandler} on an in-memory channel whose I/O thread answers every request at once.
+ */
+public class KTChannelHandlerBenchmark {
+    private static final int[] NUM_THREADS = { 1, 4, 16, 64, 256 };
+    private static final int NUM_OPERATIONS = 256 * 250;
+    private static final int NUM_ROUNDS = 3;
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int numThreads : NUM_THREADS) {
+            long locking = Long.MAX_VALUE;
+            long lockFree = Long.MAX_VALUE;
+            for (int round = 0; round < NUM_ROUNDS; ++round) {
+                locking = Math.min(locking, execute(new LockingKTChannelHandler(), numThreads));
+                lockFree = Math.min(lockFree, execute(new KTChannelHandler(), numThreads));
+            }
+            System.out.println(String.format("%3d threads - locking: %,d ops/s, lock-free: %,d ops/s",
+                    numThreads, opsPerSecond(locking), opsPerSecond(lockFree)));
+        }
+    }
+
+    private static long execute(ChannelHandler handler, int numThreads) throws Exception {
+        ExecutorService ioThread = Executors.newSingleThreadExecutor();
+        final Channel channel = new EchoChannel(handler, true, ioThread);
+        final int perThread = NUM_OPERATIONS / numThreads;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final AtomicInteger mismatches = new AtomicInteger();
+        for (int t = 0; t < numThreads; ++t) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; ++i) {
+                            Operation op = new Operation(new KTChannelHandlerTest.EchoRequest());
+                            Channels.write(channel, op);
+                            op.awaitUninterruptibly();
+                            if (((EchoChannel.EchoResponse) op.getResponse()).request != op.getRequest()) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        ioThread.shutdown();
+        assertEquals(0, mismatches.get());
+        return elapsed;
+    }
+
+    private static long opsPerSecond(long elapsedNanos) {
+        return NUM_OPERATIONS * 1000000000L / elapsedNanos;
+    }
+}
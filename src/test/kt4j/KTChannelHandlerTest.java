@@ -0,0 +1,135 @@
+package kt4j;
+
+import static org.junit.Assert.*;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.junit.Test;
+
+public class KTChannelHandlerTest {
+
+    @Test
+    public void testPairsResponsesUnderContention() throws Exception {
+        final int numThreads = 16;
+        final int numOperations = 10000;
+        final KTChannelHandler testee = new KTChannelHandler();
+        final Channel channel = new EchoChannel(testee);
+        final List<Operation> operations = new ArrayList<Operation>();
+        for (int i = 0; i < numThreads * numOperations; ++i) {
+            operations.add(new Operation(new EchoRequest()));
+        }
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            final List<Operation> mine = operations.subList(t * numOperations, (t + 1) * numOperations);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (Operation op : mine) {
+                        Channels.write(channel, op);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Operation op : operations) {
+            assertTrue(op.isDone());
+            assertSame(op.getRequest(), ((EchoChannel.EchoResponse) op.getResponse()).request);
+        }
+        assertEquals(0, testee.getPendingCount());
+    }
+
+    @Test
+    public void testChannelClosedFailsPendingOperations() {
+        KTChannelHandler testee = new KTChannelHandler();
+        Channel channel = new EchoChannel(testee, false, null);
+        Operation op1 = new Operation(new EchoRequest());
+        Operation op2 = new Operation(new EchoRequest());
+        Channels.write(channel, op1);
+        Channels.write(channel, op2);
+        assertEquals(2, testee.getPendingCount());
+        assertFalse(op1.isDone());
+
+        Channels.fireChannelClosed(channel);
+        assertTrue(op1.getException() instanceof ClosedChannelException);
+        assertTrue(op2.getException() instanceof ClosedChannelException);
+        assertEquals(0, testee.getPendingCount());
+    }
+
+    @Test
+    public void testNoReplyOperationsAreNeverPaired() throws Exception {
+        final int numThreads = 4;
+        final int numOperations = 10000;
+        final KTChannelHandler testee = new KTChannelHandler();
+        final Channel channel = new EchoChannel(testee);
+        final List<Operation> operations = new ArrayList<Operation>();
+        for (int i = 0; i < numThreads * numOperations; ++i) {
+            operations.add(new Operation((i % 3 == 0) ? new EchoRequest() : new NoReplyRequest()));
+        }
+
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            final List<Operation> mine = operations.subList(t * numOperations, (t + 1) * numOperations);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (Operation op : mine) {
+                        Channels.write(channel, op);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Operation op : operations) {
+            assertTrue(op.isSucceeded());
+            if (op.getRequest().expectsReply()) {
+                assertSame(op.getRequest(), ((EchoChannel.EchoResponse) op.getResponse()).request);
+            } else {
+                assertFalse(op.getResponse() instanceof EchoChannel.EchoResponse);
+            }
+        }
+        assertEquals(0, testee.getPendingCount());
+    }
+
+    @Test
+    public void testNoReplyOperationIsDoneWhenWritten() {
+        KTChannelHandler testee = new KTChannelHandler();
+        Channel channel = new EchoChannel(testee, false, null);
+        Operation noReply = new Operation(new NoReplyRequest());
+        Operation op = new Operation(new EchoRequest());
+        Channels.write(channel, noReply);
+        Channels.write(channel, op);
+        assertTrue(noReply.isSucceeded());
+        assertFalse(op.isDone());
+        assertEquals(1, testee.getPendingCount());
+    }
+
+    static class EchoRequest extends Request {
+        EchoRequest() {
+            super(Command.ECHO);
+        }
+    }
+
+    static class NoReplyRequest extends Request {
+        NoReplyRequest() {
+            super(Command.SET_BULK);
+        }
+
+        @Override
+        public boolean expectsReply() {
+            return false;
+        }
+    }
+}
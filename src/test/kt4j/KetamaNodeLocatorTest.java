@@ -0,0 +1,68 @@
+package kt4j;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+public class KetamaNodeLocatorTest {
+    private static final int NUM_KEYS = 10000;
+
+    final InetSocketAddress[] servers = {
+            new InetSocketAddress("127.0.0.1", 1978),
+            new InetSocketAddress("127.0.0.1", 1979),
+            new InetSocketAddress("127.0.0.1", 1980),
+            new InetSocketAddress("127.0.0.1", 1981),
+    };
+
+    @Test
+    public void testLabel() {
+        assertEquals("127.0.0.1:1978", KetamaNodeLocator.label(servers[0]));
+        assertEquals("kt.example.com:1978",
+                KetamaNodeLocator.label(InetSocketAddress.createUnresolved("kt.example.com", 1978)));
+    }
+
+    @Test
+    public void testLocateIsStable() {
+        KetamaNodeLocator testee1 = new KetamaNodeLocator(servers);
+        KetamaNodeLocator testee2 = new KetamaNodeLocator(servers);
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            byte[] key = Bytes.utf8("key" + i);
+            assertEquals(testee1.locate(key), testee2.locate(key));
+        }
+    }
+
+    @Test
+    public void testDistribution() {
+        KetamaNodeLocator testee = new KetamaNodeLocator(servers);
+        int[] counts = new int[servers.length];
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            ++counts[testee.locate(Bytes.utf8("key" + i))];
+        }
+        for (int count : counts) {
+            assertTrue("count=" + count, count > NUM_KEYS / servers.length / 2);
+            assertTrue("count=" + count, count < NUM_KEYS / servers.length * 2);
+        }
+    }
+
+    @Test
+    public void testAddingServerMovesOnlyItsKeys() {
+        InetSocketAddress[] fewer = new InetSocketAddress[servers.length - 1];
+        System.arraycopy(servers, 0, fewer, 0, fewer.length);
+        KetamaNodeLocator before = new KetamaNodeLocator(fewer);
+        KetamaNodeLocator after = new KetamaNodeLocator(servers);
+
+        int moved = 0;
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            byte[] key = Bytes.utf8("key" + i);
+            int index = after.locate(key);
+            if (index == servers.length - 1) {
+                ++moved;
+            } else {
+                assertEquals(before.locate(key), index);
+            }
+        }
+        assertTrue("moved=" + moved, moved < NUM_KEYS / 2);
+    }
+}
@@ -0,0 +1,66 @@
+package kt4j;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class KyotoTycoonFutureTest {
+
+    @Test
+    public void testSetSuccessNotifiesListeners() throws Exception {
+        final AtomicInteger notified = new AtomicInteger();
+        KyotoTycoonFuture<String> testee = new KyotoTycoonFuture<String>();
+        testee.addListener(new KyotoTycoonFutureListener<String>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<String> future) {
+                assertEquals("value", future.join());
+                notified.incrementAndGet();
+            }
+        });
+        assertFalse(testee.isDone());
+
+        assertTrue(testee.setSuccess("value"));
+        assertFalse(testee.setFailure(new RuntimeException()));
+        assertTrue(testee.isSuccess());
+        assertEquals("value", testee.get());
+        assertEquals(1, notified.get());
+    }
+
+    @Test
+    public void testListenerAddedAfterCompletion() {
+        final AtomicInteger notified = new AtomicInteger();
+        KyotoTycoonFuture<String> testee = new KyotoTycoonFuture<String>();
+        testee.setSuccess("value");
+        testee.addListener(new KyotoTycoonFutureListener<String>() {
+            @Override
+            public void operationComplete(KyotoTycoonFuture<String> future) {
+                notified.incrementAndGet();
+            }
+        });
+        assertEquals(1, notified.get());
+    }
+
+    @Test
+    public void testSetFailure() throws Exception {
+        KyotoTycoonFuture<String> testee = new KyotoTycoonFuture<String>();
+        KyotoTycoonOperationFailedException cause = new KyotoTycoonOperationFailedException("failed");
+        assertTrue(testee.setFailure(cause));
+        assertFalse(testee.isSuccess());
+        assertSame(cause, testee.getCause());
+        try {
+            testee.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(cause, e.getCause());
+        }
+        try {
+            testee.join();
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            assertSame(cause, e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package kt4j;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * The former {@link KTChannelHandler} that serializes the writers with a lock,
+ * kept as the baseline of {@link KTChannelHandlerBenchmark}.
+ */
+class LockingKTChannelHandler extends SimpleChannelHandler {
+    private final BlockingQueue<Operation> requestedOperations = new LinkedBlockingQueue<Operation>();
+
+    private final Lock lock = new ReentrantLock();
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Operation op = (Operation) e.getMessage();
+        lock.lock();
+        try {
+            requestedOperations.offer(op);
+            Channels.write(ctx, e.getFuture(), op.getRequest());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Operation op = requestedOperations.poll();
+        Response response = (Response) e.getMessage();
+        op.completed(response);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+        Operation op = requestedOperations.poll();
+        if (op != null) {
+            op.exceptionCaught(e.getCause());
+        } else {
+            if (ctx.canHandleUpstream()) {
+                ctx.sendUpstream(e);
+            }
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Operation op;
+        while ((op = requestedOperations.poll()) != null) {
+            op.exceptionCaught(new ClosedChannelException());
+        }
+        super.channelClosed(ctx, e);
+    }
+}
@@ -0,0 +1,79 @@
+package kt4j;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class OperationTest {
+    final Request request = new KTChannelHandlerTest.EchoRequest();
+    final Response response = new EchoChannel.EchoResponse(request);
+
+    @Test
+    public void testAwaitAfterCompletion() throws Exception {
+        Operation testee = new Operation(request);
+        testee.completed(response);
+        assertSame(testee, testee.await());
+        assertTrue(testee.isDone());
+        assertTrue(testee.isSucceeded());
+        assertSame(response, testee.getResponse());
+    }
+
+    @Test
+    public void testFirstCompletionWins() {
+        Operation testee = new Operation(request);
+        testee.exceptionCaught(new RuntimeException());
+        testee.completed(response);
+        assertFalse(testee.isSucceeded());
+        assertNull(testee.getResponse());
+    }
+
+    @Test
+    public void testAwaitCompletionByAnotherThread() throws Exception {
+        final Operation testee = new Operation(request);
+        Thread completer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                testee.completed(response);
+            }
+        };
+        completer.start();
+        assertTrue(testee.awaitUninterruptibly().isSucceeded());
+        completer.join();
+    }
+
+    @Test
+    public void testAwaitTimeout() {
+        Operation testee = new Operation(request, 50L);
+        long start = System.currentTimeMillis();
+        testee.awaitUninterruptibly();
+        assertFalse(testee.isDone());
+        assertTrue(System.currentTimeMillis() - start >= 40);
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void testAwaitInterrupted() throws Exception {
+        Thread.currentThread().interrupt();
+        new Operation(request).await();
+    }
+
+    @Test
+    public void testListenerAddedBeforeAndAfterCompletion() {
+        final int[] notified = new int[1];
+        OperationListener listener = new OperationListener() {
+            @Override
+            public void operationComplete(Operation operation) {
+                ++notified[0];
+            }
+        };
+        Operation testee = new Operation(request);
+        testee.addListener(listener);
+        testee.completed(response);
+        assertEquals(1, notified[0]);
+        testee.addListener(listener);
+        assertEquals(2, notified[0]);
+    }
+}
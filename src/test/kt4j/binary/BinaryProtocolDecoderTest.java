@@ -0,0 +1,103 @@
+package kt4j.binary;
+
+import static org.junit.Assert.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.junit.Test;
+
+import kt4j.Bytes;
+
+public class BinaryProtocolDecoderTest {
+
+    @Test
+    public void testGetBulkInFragments() {
+        ChannelBuffer message = getBulk(3, 1000);
+        message.writeByte(0xB8);
+        message.writeInt(2);
+        DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new BinaryProtocolDecoder());
+
+        while (message.readable()) {
+            embedder.offer(message.readBytes(Math.min(7, message.readableBytes())));
+        }
+
+        GetBulkResponse getBulk = (GetBulkResponse) embedder.poll();
+        assertEquals(3, getBulk.getNumber());
+        for (int i = 0; i < 3; ++i) {
+            assertArrayEquals(BinaryRequestEncodingTest.filled(1000, (byte) i), getBulk.getValue(Bytes.utf8("key" + i)));
+        }
+        BinaryResponse setBulk = (BinaryResponse) embedder.poll();
+        assertEquals(BinaryResponse.SET_BULK, setBulk.magic);
+        assertEquals(2, setBulk.getNumber());
+        assertNull(embedder.poll());
+    }
+
+    @Test
+    public void testPlayScriptAndError() {
+        ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+        message.writeByte(0xB4);
+        message.writeInt(1);
+        message.writeInt(1);
+        message.writeInt(2);
+        message.writeBytes(Bytes.utf8("kvv"));
+        message.writeByte(0xBF);
+        DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new BinaryProtocolDecoder());
+        embedder.offer(message);
+
+        PlayScriptResponse playScript = (PlayScriptResponse) embedder.poll();
+        assertEquals("vv", Bytes.utf8(playScript.getValue(Bytes.utf8("k"))));
+        assertFalse(((BinaryResponse) embedder.poll()).isSucceeded());
+    }
+
+    @Test
+    public void testTooLongFrame() {
+        DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new BinaryProtocolDecoder(2000));
+        try {
+            embedder.offer(getBulk(3, 1000));
+            fail();
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof TooLongFrameException);
+        }
+    }
+
+    @Test
+    public void testUnknownMagic() {
+        DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new BinaryProtocolDecoder());
+        ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+        message.writeByte(0xB1);
+        message.writeInt(1);
+        try {
+            embedder.offer(message);
+            fail();
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof CorruptedFrameException);
+        }
+
+        // the rest of the stream is discarded, even a valid response
+        ChannelBuffer setBulk = ChannelBuffers.dynamicBuffer();
+        setBulk.writeByte(0xB8);
+        setBulk.writeInt(1);
+        embedder.offer(setBulk);
+        assertNull(embedder.poll());
+    }
+
+    private static ChannelBuffer getBulk(int numRecords, int valueSize) {
+        ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+        message.writeByte(0xBA);
+        message.writeInt(numRecords);
+        for (int i = 0; i < numRecords; ++i) {
+            byte[] key = Bytes.utf8("key" + i);
+            message.writeShort(0);
+            message.writeInt(key.length);
+            message.writeInt(valueSize);
+            message.writeLong(Long.MAX_VALUE);
+            message.writeBytes(key);
+            message.writeBytes(BinaryRequestEncodingTest.filled(valueSize, (byte) i));
+        }
+        return message;
+    }
+}
@@ -0,0 +1,70 @@
+package kt4j.binary;
+
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import kt4j.Bytes;
+
+/**
+ * Compares encoding a set_bulk request into one flat array, as the encoder used to do,
+ * with the composite message of {@link BinaryMessageBuilder}.
+ * Both messages are then transferred to a direct buffer as the socket write does.
+ */
+public class BinaryRequestEncodingBenchmark {
+    private static final int[] VALUE_SIZES = { 100, 1000, 10 * 1000, 100 * 1000, 1000 * 1000, 10 * 1000 * 1000 };
+    private static final long BYTES_PER_RUN = 200L * 1000 * 1000;
+    private static final int NUM_RECORDS = 10;
+
+    @Test
+    public void benchmark() {
+        ByteBuffer socketBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        for (int valueSize : VALUE_SIZES) {
+            SetBulkRequest request = new SetBulkRequest();
+            for (int i = 0; i < NUM_RECORDS; ++i) {
+                request.add(Bytes.utf8("key" + i), BinaryRequestEncodingTest.filled(valueSize, (byte) i), null, 0);
+            }
+            int iterations = (int) Math.max(1, BYTES_PER_RUN / ((long) valueSize * NUM_RECORDS));
+
+            // warm up
+            execute(request, socketBuffer, true, iterations / 10 + 1);
+            execute(request, socketBuffer, false, iterations / 10 + 1);
+
+            long flat = execute(request, socketBuffer, true, iterations);
+            long composite = execute(request, socketBuffer, false, iterations);
+            System.out.println(String.format("value %,10d B - flat: %,8d us/op, composite: %,8d us/op",
+                    valueSize, flat / iterations / 1000, composite / iterations / 1000));
+        }
+    }
+
+    private static long execute(SetBulkRequest request, ByteBuffer socketBuffer, boolean flatten, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            ChannelBuffer message = request.encode();
+            if (flatten) {
+                byte[] array = new byte[message.readableBytes()];
+                message.readBytes(array);
+                transfer(array, socketBuffer);
+            } else {
+                transfer(message, socketBuffer);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void transfer(byte[] array, ByteBuffer socketBuffer) {
+        for (int offset = 0; offset < array.length; offset += socketBuffer.capacity()) {
+            socketBuffer.clear();
+            socketBuffer.put(array, offset, Math.min(socketBuffer.capacity(), array.length - offset));
+        }
+    }
+
+    private static void transfer(ChannelBuffer message, ByteBuffer socketBuffer) {
+        while (message.readable()) {
+            socketBuffer.clear();
+            socketBuffer.limit(Math.min(socketBuffer.capacity(), message.readableBytes()));
+            message.readBytes(socketBuffer);
+        }
+    }
+}
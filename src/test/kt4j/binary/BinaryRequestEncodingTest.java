@@ -0,0 +1,104 @@
+package kt4j.binary;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import kt4j.Bytes;
+
+public class BinaryRequestEncodingTest {
+    final byte[] key = Bytes.utf8("key");
+    final byte[] smallValue = filled(100, (byte) 's');
+    final byte[] largeValue = filled(BinaryMessageBuilder.COPY_THRESHOLD * 4, (byte) 'l');
+
+    @Test
+    public void testSetBulk() {
+        SetBulkRequest testee = new SetBulkRequest()
+                .add(key, smallValue, null, 1)
+                .add(key, largeValue, null, 2);
+        ChannelBuffer message = testee.encode();
+
+        assertEquals((byte) 0xB8, message.readByte());
+        assertEquals(0, message.readInt());
+        assertEquals(2, message.readInt());
+        assertRecord(message, 1, smallValue);
+        assertRecord(message, 2, largeValue);
+        assertFalse(message.readable());
+    }
+
+    @Test
+    public void testNoReplyFlag() {
+        RemoveBulkRequest testee = new RemoveBulkRequest(key, 0);
+        testee.setNoReply(true);
+        assertFalse(testee.expectsReply());
+
+        ChannelBuffer message = testee.encode();
+        assertEquals((byte) 0xB9, message.readByte());
+        assertEquals(BinaryRequest.FLAG_NO_REPLY, message.readInt());
+    }
+
+    @Test
+    public void testLargeValueIsNotCopied() {
+        SetBulkRequest testee = new SetBulkRequest(key, largeValue, null, 0);
+        ChannelBuffer message = testee.encode();
+        largeValue[0] = 'x';
+        assertEquals('x', message.getByte(message.writerIndex() - largeValue.length));
+    }
+
+    @Test
+    public void testGetBulk() {
+        ChannelBuffer message = new GetBulkRequest(key, 3).encode();
+
+        assertEquals((byte) 0xBA, message.readByte());
+        assertEquals(0, message.readInt());
+        assertEquals(1, message.readInt());
+        assertEquals(3, message.readShort());
+        assertEquals(key.length, message.readInt());
+        assertArrayEquals(key, read(message, key.length));
+        assertFalse(message.readable());
+    }
+
+    @Test
+    public void testPlayScript() {
+        Map<byte[], byte[]> params = new LinkedHashMap<byte[], byte[]>();
+        params.put(key, largeValue);
+        ChannelBuffer message = new PlayScriptRequest("proc", params).encode();
+
+        assertEquals((byte) 0xB4, message.readByte());
+        assertEquals(0, message.readInt());
+        assertEquals(4, message.readInt());
+        assertEquals(1, message.readInt());
+        assertEquals("proc", Bytes.utf8(read(message, 4)));
+        assertEquals(key.length, message.readInt());
+        assertEquals(largeValue.length, message.readInt());
+        assertArrayEquals(key, read(message, key.length));
+        assertArrayEquals(largeValue, read(message, largeValue.length));
+        assertFalse(message.readable());
+    }
+
+    private void assertRecord(ChannelBuffer message, int dbidx, byte[] value) {
+        assertEquals(dbidx, message.readShort());
+        assertEquals(key.length, message.readInt());
+        assertEquals(value.length, message.readInt());
+        assertEquals(Long.MAX_VALUE, message.readLong());
+        assertArrayEquals(key, read(message, key.length));
+        assertArrayEquals(value, read(message, value.length));
+    }
+
+    private static byte[] read(ChannelBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] filled(int length, byte b) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, b);
+        return bytes;
+    }
+}
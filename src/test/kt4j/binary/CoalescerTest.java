@@ -0,0 +1,109 @@
+package kt4j.binary;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import kt4j.KyotoTycoonFuture;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CoalescerTest {
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testFlushOnMaxRecords() {
+        Recorder testee = new Recorder(TimeUnit.SECONDS.toNanos(10), 3, Integer.MAX_VALUE);
+        testee.add(0, "a", 1);
+        testee.add(1, "b", 1);
+        testee.add(0, "c", 1);
+        assertTrue(testee.flushed.isEmpty());
+
+        testee.add(0, "d", 1);
+        assertEquals(Arrays.asList("0:[a, c, d]"), testee.flushed);
+    }
+
+    @Test
+    public void testFlushOnMaxBytes() {
+        Recorder testee = new Recorder(TimeUnit.SECONDS.toNanos(10), 100, 10);
+        testee.add(0, "a", 4);
+        testee.add(0, "b", 4);
+        testee.add(0, "c", 4);
+        assertEquals(Arrays.asList("0:[a, b]"), testee.flushed);
+
+        testee.add(0, "d", 6);
+        assertEquals(Arrays.asList("0:[a, b]", "0:[c, d]"), testee.flushed);
+    }
+
+    @Test
+    public void testFlushAfterLinger() throws Exception {
+        Recorder testee = new Recorder(TimeUnit.MILLISECONDS.toNanos(10), 100, Integer.MAX_VALUE);
+        testee.add(0, "a", 1);
+        testee.add(0, "b", 1);
+        synchronized (testee) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (testee.flushed.isEmpty() && System.currentTimeMillis() < deadline) {
+                testee.wait(100);
+            }
+        }
+        assertEquals(Arrays.asList("0:[a, b]"), testee.flushed);
+    }
+
+    @Test
+    public void testFlushAll() {
+        Recorder testee = new Recorder(TimeUnit.SECONDS.toNanos(10), 100, Integer.MAX_VALUE);
+        testee.add(0, "a", 1);
+        testee.add(1, "b", 1);
+        testee.flushAll();
+        assertEquals(Arrays.asList("0:[a]", "1:[b]"), testee.flushed);
+
+        testee.flushAll();
+        assertEquals(2, testee.flushed.size());
+    }
+
+    @Test
+    public void testAwaitSent() {
+        Recorder testee = new Recorder(TimeUnit.HOURS.toNanos(1), 10, 100);
+        testee.result = new KyotoTycoonFuture<Void>();
+        assertTrue(testee.awaitSent(System.nanoTime()));
+
+        testee.add(0, "a", 1);
+        testee.flushAll();
+        assertFalse(testee.awaitSent(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50)));
+
+        testee.result.setSuccess(null);
+        assertTrue(testee.awaitSent(System.nanoTime()));
+    }
+
+    private class Recorder extends Coalescer<String> {
+        final List<String> flushed = new ArrayList<String>();
+        KyotoTycoonFuture<Void> result;
+
+        Recorder(long lingerNanos, int maxRecords, int maxBytes) {
+            super(scheduler, 2, lingerNanos, maxRecords, maxBytes);
+        }
+
+        @Override
+        protected synchronized KyotoTycoonFuture<?> flush(int serverIndex, List<String> requests) {
+            flushed.add(serverIndex + ":" + requests);
+            notifyAll();
+            if (result != null) {
+                return result;
+            }
+            KyotoTycoonFuture<Void> sent = new KyotoTycoonFuture<Void>();
+            sent.setSuccess(null);
+            return sent;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package kt4j.binary;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kt4j.Bytes;
+import kt4j.KyotoTycoonFuture;
+import kt4j.KyotoTycoonOperationFailedException;
+import kt4j.Operation;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CoalescingTest {
+    final byte[] key = Bytes.utf8("key");
+
+    FakeBinaryClient testee;
+
+    @After
+    public void tearDown() {
+        if (testee != null) {
+            testee.stop();
+        }
+    }
+
+    @Test
+    public void testGetsOfDatabasesInOneBatch() {
+        testee = new FakeBinaryClient(new FakeBinaryClient.Responder() {
+            @Override
+            public void respond(Operation operation) {
+                GetBulkResponse response = new GetBulkResponse(2);
+                response.put(key, Bytes.utf8("db0"), Record.XT_MAX, 0);
+                response.put(key, Bytes.utf8("db1"), Record.XT_MAX, 1);
+                operation.completed(response);
+            }
+        });
+        testee.setGetCoalescing(1, TimeUnit.HOURS, 2);
+        testee.start();
+
+        testee.setDatabase("db0", 0);
+        KyotoTycoonFuture<byte[]> db0 = testee.async().get(key);
+        testee.setDatabase("db1", 1);
+        KyotoTycoonFuture<byte[]> db1 = testee.async().get(key);
+
+        assertEquals(1, testee.requests.size());
+        assertEquals("db0", Bytes.utf8(db0.join()));
+        assertEquals("db1", Bytes.utf8(db1.join()));
+    }
+
+    @Test
+    public void testConcurrentSetsInOneFrame() throws Exception {
+        testee = new FakeBinaryClient(new FakeBinaryClient.Responder() {
+            @Override
+            public void respond(Operation operation) {
+                operation.completed(new BinaryResponse(BinaryResponse.ERROR));
+            }
+        });
+        byte[] value = Bytes.utf8("value");
+        int recordLength = new Record(0, Bytes.utf8("key0"), value, Record.XT_MAX).length();
+        // the batch is sent when the last record arrives
+        testee.setWriteCoalescing(1, TimeUnit.HOURS, recordLength * 4);
+        testee.start();
+
+        final Throwable[] causes = new Throwable[4];
+        Thread[] writers = new Thread[causes.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < writers.length; ++i) {
+            final int index = i;
+            final byte[] key = Bytes.utf8("key" + i);
+            final byte[] writerValue = value;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        testee.set(key, writerValue, null);
+                    } catch (Throwable e) {
+                        causes[index] = e;
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join(10000);
+        }
+
+        assertEquals(1, testee.requests.size());
+        assertEquals(4, ((SetBulkRequest) testee.requests.get(0)).getNumberOfRecords());
+        for (int i = 0; i < causes.length; ++i) {
+            assertTrue(causes[i] instanceof KyotoTycoonOperationFailedException);
+            assertTrue(causes[i].getMessage(), causes[i].getMessage().endsWith("key=" + Arrays.toString(Bytes.utf8("key" + i))));
+        }
+    }
+
+    @Test
+    public void testConcurrentRemovesInOneFrame() throws Exception {
+        testee = new FakeBinaryClient(new FakeBinaryClient.Responder() {
+            @Override
+            public void respond(Operation operation) {
+                operation.completed(new BinaryResponse(BinaryResponse.REMOVE_BULK, 3));
+            }
+        });
+        int removeLength = Record.DBIDX_LENGTH + Record.KSIZ_LENGTH + 4;
+        testee.setWriteCoalescing(1, TimeUnit.HOURS, removeLength * 3);
+        testee.start();
+
+        final Boolean[] results = new Boolean[3];
+        Thread[] removers = new Thread[results.length];
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < removers.length; ++i) {
+            final int index = i;
+            final byte[] key = Bytes.utf8("key" + i);
+            removers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results[index] = testee.remove(key);
+                    } catch (InterruptedException e) {
+                        // leaves the result null
+                    }
+                }
+            };
+            removers[i].start();
+        }
+        start.countDown();
+        for (Thread remover : removers) {
+            remover.join(10000);
+        }
+
+        assertEquals(1, testee.requests.size());
+        assertEquals(3, ((RemoveBulkRequest) testee.requests.get(0)).getNumberOfRecords());
+        for (Boolean result : results) {
+            assertEquals(Boolean.TRUE, result);
+        }
+    }
+
+    @Test
+    public void testStopDeliversPendingWrites() throws Exception {
+        testee = new FakeBinaryClient(new FakeBinaryClient.Responder() {
+            @Override
+            public void respond(final Operation operation) {
+                // answers after stop() has started waiting
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            // answers now
+                        }
+                        operation.completed(new BinaryResponse(BinaryResponse.SET_BULK, 1));
+                    }
+                }.start();
+            }
+        });
+        testee.setWriteCoalescing(1, TimeUnit.HOURS, Integer.MAX_VALUE);
+        testee.start();
+
+        KyotoTycoonFuture<Void> pending = testee.async().set(key, Bytes.utf8("value"), null);
+        assertFalse(pending.isDone());
+        assertTrue(testee.requests.isEmpty());
+
+        testee.stop();
+        testee = null;
+
+        assertTrue(pending.isDone());
+        assertTrue(pending.isSuccess());
+    }
+
+    @Test
+    public void testCollapsedReadsShared() {
+        Holder server = new Holder();
+        testee = new FakeBinaryClient(server);
+        testee.setReadCollapsing(true);
+        testee.start();
+
+        KyotoTycoonFuture<byte[]> first = testee.async().get(key);
+        KyotoTycoonFuture<byte[]> second = testee.async().get(key);
+        assertEquals(1, testee.requests.size());
+
+        server.answer(0, "value");
+        assertEquals("value", Bytes.utf8(first.join()));
+        assertEquals("value", Bytes.utf8(second.join()));
+    }
+
+    @Test
+    public void testReadAfterOwnWriteNotShared() {
+        Holder server = new Holder();
+        testee = new FakeBinaryClient(server);
+        testee.setReadCollapsing(true);
+        testee.start();
+
+        KyotoTycoonFuture<byte[]> before = testee.async().get(key);
+        testee.set(key, Bytes.utf8("new"), null);
+        KyotoTycoonFuture<byte[]> after = testee.async().get(key);
+        // the reads after the write are shared again
+        KyotoTycoonFuture<byte[]> later = testee.async().get(key);
+        assertEquals(3, testee.requests.size());
+
+        server.answer(0, "old");
+        server.answer(1, "new");
+        assertEquals("old", Bytes.utf8(before.join()));
+        assertEquals("new", Bytes.utf8(after.join()));
+        assertEquals("new", Bytes.utf8(later.join()));
+    }
+
+    @Test
+    public void testReadsDuringOwnWriteNotShared() {
+        Holder server = new Holder();
+        server.holdingWrites = true;
+        testee = new FakeBinaryClient(server);
+        testee.setReadCollapsing(true);
+        testee.start();
+
+        KyotoTycoonFuture<Void> write = testee.async().set(key, Bytes.utf8("new"), null);
+        testee.async().get(key);
+        testee.async().get(key);
+        assertEquals(3, testee.requests.size());
+        assertFalse(write.isDone());
+    }
+
+    /**
+     * Holds the get_bulk operations until the test answers them, and answers the writes at once.
+     */
+    private class Holder implements FakeBinaryClient.Responder {
+        final List<Operation> reads = new ArrayList<Operation>();
+        boolean holdingWrites;
+
+        @Override
+        public void respond(Operation operation) {
+            if (operation.getRequest() instanceof GetBulkRequest) {
+                reads.add(operation);
+            } else if (!holdingWrites) {
+                operation.completed(new BinaryResponse(BinaryResponse.SET_BULK, 1));
+            }
+        }
+
+        void answer(int index, String value) {
+            GetBulkResponse response = new GetBulkResponse(1);
+            response.put(key, Bytes.utf8(value), Record.XT_MAX, 0);
+            reads.get(index).completed(response);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package kt4j.binary;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import kt4j.Operation;
+import kt4j.Request;
+import kt4j.Request.Protocol;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+
+/**
+ * A binary client that answers its requests in process instead of sending them to a server.
+ * The operations go through the connection pools, and the last handler of each pipeline
+ * records their requests and lets the responder complete them instead of writing them out.
+ * The client connects to a local socket that never answers, so that it can be started.
+ */
+class FakeBinaryClient extends KyotoTycoonBinaryClient {
+    final List<Request> requests = new ArrayList<Request>();
+    /** The channel each request was written to, in the order of the requests. */
+    final List<Channel> channels = new ArrayList<Channel>();
+    volatile Responder responder;
+
+    private final ServerSocket listener;
+
+    FakeBinaryClient(Responder responder) {
+        this(responder, listen());
+    }
+
+    private FakeBinaryClient(Responder responder, ServerSocket listener) {
+        super("127.0.0.1", listener.getLocalPort());
+        this.responder = responder;
+        this.listener = listener;
+    }
+
+    private static ServerSocket listen() {
+        try {
+            return new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    @Override
+    protected ChannelPipelineFactory newPipelineFactory(Protocol protocol) {
+        final ChannelPipelineFactory factory = super.newPipelineFactory(protocol);
+        return new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = factory.getPipeline();
+                pipeline.addLast("fake-server", new SimpleChannelDownstreamHandler() {
+                    @Override
+                    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) {
+                        Operation operation = (Operation) e.getMessage();
+                        synchronized (requests) {
+                            requests.add(operation.getRequest());
+                            channels.add(e.getChannel());
+                        }
+                        e.getFuture().setSuccess();
+                        responder.respond(operation);
+                    }
+                });
+                return pipeline;
+            }
+        };
+    }
+
+    /**
+     * Returns the names of the requests sent, with the procedure names for play_script.
+     */
+    List<String> sent() {
+        List<String> names = new ArrayList<String>();
+        synchronized (requests) {
+            for (Request request : requests) {
+                if (request instanceof PlayScriptRequest) {
+                    names.add(((PlayScriptRequest) request).procedureName);
+                } else {
+                    names.add(request.command.procedureName + "(" + request.protocol + ")");
+                }
+            }
+        }
+        return names;
+    }
+
+    interface Responder {
+        void respond(Operation operation);
+    }
+}
@@ -116,4 +116,25 @@ public class KyotoTycoonBinaryClientTest {
             assertTrue(Arrays.equals(value, value1) || Arrays.equals(value, value2));
         }
     }
+
+    @Test
+    @Ignore
+    public void testReadCollapsing() throws Exception {
+        KyotoTycoonBinaryClient collapsing = new KyotoTycoonBinaryClient("127.0.0.1", 1978);
+        collapsing.setReadCollapsing(true);
+        collapsing.start();
+        try {
+            byte[] key1 = "collapse1".getBytes("UTF-8");
+            byte[] key2 = "collapse2".getBytes("UTF-8");
+            client.set(key1, key1);
+
+            assertArrayEquals(key1, collapsing.get(key1));
+            Map<byte[], byte[]> result = collapsing.getBulk(Arrays.asList(key1, key2, key1));
+            assertEquals(1, result.size());
+            assertArrayEquals(key1, result.get(key1));
+            assertNull(result.get(key2));
+        } finally {
+            collapsing.stop();
+        }
+    }
 }
@@ -0,0 +1,161 @@
+package kt4j.binary;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import kt4j.Bytes;
+import kt4j.KyotoTycoonFuture;
+import kt4j.KyotoTycoonOperationFailedException;
+import kt4j.Operation;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ScriptProceduresTest {
+    final byte[] key = Bytes.utf8("key");
+
+    FakeBinaryClient testee;
+
+    @After
+    public void tearDown() {
+        if (testee != null) {
+            testee.stop();
+        }
+    }
+
+    @Test
+    public void testIsExact() {
+        assertTrue(ScriptProcedures.isExact(1L << 53));
+        assertTrue(ScriptProcedures.isExact(-(1L << 53)));
+        assertFalse(ScriptProcedures.isExact((1L << 53) + 1));
+        assertFalse(ScriptProcedures.isExact(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testProcedure() {
+        testee = new FakeBinaryClient(new Server());
+        testee.start();
+        testee.loadScriptProcedures();
+        assertEquals(42L, testee.increment(key, 1, 0, null));
+        assertEquals(Arrays.asList(ScriptProcedures.VERSION, ScriptProcedures.INCREMENT), testee.sent());
+    }
+
+    @Test
+    public void testProcedureFailureIsNotRetried() {
+        Server server = new Server();
+        testee = new FakeBinaryClient(server);
+        testee.start();
+        testee.loadScriptProcedures();
+        server.failing.add(ScriptProcedures.INCREMENT);
+        try {
+            testee.increment(key, 1, 0, null);
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList(ScriptProcedures.VERSION, ScriptProcedures.INCREMENT, ScriptProcedures.VERSION),
+                testee.sent());
+
+        server.failing.clear();
+        assertEquals(42L, testee.increment(key, 1, 0, null));
+        assertEquals(ScriptProcedures.INCREMENT, testee.sent().get(3));
+    }
+
+    @Test
+    public void testProcedureFailureIsNotRetriedAsync() {
+        Server server = new Server();
+        testee = new FakeBinaryClient(server);
+        testee.start();
+        testee.loadScriptProcedures();
+        server.failing.add(ScriptProcedures.INCREMENT);
+        assertFailed(testee.incrementAsync(key, 1, 0, null, null));
+        assertEquals(Arrays.asList(ScriptProcedures.VERSION, ScriptProcedures.INCREMENT, ScriptProcedures.VERSION),
+                testee.sent());
+    }
+
+    @Test
+    public void testMissingProcedureFallsBack() {
+        Server server = new Server();
+        testee = new FakeBinaryClient(server);
+        testee.start();
+        testee.loadScriptProcedures();
+        server.failing.add(ScriptProcedures.INCREMENT);
+        server.failing.add(ScriptProcedures.VERSION);
+        try {
+            testee.increment(key, 1, 0, null);
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            // the fake server doesn't answer TSV-RPC
+        }
+        assertEquals(Arrays.asList(ScriptProcedures.VERSION, ScriptProcedures.INCREMENT, ScriptProcedures.VERSION,
+                "increment(TSV_RPC)"), testee.sent());
+
+        server.failing.clear();
+        assertFailed(testee.incrementAsync(key, 1, 0, null, null));
+        assertEquals("increment(TSV_RPC)", testee.sent().get(4));
+    }
+
+    @Test
+    public void testMissingProcedureFallsBackAsync() {
+        Server server = new Server();
+        testee = new FakeBinaryClient(server);
+        testee.start();
+        testee.loadScriptProcedures();
+        server.failing.add(ScriptProcedures.CAS);
+        server.failing.add(ScriptProcedures.VERSION);
+        assertFailed(testee.casAsync(key, key, key, null, null));
+        assertEquals(Arrays.asList(ScriptProcedures.VERSION, ScriptProcedures.CAS, ScriptProcedures.VERSION,
+                "cas(TSV_RPC)"), testee.sent());
+    }
+
+    @Test
+    public void testConnectionFailureIsNotRetried() {
+        Server server = new Server();
+        testee = new FakeBinaryClient(server);
+        testee.start();
+        testee.loadScriptProcedures();
+        server.broken = true;
+        try {
+            testee.add(key, key, null);
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(Arrays.asList(ScriptProcedures.VERSION, ScriptProcedures.ADD), testee.sent());
+    }
+
+    static void assertFailed(KyotoTycoonFuture<?> future) {
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+    }
+
+    /**
+     * Carries out the procedures of the bundled script, answers the failing ones with an error,
+     * and fails every request when broken.
+     */
+    static class Server implements FakeBinaryClient.Responder {
+        final Set<String> failing = new HashSet<String>();
+        volatile boolean broken;
+
+        @Override
+        public void respond(Operation operation) {
+            if (broken || !(operation.getRequest() instanceof PlayScriptRequest)) {
+                operation.exceptionCaught(new IOException("broken"));
+                return;
+            }
+            String name = ((PlayScriptRequest) operation.getRequest()).procedureName;
+            if (failing.contains(name)) {
+                operation.completed(new BinaryResponse(BinaryResponse.ERROR));
+                return;
+            }
+            PlayScriptResponse response = new PlayScriptResponse(1);
+            response.put(ScriptProcedures.NUM, Bytes.utf8("42"));
+            response.put(ScriptProcedures.RESULT, Bytes.utf8("true"));
+            operation.completed(response);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package kt4j.binary;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import kt4j.Bytes;
+import kt4j.KyotoTycoonFuture;
+import kt4j.KyotoTycoonOperationFailedException;
+import kt4j.Operation;
+
+import org.jboss.netty.channel.Channel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeoutTest {
+    final byte[] key = Bytes.utf8("key");
+
+    FakeBinaryClient testee;
+    Server server;
+
+    @Before
+    public void setUp() {
+        server = new Server();
+        testee = new FakeBinaryClient(server);
+        testee.setTimeout(100);
+        testee.start();
+    }
+
+    @After
+    public void tearDown() {
+        testee.stop();
+    }
+
+    @Test
+    public void testTimedOutOperationFails() {
+        server.silent = true;
+        long start = System.currentTimeMillis();
+        try {
+            testee.get(key);
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testTimedOutConnectionRecycled() throws Exception {
+        server.silent = true;
+        try {
+            testee.async().get(key).join();
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Channel stale = testee.channels.get(0);
+        awaitClosed(stale);
+
+        // the late response of the timed out operation is not paired with the next request
+        server.silent = false;
+        server.answer(0, "late");
+        assertEquals("value", Bytes.utf8(testee.get(key)));
+        assertNotSame(stale, testee.channels.get(1));
+    }
+
+    @Test
+    public void testAsyncViewDeadline() {
+        server.silent = true;
+        testee.setTimeout(0);
+        KyotoTycoonFuture<byte[]> future = testee.async(null, 50, TimeUnit.MILLISECONDS).get(key);
+        try {
+            future.join();
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            assertTrue(future.getCause() instanceof TimeoutException);
+        }
+    }
+
+    private static void awaitClosed(Channel channel) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (channel.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(channel.isOpen());
+    }
+
+    /**
+     * Answers the get_bulk requests with "value", or holds them while silent.
+     */
+    private class Server implements FakeBinaryClient.Responder {
+        final List<Operation> held = new ArrayList<Operation>();
+        volatile boolean silent;
+
+        @Override
+        public synchronized void respond(Operation operation) {
+            if (silent) {
+                held.add(operation);
+            } else {
+                operation.completed(response("value"));
+            }
+        }
+
+        synchronized void answer(int index, String value) {
+            held.get(index).completed(response(value));
+        }
+
+        private GetBulkResponse response(String value) {
+            GetBulkResponse response = new GetBulkResponse(1);
+            response.put(key, Bytes.utf8(value), Record.XT_MAX, 0);
+            return response;
+        }
+    }
+}
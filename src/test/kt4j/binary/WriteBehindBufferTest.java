@@ -0,0 +1,150 @@
+package kt4j.binary;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import kt4j.AsyncKyotoTycoonClient;
+import kt4j.Bytes;
+import kt4j.ExpirationTime;
+import kt4j.KyotoTycoonFuture;
+import kt4j.KyotoTycoonOperationFailedException;
+
+import org.junit.Test;
+
+public class WriteBehindBufferTest {
+    final Recorder recorder = new Recorder();
+    final AsyncKyotoTycoonClient client = (AsyncKyotoTycoonClient) Proxy.newProxyInstance(
+            AsyncKyotoTycoonClient.class.getClassLoader(), new Class<?>[] {AsyncKyotoTycoonClient.class}, recorder);
+
+    @Test
+    public void testLastWriteWins() {
+        WriteBehindBuffer testee = new WriteBehindBuffer(client, 1, TimeUnit.HOURS, 100, 100);
+        testee.set(Bytes.utf8("a"), Bytes.utf8("1"), null);
+        testee.set(Bytes.utf8("b"), Bytes.utf8("1"), null);
+        testee.set(Bytes.utf8("a"), Bytes.utf8("2"), null);
+        testee.remove(Bytes.utf8("b"));
+        testee.set(Bytes.utf8("c"), Bytes.utf8("1"), ExpirationTime.after(10));
+        assertEquals(3, testee.size());
+        assertTrue(recorder.calls.isEmpty());
+
+        testee.flush();
+        assertEquals(Arrays.asList("setBulk[a=2] xt=null", "setBulk[c=1] xt=10", "removeBulk[b]"), recorder.calls);
+        assertEquals(0, testee.size());
+
+        testee.flush();
+        assertEquals(3, recorder.calls.size());
+    }
+
+    @Test
+    public void testFlushOnMaxRecords() throws Exception {
+        WriteBehindBuffer testee = new WriteBehindBuffer(client, 1, TimeUnit.HOURS, 2, 100);
+        testee.set(Bytes.utf8("a"), Bytes.utf8("1"), null);
+        testee.set(Bytes.utf8("a"), Bytes.utf8("2"), null);
+        testee.set(Bytes.utf8("b"), Bytes.utf8("1"), null);
+        assertTrue("not flushed before start", recorder.calls.isEmpty());
+
+        testee.start();
+        try {
+            for (int i = 0; i < 100 && recorder.calls.isEmpty(); ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("setBulk[a=2, b=1] xt=null"), recorder.calls);
+            assertEquals(0, testee.size());
+        } finally {
+            testee.stop();
+        }
+    }
+
+    @Test
+    public void testCapacity() {
+        WriteBehindBuffer testee = new WriteBehindBuffer(client, 1, TimeUnit.HOURS, 2, 3);
+        recorder.failing = true;
+        testee.set(Bytes.utf8("a"), Bytes.utf8("1"), null);
+        testee.set(Bytes.utf8("b"), Bytes.utf8("1"), null);
+        testee.set(Bytes.utf8("c"), Bytes.utf8("1"), null);
+        try {
+            testee.set(Bytes.utf8("d"), Bytes.utf8("1"), null);
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            // expected
+        }
+        testee.set(Bytes.utf8("a"), Bytes.utf8("2"), null);
+        try {
+            testee.flush();
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            // expected
+        }
+        assertEquals(3, testee.size());
+        try {
+            testee.remove(Bytes.utf8("d"));
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            // expected
+        }
+
+        recorder.failing = false;
+        testee.flush();
+        testee.remove(Bytes.utf8("d"));
+        assertEquals(1, testee.size());
+    }
+
+    @Test
+    public void testRebufferOnFailure() {
+        WriteBehindBuffer testee = new WriteBehindBuffer(client, 1, TimeUnit.HOURS, 100, 100);
+        testee.set(Bytes.utf8("a"), Bytes.utf8("1"), null);
+        recorder.failing = true;
+        try {
+            testee.flush();
+            fail();
+        } catch (KyotoTycoonOperationFailedException e) {
+            // expected
+        }
+        assertEquals(1, testee.size());
+
+        recorder.failing = false;
+        testee.flush();
+        assertEquals(Arrays.asList("setBulk[a=1] xt=null", "setBulk[a=1] xt=null"), recorder.calls);
+    }
+
+    static class Recorder implements InvocationHandler {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean failing;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            KyotoTycoonFuture<Object> future = new KyotoTycoonFuture<Object>();
+            if (method.getName().equals("setBulk")) {
+                List<String> records = new ArrayList<String>();
+                for (Map.Entry<byte[], byte[]> entry : ((Map<byte[], byte[]>) args[0]).entrySet()) {
+                    records.add(Bytes.utf8(entry.getKey()) + "=" + Bytes.utf8(entry.getValue()));
+                }
+                calls.add("setBulk" + records + " xt=" + args[1]);
+            } else if (method.getName().equals("removeBulk")) {
+                List<String> keys = new ArrayList<String>();
+                for (byte[] key : (List<byte[]>) args[0]) {
+                    keys.add(Bytes.utf8(key));
+                }
+                calls.add("removeBulk" + keys);
+            } else {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            if (failing) {
+                future.setFailure(new KyotoTycoonOperationFailedException("failing"));
+            } else {
+                future.setSuccess(null);
+            }
+            return future;
+        }
+    }
+}
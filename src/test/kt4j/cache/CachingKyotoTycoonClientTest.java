@@ -0,0 +1,111 @@
+package kt4j.cache;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import kt4j.Bytes;
+import kt4j.Bytes.ByteArrayWrapper;
+import kt4j.KyotoTycoonOperationFailedException;
+import kt4j.cache.ReadThroughClientTest.FakeServer;
+
+import org.junit.Test;
+
+public class CachingKyotoTycoonClientTest {
+    static final int KEYS = 200;
+
+    @Test
+    public void testGetBulkIsFullyCached() throws Exception {
+        FakeServer server = new FakeServer();
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (int i = 0; i < KEYS; ++i) {
+            byte[] key = Bytes.utf8("key" + i);
+            keys.add(key);
+            server.records.put(new ByteArrayWrapper(key), key);
+        }
+        CachingKyotoTycoonClient testee = new CachingKyotoTycoonClient(server.client(), 1024 * 1024);
+
+        assertEquals(KEYS, testee.getBulk(keys).size());
+        assertEquals(1, server.calls.size());
+
+        assertEquals(KEYS, testee.getBulk(keys).size());
+        for (byte[] key : keys) {
+            assertArrayEquals(key, testee.get(key));
+        }
+        assertEquals(1, server.calls.size());
+    }
+
+    @Test
+    public void testSetBulkIsFullyCached() throws Exception {
+        FakeServer server = new FakeServer();
+        LinkedHashMap<byte[], byte[]> records = new LinkedHashMap<byte[], byte[]>();
+        for (int i = 0; i < KEYS; ++i) {
+            byte[] key = Bytes.utf8("key" + i);
+            records.put(key, key);
+        }
+        CachingKyotoTycoonClient testee = new CachingKyotoTycoonClient(server.client(), 1024 * 1024);
+
+        testee.setBulk(records, null, false);
+        assertEquals(KEYS, testee.getBulk(new ArrayList<byte[]>(records.keySet())).size());
+        assertEquals(1, server.calls.size());
+    }
+
+    @Test
+    public void testLoadDuringSetIsNotCached() throws Exception {
+        final byte[] key = Bytes.utf8("a");
+        final CachingKyotoTycoonClient[] testee = new CachingKyotoTycoonClient[1];
+        FakeServer server = new FakeServer() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("set")) {
+                    loadDuringWrite(testee[0], key);
+                }
+                return super.invoke(proxy, method, args);
+            }
+        };
+        server.records.put(new ByteArrayWrapper(key), Bytes.utf8("old"));
+        testee[0] = new CachingKyotoTycoonClient(server.client(), 1024 * 1024);
+
+        testee[0].set(key, Bytes.utf8("new"), null);
+        assertEquals("new", Bytes.utf8(testee[0].get(key)));
+        assertEquals(Arrays.asList("get[a]", "set[a]"), server.calls);
+    }
+
+    @Test
+    public void testLoadDuringSetBulkIsNotCached() throws Exception {
+        final byte[] key = Bytes.utf8("a");
+        final CachingKyotoTycoonClient[] testee = new CachingKyotoTycoonClient[1];
+        FakeServer server = new FakeServer() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("setBulk")) {
+                    loadDuringWrite(testee[0], key);
+                }
+                return super.invoke(proxy, method, args);
+            }
+        };
+        server.records.put(new ByteArrayWrapper(key), Bytes.utf8("old"));
+        testee[0] = new CachingKyotoTycoonClient(server.client(), 1024 * 1024);
+
+        LinkedHashMap<byte[], byte[]> records = new LinkedHashMap<byte[], byte[]>();
+        records.put(key, Bytes.utf8("new"));
+        testee[0].setBulk(records, null, false);
+        assertEquals("new", Bytes.utf8(testee[0].get(key)));
+        assertEquals(Arrays.asList("get[a]", "setBulk[a]"), server.calls);
+    }
+
+    /**
+     * Reads the key as another thread would while the write is sent but not yet applied.
+     */
+    private static void loadDuringWrite(CachingKyotoTycoonClient testee, byte[] key) {
+        try {
+            assertEquals("old", Bytes.utf8(testee.get(key)));
+        } catch (KyotoTycoonOperationFailedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
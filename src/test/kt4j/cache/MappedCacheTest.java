@@ -0,0 +1,154 @@
+package kt4j.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import kt4j.Bytes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedCacheTest {
+    static final long FAR = Long.MAX_VALUE;
+    static final String ID = "servers=[localhost:1978]";
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("kt4j", ".cache");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        MappedCache testee = new MappedCache(file, 16, 64, ID);
+        assertNull(testee.get(Bytes.utf8("a"), 0));
+
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("1"), FAR));
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("22"), FAR));
+        MappedCache.Value value = testee.get(Bytes.utf8("a"), 0);
+        assertEquals("22", Bytes.utf8(value.value));
+        assertEquals(FAR, value.expiresAt);
+
+        testee.remove(Bytes.utf8("a"));
+        assertNull(testee.get(Bytes.utf8("a"), 0));
+        testee.close();
+    }
+
+    @Test
+    public void testTooLarge() throws Exception {
+        MappedCache testee = new MappedCache(file, 16, 64, ID);
+        assertTrue(testee.put(Bytes.utf8("a"), new byte[testee.maxRecordLength() - 1], FAR));
+        assertFalse(testee.put(Bytes.utf8("a"), new byte[testee.maxRecordLength()], FAR));
+        assertNull(testee.get(Bytes.utf8("a"), 0));
+        testee.close();
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        MappedCache testee = new MappedCache(file, 16, 64, ID);
+        testee.put(Bytes.utf8("a"), Bytes.utf8("1"), 1000);
+        assertNotNull(testee.get(Bytes.utf8("a"), 999));
+        assertNull(testee.get(Bytes.utf8("a"), 1000));
+        assertNull(testee.get(Bytes.utf8("a"), 0));
+        testee.close();
+    }
+
+    @Test
+    public void testFullBucketReplacesEarliest() throws Exception {
+        MappedCache testee = new MappedCache(file, 1, 64, ID);
+        for (int i = 0; i < MappedCache.SLOTS_PER_BUCKET; ++i) {
+            testee.put(Bytes.utf8("key" + i), Bytes.utf8("v"), 1000 + i);
+        }
+        testee.put(Bytes.utf8("new"), Bytes.utf8("v"), FAR);
+        assertNull(testee.get(Bytes.utf8("key0"), 0));
+        for (int i = 1; i < MappedCache.SLOTS_PER_BUCKET; ++i) {
+            assertNotNull(testee.get(Bytes.utf8("key" + i), 0));
+        }
+        assertNotNull(testee.get(Bytes.utf8("new"), 0));
+        testee.close();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        MappedCache testee = new MappedCache(file, 16, 64, ID);
+        for (int i = 0; i < 10; ++i) {
+            testee.put(Bytes.utf8("key" + i), Bytes.utf8("value" + i), FAR);
+        }
+        testee.close();
+
+        testee = new MappedCache(file, 16, 64, ID);
+        int found = 0;
+        for (int i = 0; i < 10; ++i) {
+            MappedCache.Value value = testee.get(Bytes.utf8("key" + i), 0);
+            if (value != null) {
+                assertEquals("value" + i, Bytes.utf8(value.value));
+                ++found;
+            }
+        }
+        assertEquals(10, found);
+        testee.close();
+
+        testee = new MappedCache(file, 32, 64, ID);
+        for (int i = 0; i < 10; ++i) {
+            assertNull(testee.get(Bytes.utf8("key" + i), 0));
+        }
+        testee.close();
+    }
+
+    @Test
+    public void testOtherIdentity() throws Exception {
+        MappedCache testee = new MappedCache(file, 16, 64, ID);
+        testee.put(Bytes.utf8("a"), Bytes.utf8("1"), FAR);
+        testee.close();
+
+        testee = new MappedCache(file, 16, 64, "servers=[otherhost:1978]");
+        assertNull(testee.get(Bytes.utf8("a"), 0));
+        testee.close();
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        MappedCache testee = new MappedCache(file, 16, 64, ID);
+        try {
+            new MappedCache(file, 16, 64, ID);
+            fail();
+        } catch (MappedCache.FileLockedException e) {
+            // expected
+        }
+        testee.close();
+
+        testee = new MappedCache(file, 16, 64, ID);
+        testee.close();
+    }
+
+    @Test
+    public void testCorruptedSlot() throws Exception {
+        int[] sizes = {-1, 64, Integer.MAX_VALUE};
+        for (int vsiz : sizes) {
+            MappedCache testee = new MappedCache(file, 1, 64, ID);
+            testee.put(Bytes.utf8("a"), Bytes.utf8("1"), FAR);
+            testee.close();
+
+            // the first slot of the only bucket, just after the file header
+            RandomAccessFile raw = new RandomAccessFile(file, "rw");
+            raw.seek(64 + 8);
+            raw.writeInt(vsiz);
+            raw.close();
+
+            testee = new MappedCache(file, 1, 64, ID);
+            assertNull(testee.get(Bytes.utf8("a"), 0));
+            assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("2"), FAR));
+            assertEquals("2", Bytes.utf8(testee.get(Bytes.utf8("a"), 0).value));
+            testee.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package kt4j.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import kt4j.Bytes;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+    static final long TTL = TimeUnit.MINUTES.toNanos(1);
+
+    @Test
+    public void testPutAndGet() {
+        NearCache testee = new NearCache(1024 * 1024);
+        assertNull(testee.get(Bytes.utf8("a")));
+
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("1"), TTL, testee.stamp(Bytes.utf8("a"))));
+        assertEquals("1", Bytes.utf8(testee.get(Bytes.utf8("a"))));
+        assertEquals(1 + 1 + NearCache.ENTRY_OVERHEAD, testee.weightedSize());
+
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("22"), TTL, testee.stamp(Bytes.utf8("a"))));
+        assertEquals("22", Bytes.utf8(testee.get(Bytes.utf8("a"))));
+        assertEquals(1, testee.size());
+        assertEquals(1 + 2 + NearCache.ENTRY_OVERHEAD, testee.weightedSize());
+    }
+
+    @Test
+    public void testExpire() {
+        NearCache testee = new NearCache(1024 * 1024);
+        assertFalse(testee.put(Bytes.utf8("a"), Bytes.utf8("1"), 0, testee.stamp(Bytes.utf8("a"))));
+
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("1"), 1, testee.stamp(Bytes.utf8("a"))));
+        assertNull(testee.get(Bytes.utf8("a")));
+        assertEquals(0, testee.size());
+        assertEquals(0, testee.weightedSize());
+    }
+
+    @Test
+    public void testStaleLoadIsRejected() {
+        NearCache testee = new NearCache(1024 * 1024);
+        long loading = testee.stamp(Bytes.utf8("a"));
+        long writing = testee.invalidate(Bytes.utf8("a"));
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("new"), TTL, writing));
+
+        assertFalse(testee.put(Bytes.utf8("a"), Bytes.utf8("old"), TTL, loading));
+        assertEquals("new", Bytes.utf8(testee.get(Bytes.utf8("a"))));
+    }
+
+    @Test
+    public void testLoadDuringWriteIsRejected() {
+        NearCache testee = new NearCache(1024 * 1024);
+        testee.invalidate(Bytes.utf8("a"));
+        long loading = testee.stamp(Bytes.utf8("a"));
+        long written = testee.invalidate(Bytes.utf8("a"));
+
+        assertFalse(testee.put(Bytes.utf8("a"), Bytes.utf8("old"), TTL, loading));
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("new"), TTL, written));
+        assertEquals("new", Bytes.utf8(testee.get(Bytes.utf8("a"))));
+    }
+
+    @Test
+    public void testLoadDuringWriteIsInvalidated() {
+        NearCache testee = new NearCache(1024 * 1024);
+        testee.invalidate(Bytes.utf8("a"));
+        long loading = testee.stamp(Bytes.utf8("a"));
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("old"), TTL, loading));
+        long written = testee.invalidate(Bytes.utf8("a"));
+
+        assertNull(testee.get(Bytes.utf8("a")));
+        assertTrue(testee.put(Bytes.utf8("a"), Bytes.utf8("new"), TTL, written));
+        assertEquals("new", Bytes.utf8(testee.get(Bytes.utf8("a"))));
+    }
+
+    @Test
+    public void testStampsArePerKey() {
+        NearCache testee = new NearCache(1024 * 1024);
+        long[] stamps = new long[200];
+        for (int i = 0; i < stamps.length; ++i) {
+            stamps[i] = testee.stamp(Bytes.utf8("key" + i));
+        }
+        testee.invalidate(Bytes.utf8("other"));
+        for (int i = 0; i < stamps.length; ++i) {
+            byte[] key = Bytes.utf8("key" + i);
+            assertTrue(testee.put(key, key, TTL, stamps[i]));
+        }
+        assertEquals(stamps.length, testee.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        NearCache testee = new NearCache(1024 * 1024);
+        for (int i = 0; i < 10; ++i) {
+            byte[] key = Bytes.utf8("key" + i);
+            testee.put(key, key, TTL, testee.stamp(key));
+        }
+        testee.invalidate(Bytes.utf8("key0"));
+        assertNull(testee.get(Bytes.utf8("key0")));
+        assertNotNull(testee.get(Bytes.utf8("key1")));
+
+        testee.invalidateAll();
+        assertNull(testee.get(Bytes.utf8("key1")));
+        assertEquals(0, testee.size());
+        assertEquals(0, testee.weightedSize());
+    }
+
+    @Test
+    public void testBoundedBySize() {
+        NearCache testee = new NearCache(100 * (NearCache.ENTRY_OVERHEAD + 16));
+        for (int i = 0; i < 10000; ++i) {
+            byte[] key = Bytes.utf8(String.format("key%05d", i));
+            testee.put(key, key, TTL, testee.stamp(key));
+            assertTrue(testee.weightedSize() <= 100 * (NearCache.ENTRY_OVERHEAD + 16));
+        }
+        assertTrue(testee.size() <= 100);
+    }
+
+    @Test
+    public void testHotKeysSurviveScan() {
+        NearCache testee = new NearCache(100 * (NearCache.ENTRY_OVERHEAD + 16));
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 50; ++i) {
+                byte[] key = Bytes.utf8(String.format("hot%05d", i));
+                if (testee.get(key) == null) {
+                    testee.put(key, key, TTL, testee.stamp(key));
+                }
+            }
+        }
+
+        for (int i = 0; i < 10000; ++i) {
+            byte[] key = Bytes.utf8(String.format("key%05d", i));
+            if (testee.get(key) == null) {
+                testee.put(key, key, TTL, testee.stamp(key));
+            }
+        }
+
+        int hits = 0;
+        for (int i = 0; i < 50; ++i) {
+            if (testee.get(Bytes.utf8(String.format("hot%05d", i))) != null) {
+                ++hits;
+            }
+        }
+        assertTrue("hits: " + hits, hits >= 45);
+    }
+}
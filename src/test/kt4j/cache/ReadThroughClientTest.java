@@ -0,0 +1,165 @@
+package kt4j.cache;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kt4j.Bytes;
+import kt4j.Bytes.ByteArrayWrapper;
+import kt4j.KyotoTycoonClient;
+
+import org.junit.Test;
+
+public class ReadThroughClientTest {
+    final byte[] key1 = Bytes.utf8("key1");
+    final byte[] key2 = Bytes.utf8("key2");
+    final byte[] key3 = Bytes.utf8("key3");
+
+    @Test
+    public void testLoadMisses() throws Exception {
+        FakeServer server = new FakeServer();
+        server.records.put(new ByteArrayWrapper(key1), Bytes.utf8("stored"));
+        FakeLoader loader = new FakeLoader();
+        loader.records.put(new ByteArrayWrapper(key2), Bytes.utf8("loaded"));
+
+        ReadThroughClient testee = new ReadThroughClient(server.client(), loader);
+        Map<byte[], byte[]> result = testee.getBulk(Arrays.asList(key1, key2, key3));
+        assertEquals(2, result.size());
+        assertEquals("stored", Bytes.utf8(result.get(key1)));
+        assertEquals("loaded", Bytes.utf8(result.get(key2)));
+        assertNull(result.get(key3));
+
+        assertEquals(Arrays.asList("[key2, key3]"), loader.calls);
+        assertEquals(Arrays.asList("getBulk[key1, key2, key3]", "setBulk[key2]"), server.calls);
+        assertEquals("loaded", Bytes.utf8(server.records.get(new ByteArrayWrapper(key2))));
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        FakeServer server = new FakeServer();
+        FakeLoader loader = new FakeLoader();
+        ReadThroughClient testee = new ReadThroughClient(server.client(), loader);
+
+        assertNull(testee.get(key1));
+        assertNull(testee.get(key1));
+        assertEquals(1, loader.calls.size());
+        assertEquals(Arrays.asList("getBulk[key1]"), server.calls);
+
+        testee.invalidate(key1);
+        assertNull(testee.get(key1));
+        assertEquals(2, loader.calls.size());
+    }
+
+    @Test
+    public void testNegativeCachingOfBulkMiss() throws Exception {
+        FakeServer server = new FakeServer();
+        FakeLoader loader = new FakeLoader();
+        ReadThroughClient testee = new ReadThroughClient(server.client(), loader);
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; ++i) {
+            keys.add(Bytes.utf8("missing" + i));
+        }
+
+        assertTrue(testee.getBulk(keys).isEmpty());
+        assertTrue(testee.getBulk(keys).isEmpty());
+        for (byte[] key : keys) {
+            assertNull(testee.get(key));
+        }
+        assertEquals(1, loader.calls.size());
+        assertEquals(1, server.calls.size());
+    }
+
+    @Test
+    public void testLoaderReturningNull() throws Exception {
+        FakeServer server = new FakeServer();
+        ReadThroughClient testee = new ReadThroughClient(server.client(), new RecordLoader() {
+            @Override
+            public Map<byte[], byte[]> load(List<byte[]> keys) {
+                return null;
+            }
+        });
+        assertTrue(testee.getBulk(Arrays.asList(key1, key2)).isEmpty());
+        assertNull(testee.get(key1));
+        assertEquals(1, server.calls.size());
+    }
+
+    static String keys(Iterable<byte[]> keys) {
+        List<String> strings = new ArrayList<String>();
+        for (byte[] key : keys) {
+            strings.add(Bytes.utf8(key));
+        }
+        return strings.toString();
+    }
+
+    static class FakeLoader implements RecordLoader {
+        final Map<ByteArrayWrapper, byte[]> records = new HashMap<ByteArrayWrapper, byte[]>();
+        final List<String> calls = new ArrayList<String>();
+
+        @Override
+        public Map<byte[], byte[]> load(List<byte[]> keys) {
+            calls.add(keys(keys));
+            Map<byte[], byte[]> result = new HashMap<byte[], byte[]>();
+            for (byte[] key : keys) {
+                byte[] value = records.get(new ByteArrayWrapper(key));
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Serves getBulk and setBulk from a map.
+     */
+    static class FakeServer implements InvocationHandler {
+        final Map<ByteArrayWrapper, byte[]> records = new HashMap<ByteArrayWrapper, byte[]>();
+        final List<String> calls = new ArrayList<String>();
+
+        KyotoTycoonClient client() {
+            return (KyotoTycoonClient) Proxy.newProxyInstance(KyotoTycoonClient.class.getClassLoader(),
+                    new Class<?>[] {KyotoTycoonClient.class}, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getBulk")) {
+                List<byte[]> keys = (List<byte[]>) args[0];
+                calls.add("getBulk" + keys(keys));
+                Map<byte[], byte[]> result = new HashMap<byte[], byte[]>();
+                for (byte[] key : keys) {
+                    byte[] value = records.get(new ByteArrayWrapper(key));
+                    if (value != null) {
+                        result.put(key, value);
+                    }
+                }
+                return result;
+            } else if (method.getName().equals("get")) {
+                byte[] key = (byte[]) args[0];
+                calls.add("get" + keys(Arrays.asList(key)));
+                return records.get(new ByteArrayWrapper(key));
+            } else if (method.getName().equals("set")) {
+                byte[] key = (byte[]) args[0];
+                calls.add("set" + keys(Arrays.asList(key)));
+                records.put(new ByteArrayWrapper(key), (byte[]) args[1]);
+                return null;
+            } else if (method.getName().equals("setBulk")) {
+                Map<byte[], byte[]> keyValuePairs = (Map<byte[], byte[]>) args[0];
+                calls.add("setBulk" + keys(keyValuePairs.keySet()));
+                for (Map.Entry<byte[], byte[]> entry : keyValuePairs.entrySet()) {
+                    records.put(new ByteArrayWrapper(entry.getKey()), entry.getValue());
+                }
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -2,7 +2,9 @@ package kt4j.tsvrpc;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -308,6 +310,26 @@ public class KyotoTycoonTsvRpcClientTest {
         assertTrue(result.contains(key1) || result.contains(key11));
     }
     
+    @Test
+    @Ignore
+    public void testMatchPrefixWithHandler() throws Exception {
+        client.set("key1", "v1");
+        client.set("key2", "v2");
+        client.set("key11", "v11");
+        
+        final List<String> result = Collections.synchronizedList(new ArrayList<String>());
+        long count = client.matchPrefix(Bytes.utf8("key1"), -1, new KeyHandler() {
+            @Override
+            public void handleKey(byte[] key) {
+                result.add(Bytes.utf8(key));
+            }
+        });
+        
+        assertEquals(2, count);
+        assertEquals(2, result.size());
+        assertTrue(result.contains("key1") && result.contains("key11"));
+    }
+    
     @Test
     @Ignore
     public void testPlayScript() {
@@ -0,0 +1,61 @@
+package kt4j.tsvrpc;
+
+import static org.junit.Assert.*;
+
+import kt4j.Bytes;
+
+import org.junit.Test;
+
+public class TsvColumnCodecTest {
+
+    @Test
+    public void testAdaptiveSelectsNoneForPlainColumns() {
+        assertSame(TsvColumnCodec.NONE, select("user:1234", "hello, world"));
+    }
+
+    @Test
+    public void testAdaptiveSelectsUrlEncodingForFewEscapes() {
+        assertSame(TsvColumnCodec.URL_ENCODING,
+                select("user:1234", "line 1\nline 2 of the value"));
+    }
+
+    @Test
+    public void testAdaptiveSelectsBase64ForBinary() {
+        byte[] binary = new byte[64];
+        for (int i = 0; i < binary.length; ++i) {
+            binary[i] = (byte) (i * 7);
+        }
+        assertSame(TsvColumnCodec.BASE_64, select("key", binary));
+    }
+
+    @Test
+    public void testAdaptiveRequestContentType() {
+        TsvRpcRequest testee = TsvRpcRequest.createGet(Bytes.utf8("key"), TsvColumnCodec.ADAPTIVE);
+        assertEquals(TsvColumnCodec.NONE.contentType, testee.getContentType());
+        assertEquals("key\tkey\r\n", Bytes.utf8(testee.getEncodedContent()));
+
+        testee.setRpcParam("key", Bytes.utf8("tab\tkey"));
+        assertEquals(TsvColumnCodec.URL_ENCODING.contentType, testee.getContentType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForContentTypeNeverReturnsAdaptive() {
+        TsvColumnCodec.forContentType(null);
+    }
+
+    @Test
+    public void testEncodedLength() {
+        byte[] bytes = Bytes.utf8("a value\twith 100% of\nthe specials");
+        for (TsvColumnCodec codec : TsvColumnCodec.values()) {
+            assertEquals(codec.name(), codec.encode(bytes).length, codec.encodedLength(bytes));
+        }
+    }
+
+    private static TsvColumnCodec select(Object key, Object value) {
+        byte[][] columns = {
+            Bytes.utf8("key"), TsvColumnCodec.NONE.toEncodeableBytes(key),
+            Bytes.utf8("value"), TsvColumnCodec.NONE.toEncodeableBytes(value),
+        };
+        return TsvColumnCodec.ADAPTIVE.select(columns, columns.length);
+    }
+}
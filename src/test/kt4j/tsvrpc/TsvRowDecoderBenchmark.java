@@ -0,0 +1,82 @@
+package kt4j.tsvrpc;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+/**
+ * Compares the row splitting that the response decoder used to do, copying every row, key and value
+ * out of the aggregated body before decoding, with {@link TsvRowDecoder} fed with 8 KB chunks.
+ */
+public class TsvRowDecoderBenchmark {
+    private static final int NUM_ROWS = 10 * 1000;
+    private static final int CHUNK_SIZE = 8192;
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void benchmark() {
+        for (TsvColumnCodec codec : TsvColumnCodec.values()) {
+            byte[] body = body(codec);
+
+            // warm up
+            legacy(body, codec, ITERATIONS / 4);
+            streaming(body, codec, ITERATIONS / 4);
+
+            long legacy = legacy(body, codec, ITERATIONS);
+            long streaming = streaming(body, codec, ITERATIONS);
+            System.out.println(String.format("%-12s %,d rows - legacy: %,8d us/op, streaming: %,8d us/op",
+                    codec, NUM_ROWS, legacy / ITERATIONS / 1000, streaming / ITERATIONS / 1000));
+        }
+    }
+
+    private static byte[] body(TsvColumnCodec codec) {
+        ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+        for (int i = 0; i < NUM_ROWS; ++i) {
+            body.writeBytes(codec.encode("key" + i));
+            body.writeByte('\t');
+            body.writeBytes(codec.encode("value of the record " + i));
+            body.writeByte('\n');
+        }
+        byte[] array = new byte[body.readableBytes()];
+        body.readBytes(array);
+        return array;
+    }
+
+    private static long legacy(byte[] body, TsvColumnCodec codec, int iterations) {
+        long start = System.nanoTime();
+        for (int n = 0; n < iterations; ++n) {
+            TsvRpcResponse response = new TsvRpcResponse(200);
+            int mark = 0;
+            for (int i = 0; i < body.length; ++i) {
+                if (body[i] == '\n' || i == (body.length - 1)) {
+                    byte[] row = Arrays.copyOfRange(body, mark, i);
+                    mark = i + 1;
+                    for (int j = 0; j < row.length; ++j) {
+                        if (row[j] == '\t') {
+                            byte[] key = codec.decode(Arrays.copyOf(row, j));
+                            byte[] value = (j + 1 < row.length) ?
+                                    codec.decode(Arrays.copyOfRange(row, j + 1, row.length)) : new byte[0];
+                            response.put(key, value);
+                        }
+                    }
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long streaming(byte[] body, TsvColumnCodec codec, int iterations) {
+        long start = System.nanoTime();
+        for (int n = 0; n < iterations; ++n) {
+            TsvRpcResponse response = new TsvRpcResponse(200);
+            TsvRowDecoder decoder = new TsvRowDecoder(codec, response);
+            for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+                decoder.decode(ChannelBuffers.wrappedBuffer(body, offset, Math.min(CHUNK_SIZE, body.length - offset)));
+            }
+            decoder.finish();
+        }
+        return System.nanoTime() - start;
+    }
+}
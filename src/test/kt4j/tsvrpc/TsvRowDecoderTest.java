@@ -0,0 +1,45 @@
+package kt4j.tsvrpc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+public class TsvRowDecoderTest {
+    final List<String> rows = new ArrayList<String>();
+    final TsvRowDecoder testee = new TsvRowDecoder(TsvColumnCodec.NONE, new TsvRowHandler() {
+        @Override
+        public void handleRow(byte[] key, byte[] value) {
+            rows.add(new String(key, CharsetUtil.UTF_8) + "=" + new String(value, CharsetUtil.UTF_8));
+        }
+    });
+
+    @Test
+    public void testRowsSplitAcrossChunks() {
+        decode("num\t");
+        decode("2\nke");
+        decode("y");
+        decode("1\tval");
+        decode("ue1\nkey2\t\n");
+        testee.finish();
+        assertEquals(Arrays.asList("num=2", "key1=value1", "key2="), rows);
+    }
+
+    @Test
+    public void testLastRowWithoutNewline() {
+        decode("a\t1\nb\t2");
+        assertEquals(1, rows.size());
+
+        testee.finish();
+        assertEquals(Arrays.asList("a=1", "b=2"), rows);
+    }
+
+    private void decode(String chunk) {
+        testee.decode(ChannelBuffers.copiedBuffer(chunk, CharsetUtil.UTF_8));
+    }
+}
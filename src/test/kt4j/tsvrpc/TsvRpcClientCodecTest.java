@@ -0,0 +1,86 @@
+package kt4j.tsvrpc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kt4j.Bytes;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+public class TsvRpcClientCodecTest {
+
+    @Test
+    public void testEncodeRequest() {
+        EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(new TsvRpcClientCodec());
+        TsvRpcRequest get = TsvRpcRequest.createGet(Bytes.utf8("key"), TsvColumnCodec.NONE);
+        embedder.offer(get);
+        embedder.offer(get);
+        embedder.finish();
+
+        String expected = "POST /rpc/get HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Content-Type: text/tab-separated-values\r\n"
+                + "Content-Length: 9\r\n"
+                + "\r\n"
+                + "key\tkey\r\n";
+        assertEquals(expected, toString(embedder.poll()));
+        assertEquals(expected, toString(embedder.poll()));
+    }
+
+    @Test
+    public void testRowsHandledBeforeLastChunk() {
+        TsvRpcClientCodec testee = new TsvRpcClientCodec();
+        final List<String> rows = new ArrayList<String>();
+        TsvRpcRequest match = TsvRpcRequest.createMatchPrefix(Bytes.utf8("k"), -1, TsvColumnCodec.NONE);
+        match.setRowHandler(new TsvRowHandler() {
+            @Override
+            public void handleRow(byte[] key, byte[] value) {
+                rows.add(Bytes.utf8(key));
+            }
+        });
+        EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(testee);
+        encoder.offer(match);
+        DecoderEmbedder<TsvRpcResponse> decoder = new DecoderEmbedder<TsvRpcResponse>(testee);
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/tab-separated-values");
+        response.setChunked(true);
+        decoder.offer(response);
+        decoder.offer(chunk("_k1\t\n_k"));
+        assertEquals(1, rows.size());
+        assertEquals("_k1", rows.get(0));
+        decoder.offer(chunk("2\t\nnum\t2\n"));
+        assertEquals(3, rows.size());
+        assertEquals("_k2", rows.get(1));
+        assertNull(decoder.peek());
+
+        decoder.offer(HttpChunk.LAST_CHUNK);
+        TsvRpcResponse decoded = decoder.poll();
+        assertTrue(decoded.isSucceeded());
+        assertTrue(decoded.getBulkResult().isEmpty());
+    }
+
+    private static HttpChunk chunk(String content) {
+        return new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(Bytes.utf8(content)));
+    }
+
+    private static String toString(ChannelBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return Bytes.utf8(bytes);
+    }
+}